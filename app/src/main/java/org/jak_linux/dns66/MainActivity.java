@@ -7,9 +7,10 @@
  */
 package org.jak_linux.dns66;
 
-import android.app.DownloadManager;
+import android.app.AlertDialog;
 import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.net.Uri;
@@ -23,6 +24,7 @@ import android.util.JsonWriter;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
+import android.widget.EditText;
 import android.widget.TextView;
 import android.widget.Toast;
 
@@ -34,8 +36,9 @@ import org.jak_linux.dns66.main.MainFragmentPagerAdapter;
 import org.jak_linux.dns66.vpn.AdVpnService;
 import org.jak_linux.dns66.vpn.Configuration;
 import org.jak_linux.dns66.vpn.FileHelper;
+import org.jak_linux.dns66.vpn.HostListUpdater;
+import org.jak_linux.dns66.vpn.HostLookup;
 
-import java.io.File;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 
@@ -122,6 +125,9 @@ public class MainActivity extends AppCompatActivity {
             case R.id.action_refresh:
                 refresh();
                 break;
+            case R.id.action_check_host:
+                checkHost();
+                break;
             case R.id.action_load_defaults:
                 config = FileHelper.loadDefaultSettings(this);
                 reload();
@@ -153,21 +159,52 @@ public class MainActivity extends AppCompatActivity {
     }
 
     private void refresh() {
-        DownloadManager dm = (DownloadManager) getSystemService(DOWNLOAD_SERVICE);
-
-        for (Configuration.Item item : config.hosts.items) {
-            File file = FileHelper.getItemFile(this, item);
-
-            if (file != null && item.state != 2) {
-                DownloadManager.Request request = new DownloadManager.Request(Uri.parse(item.location));
-                Log.d("MainActivity", String.format("refresh: Downkoading %s to %s", item.location, file.getAbsolutePath()));
-                file.delete();
-                request.setDestinationUri(Uri.fromFile(file));
-                request.setTitle(item.title);
-                request.setVisibleInDownloadsUi(false);
-                dm.enqueue(request);
+        // Lists are compiled while being downloaded, and replace the old ones once complete.
+        new HostListUpdater(this, config).start();
+    }
+
+    private void checkHost() {
+        final EditText hostText = new EditText(this);
+        hostText.setHint(R.string.check_host_hint);
+        hostText.setSingleLine();
+
+        new AlertDialog.Builder(this)
+                .setTitle(R.string.action_check_host)
+                .setView(hostText)
+                .setNegativeButton(android.R.string.cancel, null)
+                .setPositiveButton(android.R.string.ok, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialog, int which) {
+                        checkHost(hostText.getText().toString().trim());
+                    }
+                })
+                .show();
+    }
+
+    private void checkHost(final String host) {
+        final Context context = getApplicationContext();
+        // Looking up may have to compile the index first
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                final String message;
+                try {
+                    HostLookup lookup = HostLookup.lookup(context, host);
+                    if (lookup.getItem() == null)
+                        message = context.getString(R.string.check_host_not_listed, host);
+                    else
+                        message = context.getString(lookup.isBlocked() ? R.string.check_host_blocked : R.string.check_host_allowed, host, lookup.getItem().title);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Toast.makeText(context, message, Toast.LENGTH_LONG).show();
+                    }
+                });
             }
-        }
+        }, "HostLookup").start();
     }
 
     @Override
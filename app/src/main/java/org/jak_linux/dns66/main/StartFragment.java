@@ -116,8 +116,9 @@ public class StartFragment extends Fragment {
             return true;
         for (Configuration.Item item : MainActivity.config.hosts.items) {
             File file = FileHelper.getItemFile(getContext(), item);
+            File segmentFile = FileHelper.getItemSegmentFile(getContext(), item);
             if (item.state != Configuration.Item.STATE_IGNORE && file != null) {
-                if (!file.exists())
+                if (!file.exists() && !segmentFile.exists())
                     return false;
             }
         }
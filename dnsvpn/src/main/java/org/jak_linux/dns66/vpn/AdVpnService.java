@@ -12,6 +12,7 @@ package org.jak_linux.dns66.vpn;
 import android.app.Notification;
 import android.app.PendingIntent;
 import android.app.Service;
+import android.content.Context;
 import android.content.Intent;
 import android.net.ConnectivityManager;
 import android.net.VpnService;
@@ -141,11 +142,29 @@ public class AdVpnService extends VpnService {
             startVpn();
         } else if (command == Command.STOP) {
             stopVpn();
+        } else if (command == Command.RELOAD) {
+            vpnThread.reloadBlockedHosts();
         }
 
         return Service.START_STICKY;
     }
 
+    /**
+     * Asks a running VPN to reload the blocked hosts, for example after the hosts configuration
+     * changed. Does nothing if the VPN is stopped.
+     *
+     * @param context A context to send the command from
+     */
+    public static void reloadBlockedHosts(Context context) {
+        if (status.isStopped()) {
+            return;
+        }
+
+        Intent intent = new Intent(context, AdVpnService.class);
+        intent.putExtra("COMMAND", Command.RELOAD.ordinal());
+        context.startService(intent);
+    }
+
     private Command extractCommandFromIntent(@Nullable Intent intent) {
         return intent == null ? Command.START : Command.values()[intent.getIntExtra("COMMAND", Command.START.ordinal())];
     }
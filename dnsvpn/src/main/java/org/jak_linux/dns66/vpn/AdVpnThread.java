@@ -20,27 +20,22 @@ import android.util.Log;
 
 import org.pcap4j.packet.IllegalRawDataException;
 import org.pcap4j.packet.IpV4Packet;
-import org.pcap4j.packet.UdpPacket;
-import org.pcap4j.packet.UnknownPacket;
-import org.xbill.DNS.Flags;
-import org.xbill.DNS.Message;
-import org.xbill.DNS.Rcode;
 
 import java.io.FileDescriptor;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
+import java.net.InetAddress;
 import java.net.SocketException;
-import java.util.Arrays;
-import java.util.HashSet;
-import java.util.LinkedHashMap;
-import java.util.LinkedList;
-import java.util.Locale;
-import java.util.Map;
-import java.util.Queue;
-import java.util.Set;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 
 class AdVpnThread implements Runnable {
@@ -61,7 +56,15 @@ class AdVpnThread implements Runnable {
     }
 
     interface BlockedHostProvider {
-        Set<String> retrieveBlockedHosts() throws InterruptedException;
+        HostIndex retrieveBlockedHosts() throws InterruptedException;
+
+        BlockResponse retrieveBlockResponse();
+
+        /**
+         * @return The number of threads deciding about queries besides the VPN thread, see
+         * {@link Configuration#getDecisionWorkers(int)}
+         */
+        int retrieveDecisionWorkers();
     }
 
     private static class VpnNetworkException extends Exception {
@@ -74,57 +77,130 @@ class AdVpnThread implements Runnable {
         }
     }
 
-    private static class TimedValue<T> {
-        private final T value;
-        private final long time;
-
-        TimedValue(T value) {
-            this.value = value;
-            this.time = System.currentTimeMillis();
-        }
-
-        long ageSeconds() {
-            return (System.currentTimeMillis() - time) / 1000;
-        }
-
-        T get() {
-            return value;
-        }
-    }
-
     private static final String TAG = "AdVpnThread";
     private static final int MIN_RETRY_TIME = 5;
     private static final int MAX_RETRY_TIME = 2 * 60;
     /* Maximum number of responses we want to wait for */
     private static final int DNS_MAXIMUM_WAITING = 1024;
     private static final long DNS_TIMEOUT_SEC = 10;
+    /* Time after which a query without a response is sent upstream once more */
+    private static final long DNS_RETRANSMIT_MILLIS = 2000;
+    /* Time reload requests are collected for before the blocked hosts are rebuilt */
+    private static final long RELOAD_DELAY_MILLIS = 1000;
+    /* Blocked names remembered, and the time within which asking again counts as a repeat */
+    private static final int REPEATS_TRACKED_NAMES = 1024;
+    private static final long REPEATS_WINDOW_MILLIS = 60 * 1000;
+    /* Time between logging the blocked queries while connected */
+    private static final long REPEATS_LOG_INTERVAL_MILLIS = 10 * 60 * 1000;
+    /* Longest query kept for sending it again; most are well below */
+    private static final int DNS_MAXIMUM_RETRANSMITTED_SIZE = 128;
+    /* Sockets queries are sent upstream with, and the queries each sends before it is replaced */
+    private static final int UPSTREAM_SOCKETS = 4;
+    private static final int UPSTREAM_QUERIES_PER_SOCKET = 64;
+    /* Number of packets that can wait to be written to the device */
+    private static final int DEVICE_WRITE_BUFFERS = 64;
+    /* Largest DNS response we receive from upstream servers */
+    private static final int DNS_MAXIMUM_RESPONSE_SIZE = 4096;
+    /* Most packets read from or written to the device per wakeup, so sockets get their turn */
+    private static final int DEVICE_PACKETS_PER_WAKEUP = 64;
+    /* Queries handed to the workers at a time, and the largest packet they take; larger ones are
+     * truncated, and discarded */
+    private static final int DECISION_JOBS = 128;
+    private static final int DECISION_PACKET_SIZE = 4096;
     // Apps using DownloadManager that are known to be broken on Nougat when a VPN is active, see
     // issue #31 for further details.
 
     private final StatusObserver statusObserver;
     private final SocketProtector socketProtector;
     private final VpnFileDescriptorProvider vpnFileDescriptorProvider;
-    /* Data to be written to the device */
-    private final Queue<byte[]> deviceWrites = new LinkedList<>();
-    // HashMap that keeps an upper limit of packets
-    private final LinkedHashMap<DatagramSocket, TimedValue<IpV4Packet>> dnsIn = new LinkedHashMap<DatagramSocket, TimedValue<IpV4Packet>>() {
+    /* Packets to be written to the device; while it is full, nothing is read */
+    private final PacketRing deviceWrites = new PacketRing(DEVICE_WRITE_BUFFERS, Ipv4UdpPacket.HEADER_LENGTH + DNS_MAXIMUM_RESPONSE_SIZE);
+    /* The queries waiting for a response, as read from the device; times are elapsedRealtime() */
+    private final UpstreamQueryTable dnsIn = new UpstreamQueryTable(DNS_MAXIMUM_WAITING, DNS_MAXIMUM_RETRANSMITTED_SIZE, DNS_TIMEOUT_SEC * 1000, DNS_RETRANSMIT_MILLIS, new SecureRandom(), SystemClock.elapsedRealtime());
+    /* Protected once, and shared by the queries; retired sockets linger until their queries time out */
+    private final UpstreamSocketPool upstreams = new UpstreamSocketPool(UPSTREAM_SOCKETS, UPSTREAM_QUERIES_PER_SOCKET, DNS_TIMEOUT_SEC * 1000, new UpstreamSocketPool.SocketFactory() {
+        @Override
+        public DatagramSocket create() throws IOException {
+            // Packets to be sent to the real DNS server will need to be protected from the VPN
+            DatagramSocket socket = new DatagramSocket();
+            socketProtector.protect(socket);
+            pollGroup.add(socket);
+            return socket;
+        }
+
         @Override
-        protected boolean removeEldestEntry(Map.Entry<DatagramSocket, TimedValue<IpV4Packet>> eldest) {
-            boolean timeout = eldest.getValue().ageSeconds() > DNS_TIMEOUT_SEC;
-            boolean overflow = size() > DNS_MAXIMUM_WAITING;
-            if (timeout || overflow) {
-                Log.d(TAG, "removeEldestEntry: Removing entry due to reason timeout=" + timeout + ", overflow=" + overflow);
-                eldest.getKey().close();
-                return true;
+        public void close(DatagramSocket socket) {
+            pollGroup.remove(socket);
+            socket.close();
+        }
+    });
+
+    /* Sends queries without a response again, from the timeouts in runVpn() */
+    private final UpstreamQueryTable.Listener retransmitter = new UpstreamQueryTable.Listener() {
+        @Override
+        public void retransmit(int slot) {
+            UpstreamSocketPool.Upstream upstream = upstreams.get(dnsIn.getUpstreamId(slot));
+            if (upstream == null) {
+                return;
+            }
+            // The table keeps the query as it was sent, with the new transaction id.
+            dnsIn.getRequest(slot, pendingPacket);
+            try {
+                upstreamPacket.setData(dnsIn.getQueryData(), dnsIn.getQueryOffset(slot), dnsIn.getQueryLength(slot));
+                upstreamPacket.setAddress(pendingPacket.getDestinationInetAddress());
+                upstreamPacket.setPort(pendingPacket.getDestinationPort());
+                upstream.socket.send(upstreamPacket);
+            } catch (IOException e) {
+                Log.w(TAG, "retransmit: Could not send packet to upstream", e);
             }
-            return false;
         }
     };
 
+    /* Rebuilds the blocked hosts in the background while the thread runs, see reloadBlockedHosts() */
+    private volatile ScheduledExecutorService reloadExecutor = null;
+    private final AtomicBoolean reloadPending = new AtomicBoolean(false);
+
     private Thread thread = null;
     private FileDescriptor blockfd = null;
     private FileDescriptor interruptFd = null;
-    private Set<String> blockedHosts = new HashSet<>();
+    /* The descriptors of the current connection, kept up to date as sockets come and go */
+    private PollGroup pollGroup = null;
+    /* The workers of the current connection, if any, the jobs not handed to them, and the pipe
+     * they wake the VPN thread with */
+    private PacketPipeline<QueryDecider.Job> pipeline = null;
+    private final ArrayDeque<QueryDecider.Job> freeJobs = new ArrayDeque<>();
+    private FileDescriptor wakeReadFd = null;
+    private FileDescriptor wakeWriteFd = null;
+    /* A job the queue of its worker had no room for; the device is not read until it is
+     * submitted, so that no later query of its flow overtakes it */
+    private QueryDecider.Job stalledJob = null;
+    /* Immutable snapshot, replaced as a whole when the hosts change */
+    private volatile HostIndex blockedHosts = HostIndex.empty();
+    /* Immutable, replaced along with the hosts */
+    private volatile BlockResponse blockResponse = BlockResponse.NXDOMAIN;
+    /* Reused for the queries read from the device, on the VPN thread only */
+    private final QueryDecider decider = new QueryDecider(new QueryDecider.BlockedHosts() {
+        @Override
+        public HostIndex get() {
+            return blockedHosts;
+        }
+
+        @Override
+        public BlockResponse getResponse() {
+            return blockResponse;
+        }
+    }, false);
+    private final Ipv4UdpPacket pendingPacket = new Ipv4UdpPacket();
+    private final DatagramPacket upstreamPacket = new DatagramPacket(new byte[0], 0);
+
+    // Device statistics of the current connection
+    private long deviceWakeups;
+    private long devicePacketsRead;
+    private long devicePacketsWritten;
+    private int mostDevicePacketsPerWakeup;
+    /* Shows how well the responses to blocked queries are cached */
+    private final RepeatedQueryCounter blockedQueries = new RepeatedQueryCounter(REPEATS_TRACKED_NAMES, REPEATS_WINDOW_MILLIS);
+
     private BlockedHostProvider blockedHostProvider;
 
     AdVpnThread(StatusObserver statusObserver, SocketProtector socketProtector, VpnFileDescriptorProvider vpnFileDescriptorProvider, BlockedHostProvider blockedHostProvider) {
@@ -161,11 +237,58 @@ class AdVpnThread implements Runnable {
         }
     }
 
+    /**
+     * Rebuilds the blocked hosts on a background thread and swaps them into the running
+     * thread, without interrupting the VPN. The rebuild starts after a short delay, and
+     * requests made until then, such as for settings saved back to back, are coalesced into
+     * it. Does nothing while the thread is not running.
+     */
+    void reloadBlockedHosts() {
+        ScheduledExecutorService executor = reloadExecutor;
+        if (executor == null) {
+            return;
+        }
+        if (!reloadPending.compareAndSet(false, true)) {
+            Log.d(TAG, "reloadBlockedHosts: Reload already pending");
+            return;
+        }
+
+        try {
+            executor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    reloadPending.set(false);
+                    try {
+                        HostIndex newBlockedHosts = blockedHostProvider.retrieveBlockedHosts();
+                        Log.i(TAG, "reloadBlockedHosts: Swapping in " + newBlockedHosts.size() + " hosts");
+                        blockedHosts = newBlockedHosts;
+                        blockResponse = blockedHostProvider.retrieveBlockResponse();
+                    } catch (InterruptedException e) {
+                        Log.w(TAG, "reloadBlockedHosts: Interrupted", e);
+                    }
+                }
+            }, RELOAD_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // The thread stopped in the meantime.
+            reloadPending.set(false);
+        }
+    }
+
     @Override
     public synchronized void run() {
+        reloadExecutor = Executors.newSingleThreadScheduledExecutor();
+        try {
+            runUntilStopped();
+        } finally {
+            reloadExecutor.shutdownNow();
+            reloadExecutor = null;
+        }
+    }
 
+    private void runUntilStopped() {
         try {
             blockedHosts = blockedHostProvider.retrieveBlockedHosts();
+            blockResponse = blockedHostProvider.retrieveBlockResponse();
         } catch (InterruptedException e) {
             return;
         }
@@ -210,7 +333,7 @@ class AdVpnThread implements Runnable {
 
     private void runVpn() throws InterruptedException, ErrnoException, IOException, VpnNetworkException {
         // Allocate the buffer for a single packet.
-        byte[] packet = new byte[32767];
+        QueryDecider.Job deviceJob = new QueryDecider.Job(ByteBuffer.allocate(32767));
 
         // A pipe we can interrupt the poll() call with by closing the interruptFd end
         FileDescriptor[] pipes = Os.pipe();
@@ -219,177 +342,435 @@ class AdVpnThread implements Runnable {
 
         // Authenticate and configure the virtual network interface.
         try (ParcelFileDescriptor pfd = vpnFileDescriptorProvider.retrieve()) {
-            // Read and write views of the tun device
-            FileInputStream inFd = new FileInputStream(pfd.getFileDescriptor());
-            FileOutputStream outFd = new FileOutputStream(pfd.getFileDescriptor());
+            // The tun device, in non-blocking mode, see VpnServiceVpnFileDescriptorProvider
+            FileDescriptor tunFd = pfd.getFileDescriptor();
+            int workers = blockedHostProvider.retrieveDecisionWorkers();
+            if (workers > 0) {
+                Log.d(TAG, "runVpn: Deciding about queries on " + workers + " workers");
+                startPipeline(workers);
+            }
+            pollGroup = new PollGroup(tunFd, blockfd, wakeReadFd);
 
             // Now we are connected. Set the flag and show the message.
             statusObserver.running();
 
             // We keep forwarding packets till something goes wrong.
-            long packetCount = 0;
-            while (readPacket(inFd, outFd, packet)) {
-                packetCount++;
+            deviceWakeups = 0;
+            devicePacketsRead = 0;
+            devicePacketsWritten = 0;
+            mostDevicePacketsPerWakeup = 0;
+            blockedQueries.clear();
+            long nextRepeatsLog = SystemClock.elapsedRealtime() + REPEATS_LOG_INTERVAL_MILLIS;
+            long pollCount = 0;
+            while (readPacket(tunFd, deviceJob)) {
+                pollCount++;
+                if (pipeline != null && handleDecidedRequests() > 0) {
+                    writeToDevice(tunFd);
+                }
+                long now = SystemClock.elapsedRealtime();
+                dnsIn.expire(now, retransmitter);
+                upstreams.closeRetired(now);
+                if (now >= nextRepeatsLog) {
+                    logBlockedQueries();
+                    nextRepeatsLog = now + REPEATS_LOG_INTERVAL_MILLIS;
+                }
+            }
+            Log.d(TAG, "Handled a total of " + pollCount + " polls, " + deviceWakeups + " device wakeups, "
+                    + devicePacketsRead + " packets read, " + devicePacketsWritten + " packets written, at most "
+                    + mostDevicePacketsPerWakeup + " packets per wakeup, " + dnsIn.getRetransmittedQueries() + " queries retransmitted, "
+                    + dnsIn.getDroppedQueries() + " queries dropped unanswered");
+            logBlockedQueries();
+            // The workers count the answers of their filters, complete once they have stopped.
+            stopPipeline();
+            BloomFilter filter = blockedHosts.getFilter();
+            if (filter != null) {
+                Log.d(TAG, "Host filter: " + filter.getNegatives() + " negatives, " + filter.getPositives() + " positives, " + filter.getFalsePositives() + " false positives");
             }
-            Log.d(TAG, "Handled a total of " + packetCount);
         } finally {
+            stopPipeline();
+            upstreams.close();
+            dnsIn.clear();
+            if (pollGroup != null) {
+                pollGroup.close();
+                pollGroup = null;
+            }
             blockfd = FileHelper.closeOrWarn(blockfd, TAG, "runVpn: Could not close blockFd");
         }
     }
 
-    private boolean readPacket(final FileInputStream inFd, final FileOutputStream outFd, final byte[] packet) throws IOException, ErrnoException, InterruptedException, VpnNetworkException {
-        PollGroup pollGroup = new PollGroup(inFd.getFD(), blockfd, dnsIn.keySet(), !deviceWrites.isEmpty());
+    /**
+     * Logs the queries blocked since connecting. The counts are cumulative, so that successive
+     * lines show how the share of repeated queries develops.
+     */
+    private void logBlockedQueries() {
+        Log.d(TAG, "Blocked " + blockedQueries.getQueries() + " queries, " + blockedQueries.getRepeatedQueries()
+                + " of them repeating one within " + REPEATS_WINDOW_MILLIS / 1000 + " seconds");
+    }
+
+    /**
+     * Starts the workers, with a queue in each direction that holds all jobs.
+     */
+    private void startPipeline(int workers) throws ErrnoException {
+        FileDescriptor[] pipes = Os.pipe();
+        wakeReadFd = pipes[0];
+        wakeWriteFd = pipes[1];
+        final FileDescriptor wakeFd = wakeWriteFd;
+        final byte[] wakeByte = new byte[1];
+
+        for (int i = 0; i < DECISION_JOBS; i++) {
+            freeJobs.push(new QueryDecider.Job(ByteBuffer.allocate(DECISION_PACKET_SIZE)));
+        }
+        pipeline = new PacketPipeline<>(workers, DECISION_JOBS, new PacketPipeline.StageFactory<QueryDecider.Job>() {
+            @Override
+            public PacketPipeline.Stage<QueryDecider.Job> create() {
+                return new QueryDecider(new QueryDecider.BlockedHosts() {
+                    @Override
+                    public HostIndex get() {
+                        return blockedHosts;
+                    }
+
+                    @Override
+                    public BlockResponse getResponse() {
+                        return blockResponse;
+                    }
+                }, true);
+            }
+        }, new PacketPipeline.Wakeup() {
+            @Override
+            public void wakeup() {
+                try {
+                    Os.write(wakeFd, wakeByte, 0, 1);
+                } catch (ErrnoException | InterruptedIOException e) {
+                    Log.w(TAG, "wakeup: Could not wake the VPN thread", e);
+                }
+            }
+        });
+        pipeline.start();
+    }
+
+    private void stopPipeline() throws InterruptedException {
+        if (pipeline != null) {
+            pipeline.stop();
+            pipeline = null;
+        }
+        freeJobs.clear();
+        stalledJob = null;
+        wakeReadFd = FileHelper.closeOrWarn(wakeReadFd, TAG, "stopPipeline: Could not close wakeReadFd");
+        wakeWriteFd = FileHelper.closeOrWarn(wakeWriteFd, TAG, "stopPipeline: Could not close wakeWriteFd");
+    }
+
+    private boolean readPacket(final FileDescriptor tunFd, final QueryDecider.Job deviceJob) throws IOException, ErrnoException, InterruptedException, VpnNetworkException {
+        // Without a free job, or while a job waits for its worker, the device is read again once
+        // the workers hand jobs back.
+        boolean hasJob = pipeline == null || (stalledJob == null && !freeJobs.isEmpty());
+        pollGroup.setEvents(!deviceWrites.isFull() && hasJob, !deviceWrites.isFull(), !deviceWrites.isEmpty());
 
         try {
-            return pollGroup.poll(new PollGroup.ReadySocketCallback() {
+            return pollGroup.poll(pollTimeout(), new PollGroup.ReadySocketCallback() {
                 @Override
                 public void ready(DatagramSocket socket) throws IOException {
-                    IpV4Packet parsedPacket = dnsIn.get(socket).get();
-                    dnsIn.remove(socket);
-
-                    byte[] datagramData = new byte[1024];
-                    DatagramPacket replyPacket = new DatagramPacket(datagramData, datagramData.length);
-                    socket.receive(replyPacket);
-                    AdVpnThread.this.handleDnsResponse(parsedPacket, datagramData);
+                    // The response stays in the socket until there is room for it.
+                    ByteBuffer buffer = deviceWrites.claim();
+                    if (buffer == null) {
+                        return;
+                    }
+                    UpstreamSocketPool.Upstream upstream = upstreams.get(socket);
+
+                    // Receive the response behind the space for its headers, and add them in place.
+                    byte[] data = buffer.array();
+                    upstreamPacket.setData(data, Ipv4UdpPacket.HEADER_LENGTH, DNS_MAXIMUM_RESPONSE_SIZE);
+                    try {
+                        socket.receive(upstreamPacket);
+                    } catch (IOException e) {
+                        // Its queries time out; new ones go to a new socket.
+                        Log.w(TAG, "ready: Could not receive from upstream, retiring socket", e);
+                        upstreams.retire(upstream, SystemClock.elapsedRealtime());
+                        return;
+                    }
+                    if (upstreamPacket.getLength() < 2) {
+                        return;
+                    }
 
-                    socket.close();
+                    // The query is found by the transaction id it was sent with.
+                    int id = ((data[Ipv4UdpPacket.HEADER_LENGTH] & 0xff) << 8) | (data[Ipv4UdpPacket.HEADER_LENGTH + 1] & 0xff);
+                    int slot = dnsIn.get(upstream.id, id);
+                    if (slot < 0) {
+                        Log.d(TAG, "ready: Dropping response to unknown or timed out query");
+                        return;
+                    }
+                    if (upstreamPacket.getPort() != dnsIn.getServerPort(slot)
+                            || addressOf(upstreamPacket.getAddress()) != dnsIn.getServerAddress(slot)) {
+                        Log.w(TAG, "ready: Dropping response from " + upstreamPacket.getAddress() + " to a query for another server");
+                        return;
+                    }
+                    int originalId = dnsIn.getOriginalId(slot);
+                    dnsIn.getRequest(slot, pendingPacket);
+                    dnsIn.remove(slot);
+
+                    data[Ipv4UdpPacket.HEADER_LENGTH] = (byte) (originalId >> 8);
+                    data[Ipv4UdpPacket.HEADER_LENGTH + 1] = (byte) originalId;
+                    pendingPacket.writeResponse(data, Ipv4UdpPacket.HEADER_LENGTH, upstreamPacket.getLength(), buffer);
+                    buffer.flip();
+                    deviceWrites.commit();
                 }
             }, new PollGroup.ResponseCallback() {
                 @Override
                 public void response(StructPollfd fd) throws SocketException, PollGroup.PollGroupException {
-                    if ((fd.revents & OsConstants.POLLOUT) != 0) {
-                        try {
-                            AdVpnThread.this.writeToDevice(outFd);
-                        } catch (VpnNetworkException e) {
-                            throw new PollGroup.PollGroupException(e);
-                        }
+                    if ((fd.revents & (OsConstants.POLLIN | OsConstants.POLLOUT)) == 0) {
+                        return;
                     }
-
-                    if ((fd.revents & OsConstants.POLLIN) != 0) {
-                        try {
-                            AdVpnThread.this.readPacketFromDevice(inFd, packet);
-                        } catch (VpnNetworkException e) {
-                            throw new PollGroup.PollGroupException(e);
+                    try {
+                        int count = AdVpnThread.this.writeToDevice(tunFd);
+                        if ((fd.revents & OsConstants.POLLIN) != 0) {
+                            count += AdVpnThread.this.readPacketsFromDevice(tunFd, deviceJob);
+                            // Answers to blocked queries can go out right away.
+                            count += AdVpnThread.this.writeToDevice(tunFd);
                         }
+                        deviceWakeups++;
+                        mostDevicePacketsPerWakeup = Math.max(mostDevicePacketsPerWakeup, count);
+                    } catch (VpnNetworkException e) {
+                        throw new PollGroup.PollGroupException(e);
                     }
                 }
             });
         } catch (PollGroup.PollGroupException e) {
-            e.printStackTrace();
             throw new VpnNetworkException("Poll failed", e);
         }
     }
 
-    private void writeToDevice(FileOutputStream outFd) throws VpnNetworkException {
-        try {
-            outFd.write(deviceWrites.poll());
-        } catch (IOException e) {
-            throw new VpnNetworkException("Outgoing VPN output stream closed");
+    /**
+     * @return The time until the next query or socket is due to expire, or -1 to wait for
+     * packets only
+     */
+    private int pollTimeout() {
+        long next = dnsIn.nextExpiry();
+        long nextClose = upstreams.nextClose();
+        if (next < 0 || (nextClose >= 0 && nextClose < next)) {
+            next = nextClose;
+        }
+        if (next < 0) {
+            return -1;
         }
+        return (int) Math.max(0, next - SystemClock.elapsedRealtime());
     }
 
-    private void readPacketFromDevice(FileInputStream inputStream, byte[] packet) throws VpnNetworkException, SocketException {
-        // Read the outgoing packet from the input stream.
-        int length;
+    /**
+     * Writes queued packets until none are left, the device would block, or the limit per
+     * wakeup is reached.
+     *
+     * @return The number of packets written
+     */
+    private int writeToDevice(FileDescriptor tunFd) throws VpnNetworkException {
+        int count = 0;
+        while (!deviceWrites.isEmpty() && count < DEVICE_PACKETS_PER_WAKEUP) {
+            ByteBuffer packet = deviceWrites.peek();
+            try {
+                Os.write(tunFd, packet.array(), packet.position(), packet.remaining());
+            } catch (ErrnoException e) {
+                if (e.errno == OsConstants.EAGAIN) {
+                    break;
+                }
+                throw new VpnNetworkException("Outgoing VPN output stream closed", e);
+            } catch (InterruptedIOException e) {
+                throw new VpnNetworkException("Outgoing VPN output stream closed", e);
+            }
+            deviceWrites.remove();
+            count++;
+        }
+        devicePacketsWritten += count;
+        return count;
+    }
 
-        try {
-            length = inputStream.read(packet);
+    /**
+     * Reads and handles packets until none are left, there is no room for the answers to
+     * blocked queries, or the limit per wakeup is reached.
+     *
+     * @return The number of packets read
+     */
+    private int readPacketsFromDevice(FileDescriptor tunFd, QueryDecider.Job deviceJob) throws VpnNetworkException {
+        int count = 0;
+        // Responses to sockets may have filled up the writes; the packets wait then.
+        while (!deviceWrites.isFull() && count < DEVICE_PACKETS_PER_WAKEUP) {
+            // With workers, each packet is read into a job of its own, while there are any.
+            QueryDecider.Job job = pipeline == null ? deviceJob : freeJobs.peek();
+            if (job == null) {
+                break;
+            }
+            ByteBuffer packet = job.packet;
+            int length;
+            try {
+                length = Os.read(tunFd, packet.array(), 0, packet.capacity());
+            } catch (ErrnoException e) {
+                if (e.errno == OsConstants.EAGAIN) {
+                    break;
+                }
+                throw new VpnNetworkException("Cannot read from device", e);
+            } catch (InterruptedIOException e) {
+                throw new VpnNetworkException("Cannot read from device", e);
+            }
             if (length == 0) {
                 // TODO: Possibly change to exception
                 Log.w(TAG, "Got empty packet!");
-                return;
+                break;
             }
-        } catch (IOException e) {
-            throw new VpnNetworkException("Cannot read from device", e);
-        }
-
 
-        handleDnsRequest(Arrays.copyOfRange(packet, 0, length));
+            count++;
+            packet.clear();
+            packet.limit(length);
+            if (pipeline == null) {
+                decider.process(job);
+                handleDnsRequest(job);
+            } else if (!job.parseRequest()) {
+                // Not part of a flow; the decider says why.
+                decider.process(job);
+                handleDnsRequest(job);
+            } else {
+                freeJobs.pop();
+                if (!pipeline.submit(job.flow(), job)) {
+                    // There are as many jobs as each queue holds, so there should be room. If
+                    // not, the job waits until its worker has taken some, see
+                    // handleDecidedRequests().
+                    Log.w(TAG, "readPacketsFromDevice: Queue of the worker is full, waiting for it");
+                    stalledJob = job;
+                    break;
+                }
+            }
+        }
+        devicePacketsRead += count;
+        return count;
     }
 
-    private void handleDnsRequest(byte[] packet) throws VpnNetworkException {
+    private void handleDnsRequest(QueryDecider.Job job) throws VpnNetworkException {
+        switch (job.verdict) {
+            case QueryDecider.DISCARD:
+                Log.i(TAG, "handleDnsRequest: Discarding " + job.reason + " " + describePacket(job.packet));
+                break;
+            case QueryDecider.ALLOW:
+                sendDnsRequest(job);
+                break;
+            case QueryDecider.BLOCK:
+                Log.i(TAG, "handleDnsRequest: DNS Name " + job.name + " Blocked!");
+                blockedQueries.count(job.name, SystemClock.elapsedRealtime());
+                if (job.response != null) {
+                    handleDnsResponse(job.request, job.response, job.response.length);
+                } else {
+                    handleBlockResponse(job);
+                }
+                break;
+        }
+    }
 
-        IpV4Packet parsedPacket;
-        try {
-            parsedPacket = IpV4Packet.newPacket(packet, 0, packet.length);
-            if (!(parsedPacket.getPayload() instanceof UdpPacket)) {
-                Log.i(TAG, "handleDnsRequest: Discarding unknown packet type " + parsedPacket.getPayload());
-                return;
-            }
-        } catch (IllegalRawDataException e) {
-            Log.i(TAG, "handleDnsRequest: Discarding invalid IPv4 packet", e);
+    private void sendDnsRequest(QueryDecider.Job job) throws VpnNetworkException {
+        Ipv4UdpPacket requestPacket = job.request;
+        ByteBuffer packet = job.packet;
+        byte[] data = packet.array();
+        int dnsOffset = requestPacket.getPayloadOffset();
+        int dnsLength = requestPacket.getPayloadLength();
+        InetAddress destination = requestPacket.getDestinationInetAddress();
+        Log.i(TAG, "handleDnsRequest: DNS Name " + job.name + " Allowed, sending to " + destination);
+        if (dnsLength < 2) {
             return;
         }
-
-        UdpPacket parsedUdp = (UdpPacket) parsedPacket.getPayload();
-        byte[] dnsRawData = (parsedUdp).getPayload().getRawData();
-        Message dnsMsg;
+        long now = SystemClock.elapsedRealtime();
+        UpstreamSocketPool.Upstream upstream = null;
+        int slot = -1;
         try {
-            dnsMsg = new Message(dnsRawData);
-            if (dnsMsg.getQuestion() == null) {
-                Log.i(TAG, "handleDnsRequest: Discarding DNS packet with no query " + dnsMsg);
-                return;
-            }
+            upstream = upstreams.acquire(now);
+
+            // The query goes out with a transaction id that is unique on the shared socket.
+            slot = dnsIn.add(upstream.id, requestPacket, now);
+            int id = dnsIn.getId(slot);
+            data[dnsOffset] = (byte) (id >> 8);
+            data[dnsOffset + 1] = (byte) id;
+
+            upstreamPacket.setData(data, dnsOffset, dnsLength);
+            upstreamPacket.setAddress(destination);
+            upstreamPacket.setPort(requestPacket.getDestinationPort());
+            upstream.socket.send(upstreamPacket);
         } catch (IOException e) {
-            Log.i(TAG, "handleDnsRequest: Discarding non-DNS or invalid packet", e);
-            return;
+            if (slot >= 0) {
+                dnsIn.remove(slot);
+            }
+            if (upstream != null) {
+                upstreams.retire(upstream, now);
+            }
+            if (e.getCause() instanceof ErrnoException) {
+                ErrnoException errnoExc = (ErrnoException) e.getCause();
+                if ((errnoExc.errno == OsConstants.ENETUNREACH) || (errnoExc.errno == OsConstants.EPERM)) {
+                    throw new VpnNetworkException("Cannot send message:", e);
+                }
+            }
+            Log.w(TAG, "handleDnsRequest: Could not send packet to upstream", e);
         }
+    }
 
-        String dnsQueryName = dnsMsg.getQuestion().getName().toString(true);
-
-        if (!blockedHosts.contains(dnsQueryName.toLowerCase(Locale.ENGLISH))) {
-            Log.i(TAG, "handleDnsRequest: DNS Name " + dnsQueryName + " Allowed, sending to " + parsedPacket.getHeader().getDstAddr());
-            DatagramPacket outPacket = new DatagramPacket(dnsRawData, 0, dnsRawData.length, parsedPacket.getHeader().getDstAddr(), parsedUdp.getHeader().getDstPort().valueAsInt());
-            DatagramSocket dnsSocket = null;
-            try {
-                // Packets to be sent to the real DNS server will need to be protected from the VPN
-                dnsSocket = new DatagramSocket();
+    /**
+     * Handles the jobs the workers have decided about, while there is room for the answers to
+     * blocked queries, and submits a stalled job again, as its worker has made progress.
+     *
+     * @return The number of jobs handled
+     */
+    private int handleDecidedRequests() throws VpnNetworkException {
+        int count = 0;
+        QueryDecider.Job job;
+        while (!deviceWrites.isFull() && (job = pipeline.poll()) != null) {
+            handleDnsRequest(job);
+            freeJobs.push(job);
+            count++;
+        }
+        if (stalledJob != null && pipeline.submit(stalledJob.flow(), stalledJob)) {
+            stalledJob = null;
+        }
+        return count;
+    }
 
-                socketProtector.protect(dnsSocket);
+    /**
+     * Describes a packet the fast path cannot handle, with pcap4j, for the log.
+     */
+    private static String describePacket(ByteBuffer packet) {
+        try {
+            return IpV4Packet.newPacket(packet.array(), packet.position(), packet.remaining()).toString();
+        } catch (IllegalRawDataException e) {
+            return "(invalid IPv4 packet: " + e.getMessage() + ")";
+        }
+    }
 
-                dnsSocket.send(outPacket);
+    private void handleDnsResponse(Ipv4UdpPacket request, byte[] response, int length) {
+        ByteBuffer buffer = deviceWrites.claim();
+        if (buffer == null || Ipv4UdpPacket.HEADER_LENGTH + length > buffer.capacity()) {
+            Log.w(TAG, "handleDnsResponse: Dropping response of " + length + " bytes, " + deviceWrites.size() + " packets queued");
+            return;
+        }
+        request.writeResponse(response, 0, length, buffer);
+        buffer.flip();
+        deviceWrites.commit();
+    }
 
-                dnsIn.put(dnsSocket, new TimedValue<>(parsedPacket));
-            } catch (IOException e) {
-                FileHelper.closeOrWarn(dnsSocket, TAG, "handleDnsRequest: Cannot close socket in error");
-                if (e.getCause() instanceof ErrnoException) {
-                    ErrnoException errnoExc = (ErrnoException) e.getCause();
-                    if ((errnoExc.errno == OsConstants.ENETUNREACH) || (errnoExc.errno == OsConstants.EPERM)) {
-                        throw new VpnNetworkException("Cannot send message:", e);
-                    }
-                }
-                Log.w(TAG, "handleDnsRequest: Could not send packet to upstream", e);
-            }
-        } else {
-            Log.i(TAG, "handleDnsRequest: DNS Name " + dnsQueryName + " Blocked!");
-            dnsMsg.getHeader().setFlag(Flags.QR);
-            dnsMsg.getHeader().setRcode(Rcode.NXDOMAIN);
-            handleDnsResponse(parsedPacket, dnsMsg.toWire());
+    /**
+     * Writes the response to a blocked query from its template, around the question of the
+     * query, see {@link BlockResponse}.
+     */
+    private void handleBlockResponse(QueryDecider.Job job) {
+        ByteBuffer buffer = deviceWrites.claim();
+        int length = job.responseKeep + job.responseRecords.length;
+        if (buffer == null || Ipv4UdpPacket.HEADER_LENGTH + length > buffer.capacity()) {
+            Log.w(TAG, "handleBlockResponse: Dropping response of " + length + " bytes, " + deviceWrites.size() + " packets queued");
+            return;
         }
+        job.request.writeResponse(job.responseHead, job.responseKeep, job.responseRecords, 0, job.responseRecords.length, buffer);
+        buffer.flip();
+        deviceWrites.commit();
     }
 
-    private void handleDnsResponse(IpV4Packet parsedPacket, byte[] response) {
-        UdpPacket udpOutPacket = (UdpPacket) parsedPacket.getPayload();
-        IpV4Packet ipOutPacket = new IpV4Packet.Builder(parsedPacket)
-                .srcAddr(parsedPacket.getHeader().getDstAddr())
-                .dstAddr(parsedPacket.getHeader().getSrcAddr())
-                .correctChecksumAtBuild(true)
-                .correctLengthAtBuild(true)
-                .payloadBuilder(
-                        new UdpPacket.Builder(udpOutPacket)
-                                .srcPort(udpOutPacket.getHeader().getDstPort())
-                                .dstPort(udpOutPacket.getHeader().getSrcPort())
-                                .srcAddr(parsedPacket.getHeader().getDstAddr())
-                                .dstAddr(parsedPacket.getHeader().getSrcAddr())
-                                .correctChecksumAtBuild(true)
-                                .correctLengthAtBuild(true)
-                                .payloadBuilder(
-                                        new UnknownPacket.Builder()
-                                                .rawData(response)
-                                )
-                ).build();
-
-        deviceWrites.add(ipOutPacket.getRawData());
+    /**
+     * @return The IPv4 address in network byte order, as {@link Ipv4UdpPacket} has it
+     */
+    private static int addressOf(InetAddress address) {
+        byte[] bytes = address.getAddress();
+        if (bytes.length != 4) {
+            return 0;
+        }
+        return ((bytes[0] & 0xff) << 24) | ((bytes[1] & 0xff) << 16) | ((bytes[2] & 0xff) << 8) | (bytes[3] & 0xff);
     }
 
     void restartThread() {
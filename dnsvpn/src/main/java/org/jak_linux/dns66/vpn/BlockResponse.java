@@ -0,0 +1,256 @@
+package org.jak_linux.dns66.vpn;
+
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Section;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+/**
+ * The answer to a blocked query, built from a template rather than by parsing and serializing
+ * the query.
+ * <p>
+ * A response repeats the header and the question of the query, as measured by
+ * {@link DnsQueryName}, and has the flags and counts of the response written over the header.
+ * The records of the response, if any, follow the question; they are precomputed for each kind
+ * of response, and only refer to the name of the question by a compression pointer, so they
+ * fit every query. Additional records of the query, such as an EDNS OPT record, are dropped, which
+ * a responder without EDNS support may do.
+ * <p>
+ * A bare name error is not cached by resolvers and apps, which then ask again within seconds.
+ * The other kinds of responses can be cached for a time to live: a name error or an empty
+ * answer with an SOA record, whose minimum field is the negative caching time of RFC 2308, or
+ * an address nothing listens on for A and AAAA queries. The SOA record makes the name asked for
+ * the apex of its own zone, so the negative answer is cached for that name only, and never
+ * against a zone containing other names.
+ * <p>
+ * Instances are immutable, and can be shared between threads.
+ */
+class BlockResponse {
+    static final int HEADER_LENGTH = 12;
+
+    static final int RCODE_NOERROR = 0;
+    static final int RCODE_NXDOMAIN = 3;
+
+    static final int TYPE_A = 1;
+    static final int TYPE_SOA = 6;
+    static final int TYPE_AAAA = 28;
+    private static final int CLASS_IN = 1;
+
+    private static final int FLAG_QR = 0x80;
+    private static final int FLAG_RD = 0x01;
+    private static final int FLAG_RA = 0x80;
+
+    /* A pointer to the name of the question, right after the header */
+    private static final int QUESTION_NAME_POINTER = 0xc000 | HEADER_LENGTH;
+    /* The names in the SOA record, below a domain reserved for invalid names */
+    private static final String SOA_MNAME = "dns66.invalid";
+    private static final String SOA_RNAME = "hostmaster.dns66.invalid";
+
+    /**
+     * A bare name error, without records
+     */
+    static final BlockResponse NXDOMAIN = new BlockResponse(new Template(RCODE_NXDOMAIN, 0, 0, new byte[0]));
+
+    /**
+     * The response to queries of some types.
+     */
+    private static class Template {
+        final int rcode;
+        final int answerCount;
+        final int authorityCount;
+        final byte[] records;
+
+        Template(int rcode, int answerCount, int authorityCount, byte[] records) {
+            this.rcode = rcode;
+            this.answerCount = answerCount;
+            this.authorityCount = authorityCount;
+            this.records = records;
+        }
+    }
+
+    private final Template a;
+    private final Template aaaa;
+    private final Template other;
+
+    private BlockResponse(Template all) {
+        this(all, all, all);
+    }
+
+    private BlockResponse(Template a, Template aaaa, Template other) {
+        this.a = a;
+        this.aaaa = aaaa;
+        this.other = other;
+    }
+
+    /**
+     * @return A name error with an SOA record, cached for the given time
+     */
+    static BlockResponse nxdomainWithSoa(int ttl) {
+        return new BlockResponse(new Template(RCODE_NXDOMAIN, 0, 1, soa(ttl)));
+    }
+
+    /**
+     * @return An empty answer with an SOA record, cached for the given time
+     */
+    static BlockResponse nodata(int ttl) {
+        return new BlockResponse(new Template(RCODE_NOERROR, 0, 1, soa(ttl)));
+    }
+
+    /**
+     * @return An answer of 0.0.0.0 or ::, cached for the given time; queries of other types get
+     * an empty answer
+     */
+    static BlockResponse sinkhole(int ttl) {
+        return new BlockResponse(
+                new Template(RCODE_NOERROR, 1, 0, address(ttl, TYPE_A, 4)),
+                new Template(RCODE_NOERROR, 1, 0, address(ttl, TYPE_AAAA, 16)),
+                new Template(RCODE_NOERROR, 0, 1, soa(ttl)));
+    }
+
+    /**
+     * @return The response selected by a configuration
+     */
+    static BlockResponse forConfiguration(Configuration.Blocking blocking) {
+        int ttl = Math.max(0, blocking.ttl);
+        switch (blocking.response) {
+            case Configuration.Blocking.RESPONSE_NXDOMAIN_SOA:
+                return nxdomainWithSoa(ttl);
+            case Configuration.Blocking.RESPONSE_NODATA:
+                return nodata(ttl);
+            case Configuration.Blocking.RESPONSE_SINKHOLE:
+                return sinkhole(ttl);
+            default:
+                return NXDOMAIN;
+        }
+    }
+
+    /**
+     * Writes the header of the response to a query.
+     *
+     * @param query  A buffer holding the query, which has a single question
+     * @param offset The offset of the query in the buffer
+     * @param type   The type asked for
+     * @param head   Receives the {@link #HEADER_LENGTH} bytes of the header
+     */
+    void writeHeader(byte[] query, int offset, int type, byte[] head) {
+        Template template = template(type);
+        // The transaction id stays; the opcode of a query is 0.
+        head[0] = query[offset];
+        head[1] = query[offset + 1];
+        head[2] = (byte) (FLAG_QR | (query[offset + 2] & FLAG_RD));
+        head[3] = (byte) (FLAG_RA | template.rcode);
+        head[4] = 0;
+        head[5] = 1;
+        head[6] = (byte) (template.answerCount >> 8);
+        head[7] = (byte) template.answerCount;
+        head[8] = (byte) (template.authorityCount >> 8);
+        head[9] = (byte) template.authorityCount;
+        head[10] = 0;
+        head[11] = 0;
+    }
+
+    /**
+     * Builds the whole response to a query that {@link DnsQueryName} could not handle, from its
+     * first question.
+     *
+     * @param query   A buffer holding the query
+     * @param offset  The offset of the query in the buffer
+     * @param message The query, as parsed by dnsjava
+     * @return The DNS response
+     */
+    byte[] toWire(byte[] query, int offset, Message message) {
+        // The name of the only question is written right after the header, uncompressed, so
+        // the records can point to it.
+        Message question = new Message(message.getHeader().getID());
+        question.addRecord(message.getQuestion(), Section.QUESTION);
+        byte[] wire = question.toWire();
+
+        int type = message.getQuestion().getType();
+        byte[] records = getRecords(type);
+        byte[] response = Arrays.copyOf(wire, wire.length + records.length);
+        byte[] head = new byte[HEADER_LENGTH];
+        writeHeader(query, offset, type, head);
+        System.arraycopy(head, 0, response, 0, HEADER_LENGTH);
+        System.arraycopy(records, 0, response, wire.length, records.length);
+        return response;
+    }
+
+    /**
+     * @return The records following the question of a query of the given type; must not be
+     * modified
+     */
+    byte[] getRecords(int type) {
+        return template(type).records;
+    }
+
+    private Template template(int type) {
+        switch (type) {
+            case TYPE_A:
+                return a;
+            case TYPE_AAAA:
+                return aaaa;
+            default:
+                return other;
+        }
+    }
+
+    /**
+     * @return An A or AAAA record of the name of the question, with an address of zeros
+     */
+    private static byte[] address(int ttl, int type, int length) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeShort(out, QUESTION_NAME_POINTER);
+        writeShort(out, type);
+        writeShort(out, CLASS_IN);
+        writeInt(out, ttl);
+        writeShort(out, length);
+        for (int i = 0; i < length; i++)
+            out.write(0);
+        return out.toByteArray();
+    }
+
+    /**
+     * @return An SOA record of the name of the question, with a minimum of the given time to
+     * live
+     */
+    private static byte[] soa(int ttl) {
+        ByteArrayOutputStream rdata = new ByteArrayOutputStream();
+        writeName(rdata, SOA_MNAME);
+        writeName(rdata, SOA_RNAME);
+        writeInt(rdata, 1);         // serial
+        writeInt(rdata, 3600);      // refresh
+        writeInt(rdata, 600);       // retry
+        writeInt(rdata, 86400);     // expire
+        writeInt(rdata, ttl);       // minimum
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeShort(out, QUESTION_NAME_POINTER);
+        writeShort(out, TYPE_SOA);
+        writeShort(out, CLASS_IN);
+        writeInt(out, ttl);
+        writeShort(out, rdata.size());
+        byte[] bytes = rdata.toByteArray();
+        out.write(bytes, 0, bytes.length);
+        return out.toByteArray();
+    }
+
+    private static void writeName(ByteArrayOutputStream out, String name) {
+        for (String label : name.split("\\.")) {
+            out.write(label.length());
+            for (int i = 0; i < label.length(); i++)
+                out.write(label.charAt(i));
+        }
+        out.write(0);
+    }
+
+    private static void writeShort(ByteArrayOutputStream out, int value) {
+        out.write(value >>> 8);
+        out.write(value);
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int value) {
+        writeShort(out, value >>> 16);
+        writeShort(out, value);
+    }
+}
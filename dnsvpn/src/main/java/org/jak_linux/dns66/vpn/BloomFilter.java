@@ -0,0 +1,246 @@
+package org.jak_linux.dns66.vpn;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A blocked Bloom filter over domain fingerprints, see {@link DomainHashSet#fingerprint(CharSequence)}.
+ * <p>
+ * Each fingerprint selects one block of 512 bits, the size of a cache line, and sets its bits
+ * within that block only, so a query touches a single cache line no matter how many bits are
+ * tested. A negative answer is definite; a positive answer is wrong with about the false
+ * positive rate the filter was sized for.
+ * <p>
+ * The bits live in a buffer, so that a filter can be written into the host index and used from
+ * the mapped file without copying it. Each duplicate counts its answers in plain counters of
+ * its own, so that lookups on several threads do not contend for them; the getters add up the
+ * counts of the filter and all its duplicates.
+ */
+class BloomFilter {
+    private static final int BLOCK_BITS = 512;
+    private static final int BLOCK_LONGS = BLOCK_BITS / 64;
+    private static final int MAX_HASHES = 16;
+
+    private final LongBuffer bits;
+    private final int blockCount;
+    private final int hashCount;
+
+    /**
+     * The answers of one filter, written by the thread using it only.
+     */
+    private static class Counts {
+        long negatives;
+        long positives;
+        long falsePositives;
+    }
+
+    /* The counts of the filter and of all duplicates ever made, which the getters add up; they
+     * outlive the duplicates, which are dropped when their workers stop */
+    private final List<Counts> family;
+    private final Counts counts = new Counts();
+
+    /**
+     * Creates a filter sized for the given number of entries.
+     *
+     * @param expectedEntries   The number of fingerprints that will be added
+     * @param falsePositiveRate The targeted rate of positive answers for absent fingerprints,
+     *                          between 0 and 1 exclusive
+     */
+    BloomFilter(int expectedEntries, double falsePositiveRate) {
+        if (!(falsePositiveRate > 0 && falsePositiveRate < 1))
+            throw new IllegalArgumentException("Invalid false positive rate " + falsePositiveRate);
+
+        int entries = Math.max(1, expectedEntries);
+        double bitsPerEntry = -Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2));
+        long totalBits = (long) Math.ceil(entries * bitsPerEntry);
+
+        blockCount = (int) Math.max(1, (totalBits + BLOCK_BITS - 1) / BLOCK_BITS);
+        hashCount = (int) Math.max(1, Math.min(MAX_HASHES, Math.round(bitsPerEntry * Math.log(2))));
+        bits = LongBuffer.wrap(new long[blockCount * BLOCK_LONGS]);
+        family = new CopyOnWriteArrayList<>();
+        family.add(counts);
+    }
+
+    private BloomFilter(int blockCount, int hashCount, LongBuffer bits) {
+        this(blockCount, hashCount, bits, new CopyOnWriteArrayList<Counts>());
+    }
+
+    private BloomFilter(int blockCount, int hashCount, LongBuffer bits, List<Counts> family) {
+        this.blockCount = blockCount;
+        this.hashCount = hashCount;
+        this.bits = bits;
+        this.family = family;
+        family.add(counts);
+    }
+
+    /**
+     * Reads a filter written by {@link #writeTo(ByteBuffer)}, starting at the position of the
+     * buffer. The returned filter is a view of the buffer, to which no fingerprints may be
+     * added; the position of the buffer is advanced past the filter.
+     *
+     * @param buffer A little endian buffer
+     * @return A filter
+     * @throws IOException If the buffer does not contain a valid filter
+     */
+    static BloomFilter read(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < 8)
+            throw new IOException("Truncated filter");
+
+        int blockCount = buffer.getInt();
+        int hashCount = buffer.getInt();
+        if (blockCount < 1 || hashCount < 1 || hashCount > MAX_HASHES
+                || (long) BLOCK_BITS / 8 * blockCount > buffer.remaining())
+            throw new IOException("Truncated filter");
+
+        ByteBuffer slice = buffer.slice();
+        slice.limit(BLOCK_BITS / 8 * blockCount);
+        buffer.position(buffer.position() + slice.limit());
+        return new BloomFilter(blockCount, hashCount, slice.order(ByteOrder.LITTLE_ENDIAN).asLongBuffer());
+    }
+
+    /**
+     * @return The number of bytes {@link #writeTo(ByteBuffer)} writes
+     */
+    int serializedSize() {
+        return 8 + sizeInBytes();
+    }
+
+    /**
+     * Writes the filter to the buffer, in the format understood by {@link #read(ByteBuffer)}.
+     *
+     * @param buffer A little endian buffer with at least {@link #serializedSize()} bytes remaining
+     */
+    void writeTo(ByteBuffer buffer) {
+        buffer.putInt(blockCount);
+        buffer.putInt(hashCount);
+        for (int i = 0; i < bits.capacity(); i++)
+            buffer.putLong(bits.get(i));
+    }
+
+    /**
+     * Creates a filter for another thread, that shares the bits with this one, and counts its
+     * answers for the getters of both. Only lookups may be made once a filter has been
+     * duplicated.
+     */
+    BloomFilter duplicate() {
+        return new BloomFilter(blockCount, hashCount, bits, family);
+    }
+
+    /**
+     * Adds a fingerprint.
+     */
+    void add(long fingerprint) {
+        int block = blockOf(fingerprint) * BLOCK_LONGS;
+        int h1 = (int) fingerprint;
+        int h2 = secondHash(fingerprint);
+        for (int i = 0; i < hashCount; i++) {
+            int bit = (h1 + i * h2) & (BLOCK_BITS - 1);
+            int index = block + (bit >>> 6);
+            bits.put(index, bits.get(index) | 1L << bit);
+        }
+    }
+
+    /**
+     * Checks whether a fingerprint may have been added, and counts the answer.
+     *
+     * @return false if the fingerprint has definitely not been added
+     */
+    boolean mightContain(long fingerprint) {
+        boolean result = test(fingerprint);
+        recordAnswer(result);
+        return result;
+    }
+
+    /**
+     * Checks whether a fingerprint may have been added, without counting the answer, for
+     * callers that test several fingerprints to give one answer, see
+     * {@link #recordAnswer(boolean)}.
+     *
+     * @return false if the fingerprint has definitely not been added
+     */
+    boolean test(long fingerprint) {
+        int block = blockOf(fingerprint) * BLOCK_LONGS;
+        int h1 = (int) fingerprint;
+        int h2 = secondHash(fingerprint);
+        for (int i = 0; i < hashCount; i++) {
+            int bit = (h1 + i * h2) & (BLOCK_BITS - 1);
+            if ((bits.get(block + (bit >>> 6)) & (1L << bit)) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Counts an answer given by {@link #test(long)}.
+     */
+    void recordAnswer(boolean positive) {
+        if (positive)
+            counts.positives++;
+        else
+            counts.negatives++;
+    }
+
+    /**
+     * Records that a positive answer turned out to be wrong.
+     */
+    void recordFalsePositive() {
+        counts.falsePositives++;
+    }
+
+    /*
+     * The getters read the counters of duplicates used on other threads without synchronization,
+     * so their counts are only exact once those threads have stopped.
+     */
+
+    /**
+     * @return The number of definite negative answers of the filter and its duplicates
+     */
+    long getNegatives() {
+        long sum = 0;
+        for (Counts c : family)
+            sum += c.negatives;
+        return sum;
+    }
+
+    /**
+     * @return The number of positive answers of the filter and its duplicates, including false
+     * positives
+     */
+    long getPositives() {
+        long sum = 0;
+        for (Counts c : family)
+            sum += c.positives;
+        return sum;
+    }
+
+    /**
+     * @return The number of positive answers of the filter and its duplicates recorded as wrong
+     */
+    long getFalsePositives() {
+        long sum = 0;
+        for (Counts c : family)
+            sum += c.falsePositives;
+        return sum;
+    }
+
+    /**
+     * @return The size of the filter in bytes
+     */
+    int sizeInBytes() {
+        return bits.capacity() * 8;
+    }
+
+    private static int secondHash(long fingerprint) {
+        // Odd, so that the probe sequence visits distinct bits.
+        return (int) ((fingerprint * 0x9e3779b97f4a7c15L) >>> 32) | 1;
+    }
+
+    private int blockOf(long fingerprint) {
+        // The low bits also pick the table slot and the bits within the block; use the high ones.
+        return (int) (((fingerprint >>> 32) & 0xffffffffL) * blockCount >>> 32);
+    }
+}
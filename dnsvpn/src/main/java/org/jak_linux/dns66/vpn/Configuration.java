@@ -21,9 +21,16 @@ import java.util.List;
  */
 public class Configuration {
     private static final int VERSION = 1;
+    /* Lets getDecisionWorkers() choose the number of workers from the processors */
+    public static final int DECISION_WORKERS_AUTO = -1;
     public boolean autoStart;
+    /* Threads deciding about queries besides the VPN thread, 0 to decide on the VPN thread, or
+     * DECISION_WORKERS_AUTO; it applies when the VPN next connects. Off by default, as workers
+     * have only been measured slower than deciding on the VPN thread */
+    public int decisionWorkers = 0;
     public Hosts hosts;
     public DnsServers dnsServers;
+    public Blocking blocking = new Blocking();
 
     private static Hosts readHosts(JsonReader reader) throws IOException {
         Hosts hosts = new Hosts();
@@ -36,6 +43,15 @@ public class Configuration {
                 case "items":
                     hosts.items = readItemList(reader);
                     break;
+                case "filterFalsePositiveRate":
+                    hosts.filterFalsePositiveRate = reader.nextDouble();
+                    break;
+                case "keepRawFiles":
+                    hosts.keepRawFiles = reader.nextBoolean();
+                    break;
+                case "verifyFingerprints":
+                    hosts.verifyFingerprints = reader.nextBoolean();
+                    break;
                 default:
                     reader.skipValue();
                     break;
@@ -67,6 +83,27 @@ public class Configuration {
         return servers;
     }
 
+    private static Blocking readBlocking(JsonReader reader) throws IOException {
+        Blocking blocking = new Blocking();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "response":
+                    blocking.response = reader.nextInt();
+                    break;
+                case "ttl":
+                    blocking.ttl = reader.nextInt();
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+        reader.endObject();
+
+        return blocking;
+    }
+
     private static List<Item> readItemList(JsonReader reader) throws IOException {
         reader.beginArray();
         List<Item> list = new ArrayList<>();
@@ -106,6 +143,9 @@ public class Configuration {
         writer.name("enabled").value(h.enabled);
         writer.name("items");
         writeItemList(writer, h.items);
+        writer.name("filterFalsePositiveRate").value(h.filterFalsePositiveRate);
+        writer.name("keepRawFiles").value(h.keepRawFiles);
+        writer.name("verifyFingerprints").value(h.verifyFingerprints);
         writer.endObject();
     }
 
@@ -117,6 +157,13 @@ public class Configuration {
         writer.endObject();
     }
 
+    private static void writeBlocking(JsonWriter writer, Blocking b) throws IOException {
+        writer.beginObject();
+        writer.name("response").value(b.response);
+        writer.name("ttl").value(b.ttl);
+        writer.endObject();
+    }
+
     private static void writeItemList(JsonWriter writer, List<Item> items) throws IOException {
         writer.beginArray();
         for (Item i : items) {
@@ -141,6 +188,9 @@ public class Configuration {
         writeHosts(writer, hosts);
         writer.name("dnsServers");
         writeDnsServers(writer, dnsServers);
+        writer.name("blocking");
+        writeBlocking(writer, blocking);
+        writer.name("decisionWorkers").value(decisionWorkers);
         writer.endObject();
     }
 
@@ -162,6 +212,12 @@ public class Configuration {
                 case "dnsServers":
                     dnsServers = readDnsServers(reader);
                     break;
+                case "blocking":
+                    blocking = readBlocking(reader);
+                    break;
+                case "decisionWorkers":
+                    decisionWorkers = reader.nextInt();
+                    break;
                 default:
                     reader.skipValue();
                     break;
@@ -170,6 +226,41 @@ public class Configuration {
         reader.endObject();
     }
 
+    /**
+     * Returns the number of threads deciding about queries besides the VPN thread. With
+     * DECISION_WORKERS_AUTO, multi-core devices use one, or two with four processors or more, so
+     * that the workers leave a processor to the VPN thread; single-core devices decide on the
+     * VPN thread.
+     *
+     * @param processors The number of processors of the device
+     */
+    public int getDecisionWorkers(int processors) {
+        if (decisionWorkers >= 0)
+            return decisionWorkers;
+        if (processors >= 4)
+            return 2;
+        return processors >= 2 ? 1 : 0;
+    }
+
+    /**
+     * Checks whether the other configuration blocks the same way: with the same host lists in
+     * the same states, compiled with the same filter, and the same responses. Titles, DNS
+     * servers and other settings do not matter.
+     */
+    public boolean blocksSameAs(Configuration other) {
+        if (hosts.enabled != other.hosts.enabled || hosts.items.size() != other.hosts.items.size())
+            return false;
+        if (hosts.filterFalsePositiveRate != other.hosts.filterFalsePositiveRate)
+            return false;
+        for (int i = 0; i < hosts.items.size(); i++) {
+            Item item = hosts.items.get(i);
+            Item otherItem = other.hosts.items.get(i);
+            if (item.state != otherItem.state || !item.location.equals(otherItem.location))
+                return false;
+        }
+        return blocking.response == other.blocking.response && blocking.ttl == other.blocking.ttl;
+    }
+
     public static class Item {
         public static final int STATE_IGNORE = 2;
         public static final int STATE_DENY = 0;
@@ -182,10 +273,33 @@ public class Configuration {
     public static class Hosts {
         public boolean enabled;
         public List<Item> items = new ArrayList<>();
+        /* The false positive rate of the filter in front of the blocked hosts, see HostIndex;
+         * values outside of 0 and 1 exclusive compile them without a filter */
+        public double filterFalsePositiveRate = HostIndex.DEFAULT_FILTER_FALSE_POSITIVE_RATE;
+        /* Whether downloaded lists are also stored as received, gzip compressed, so that they can
+         * be compiled again without downloading them, see HostListDownloader */
+        public boolean keepRawFiles = true;
+        /* Whether downloaded lists are checked for distinct hosts sharing a fingerprint, which
+         * keeps the names of a list in memory while it is compiled; collisions are logged, see
+         * DomainHashSet */
+        public boolean verifyFingerprints;
     }
 
     public static class DnsServers {
         public boolean enabled;
         public List<Item> items = new ArrayList<>();
     }
+
+    /**
+     * How blocked queries are answered, see {@link BlockResponse}.
+     */
+    public static class Blocking {
+        public static final int RESPONSE_NXDOMAIN = 0;
+        public static final int RESPONSE_NXDOMAIN_SOA = 1;
+        public static final int RESPONSE_NODATA = 2;
+        public static final int RESPONSE_SINKHOLE = 3;
+        public int response = RESPONSE_NXDOMAIN;
+        /* Seconds for which a response may be cached, unless it is a bare NXDOMAIN */
+        public int ttl = 300;
+    }
 }
@@ -0,0 +1,123 @@
+package org.jak_linux.dns66.vpn;
+
+/**
+ * Extracts the name asked for by a DNS query directly from the wire format, without building a
+ * {@link org.xbill.DNS.Message}.
+ * <p>
+ * The name is written lower cased into a reusable buffer and exposed as a {@link CharSequence},
+ * in the form {@code Name.toString(true)} would produce it. Only plain queries are handled:
+ * one question, no compression, and labels made of letters, digits, hyphens and underscores.
+ * For anything else, {@link #parse(byte[], int, int)} returns false and the caller is expected
+ * to fall back to a full parser, which also deals with malformed messages.
+ * <p>
+ * An instance is meant to be reused for every query of a single thread.
+ */
+class DnsQueryName implements CharSequence {
+    private static final int HEADER_SIZE = 12;
+    /* Maximum length of a name in text form, without the trailing dot */
+    private static final int MAX_NAME_LENGTH = 253;
+    private static final int MAX_LABEL_LENGTH = 63;
+
+    private final char[] chars = new char[MAX_NAME_LENGTH];
+    private int length;
+    private int questionLength;
+    private int type;
+
+    /**
+     * Extracts the name of the question of a query.
+     *
+     * @param message A buffer holding a DNS message
+     * @param offset  The offset of the message in the buffer
+     * @param length  The length of the message
+     * @return true if the name was extracted, false if the message needs to be parsed otherwise
+     */
+    boolean parse(byte[] message, int offset, int length) {
+        this.length = 0;
+        if (length < HEADER_SIZE)
+            return false;
+
+        int flags = message[offset + 2] & 0xff;
+        // QR (a response) and any opcode other than QUERY
+        if ((flags & 0xf8) != 0)
+            return false;
+        int questionCount = ((message[offset + 4] & 0xff) << 8) | (message[offset + 5] & 0xff);
+        if (questionCount != 1)
+            return false;
+
+        int end = offset + length;
+        int i = offset + HEADER_SIZE;
+        int n = 0;
+        while (true) {
+            if (i >= end)
+                return false;
+            int labelLength = message[i++] & 0xff;
+            if (labelLength == 0)
+                break;
+            // Compression pointers and extended label types
+            if (labelLength > MAX_LABEL_LENGTH || i + labelLength > end)
+                return false;
+            if (n != 0) {
+                if (n >= MAX_NAME_LENGTH)
+                    return false;
+                chars[n++] = '.';
+            }
+            if (n + labelLength > MAX_NAME_LENGTH)
+                return false;
+
+            for (int j = 0; j < labelLength; j++) {
+                int c = message[i++];
+                if (c >= 'A' && c <= 'Z')
+                    c += 'a' - 'A';
+                else if (!((c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '-' || c == '_'))
+                    return false;
+                chars[n++] = (char) c;
+            }
+        }
+
+        // The root name, and questions without type and class
+        if (n == 0 || i + 4 > end)
+            return false;
+
+        this.length = n;
+        this.questionLength = i + 4 - offset;
+        this.type = ((message[i] & 0xff) << 8) | (message[i + 1] & 0xff);
+        return true;
+    }
+
+    /**
+     * @return The length of the header and the question of the last query parsed, which a
+     * response repeats
+     */
+    int getQuestionLength() {
+        return questionLength;
+    }
+
+    /**
+     * @return The type asked for by the last query parsed
+     */
+    int getType() {
+        return type;
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index >= length)
+            throw new IndexOutOfBoundsException("Index " + index + ", length " + length);
+        return chars[index];
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return toString().substring(start, end);
+    }
+
+    @Override
+    public String toString() {
+        return new String(chars, 0, length);
+    }
+}
@@ -0,0 +1,196 @@
+package org.jak_linux.dns66.vpn;
+
+/**
+ * A set of domain names that only stores a 64-bit fingerprint of each name, in a flat
+ * {@code long[]} open addressing table with linear probing. This costs 8 to 16 bytes per name,
+ * compared to the 80 to 100 bytes of a {@link String} in a {@link java.util.HashSet}.
+ * <p>
+ * Two distinct names with the same fingerprint are indistinguishable, which with 64-bit
+ * fingerprints is not a practical concern for host lists. Where that is to be checked, the set
+ * can be created with a verification table that keeps the names themselves next to their
+ * fingerprints and compares them on lookup. The table only holds one name per fingerprint, so
+ * a second name colliding with one in the set is not added, but counted, see
+ * {@link #getCollisions()}.
+ * <p>
+ * All operations are ASCII case-insensitive and take any {@link CharSequence}, so that names
+ * can be looked up without allocating a lower case copy first.
+ */
+class DomainHashSet {
+    private static final int INITIAL_CAPACITY = 16;
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private long[] slots;
+    /* The names of the slots, if the set verifies them */
+    private String[] names;
+    private int mask;
+    private int size;
+    private int collisions;
+
+    /**
+     * Creates a set that only stores fingerprints.
+     */
+    DomainHashSet() {
+        this(false);
+    }
+
+    /**
+     * Creates a set.
+     *
+     * @param verify true if names should be kept to tell apart names with equal fingerprints
+     */
+    DomainHashSet(boolean verify) {
+        slots = new long[INITIAL_CAPACITY];
+        names = verify ? new String[INITIAL_CAPACITY] : null;
+        mask = INITIAL_CAPACITY - 1;
+    }
+
+    /**
+     * Computes the fingerprint of a domain name. ASCII letters are folded to lower case, so
+     * callers do not need to lower case the name first. The fingerprint is never 0.
+     */
+    static long fingerprint(CharSequence name) {
+        return fingerprint(name, 0, name.length());
+    }
+
+    /**
+     * Computes the fingerprint of a part of a name, such as one of its parent domains, see
+     * {@link #fingerprint(CharSequence)}.
+     */
+    static long fingerprint(CharSequence name, int start, int end) {
+        long hash = FNV_OFFSET_BASIS;
+        for (int i = start; i < end; i++) {
+            char c = name.charAt(i);
+            if (c >= 'A' && c <= 'Z')
+                c += 'a' - 'A';
+            hash ^= c;
+            hash *= FNV_PRIME;
+        }
+        // FNV distributes poorly in the low bits we use for the slot index; finalize it.
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        // 0 marks an empty slot
+        return hash == 0 ? 1 : hash;
+    }
+
+    /**
+     * Adds a name to the set.
+     *
+     * @return true if the name was not in the set before
+     */
+    boolean add(CharSequence name) {
+        long fingerprint = fingerprint(name);
+        int i = indexOf(fingerprint);
+        if (i >= 0) {
+            if (names != null && !equalsIgnoreCase(names[i], name))
+                collisions++;
+            return false;
+        }
+        insert(fingerprint, names != null ? name.toString() : null);
+        return true;
+    }
+
+    /**
+     * Adds the name with the given fingerprint to the set. A verifying set does not learn the
+     * name, so a later name with the same fingerprint is taken to be a collision.
+     *
+     * @return true if the name was not in the set before
+     */
+    boolean add(long fingerprint) {
+        if (indexOf(fingerprint) >= 0)
+            return false;
+        insert(fingerprint, null);
+        return true;
+    }
+
+    /**
+     * Checks whether a name is in the set, without allocating.
+     */
+    boolean contains(CharSequence name) {
+        int i = indexOf(fingerprint(name));
+        return i >= 0 && (names == null || equalsIgnoreCase(names[i], name));
+    }
+
+    /**
+     * @return The number of names that were not added, as another name in a verifying set has
+     * the same fingerprint
+     */
+    int getCollisions() {
+        return collisions;
+    }
+
+    /**
+     * @return The number of names in the set
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Returns the backing table, for writing it out. Empty slots are 0, every other slot holds
+     * the fingerprint of a name at, or after, the index given by its lowest bits.
+     */
+    long[] getTable() {
+        return slots;
+    }
+
+    private void insert(long fingerprint, String name) {
+        if (2 * (size + 1) > slots.length)
+            resize(slots.length * 2);
+
+        int i = (int) fingerprint & mask;
+        while (slots[i] != 0)
+            i = (i + 1) & mask;
+        slots[i] = fingerprint;
+        if (names != null)
+            names[i] = name;
+        size++;
+    }
+
+    private int indexOf(long fingerprint) {
+        for (int i = (int) fingerprint & mask; ; i = (i + 1) & mask) {
+            long slot = slots[i];
+            if (slot == 0)
+                return -1;
+            if (slot == fingerprint)
+                return i;
+        }
+    }
+
+    private void resize(int capacity) {
+        long[] oldSlots = slots;
+        String[] oldNames = names;
+
+        slots = new long[capacity];
+        names = oldNames != null ? new String[capacity] : null;
+        mask = capacity - 1;
+        for (int j = 0; j < oldSlots.length; j++) {
+            if (oldSlots[j] == 0)
+                continue;
+            int i = (int) oldSlots[j] & mask;
+            while (slots[i] != 0)
+                i = (i + 1) & mask;
+            slots[i] = oldSlots[j];
+            if (names != null)
+                names[i] = oldNames[j];
+        }
+    }
+
+    private static boolean equalsIgnoreCase(CharSequence a, CharSequence b) {
+        if (a == null || a.length() != b.length())
+            return false;
+        for (int i = 0; i < a.length(); i++) {
+            char x = a.charAt(i);
+            char y = b.charAt(i);
+            if (x != y && toLowerAscii(x) != toLowerAscii(y))
+                return false;
+        }
+        return true;
+    }
+
+    private static char toLowerAscii(char c) {
+        return c >= 'A' && c <= 'Z' ? (char) (c + 'a' - 'A') : c;
+    }
+}
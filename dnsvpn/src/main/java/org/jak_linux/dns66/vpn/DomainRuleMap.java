@@ -0,0 +1,106 @@
+package org.jak_linux.dns66.vpn;
+
+/**
+ * A map from domain fingerprints, see {@link DomainHashSet#fingerprint(CharSequence)}, to the
+ * {@link HostRule} deciding about the domain. Like {@link DomainHashSet}, it is an open
+ * addressing table with linear probing, with the rules in a parallel {@code int[]}.
+ */
+class DomainRuleMap {
+    private static final int INITIAL_CAPACITY = 16;
+
+    private long[] slots;
+    private int[] rules;
+    private int mask;
+    private int size;
+
+    DomainRuleMap() {
+        this(0);
+    }
+
+    /**
+     * @param expectedSize The number of entries to make room for
+     */
+    DomainRuleMap(int expectedSize) {
+        int capacity = INITIAL_CAPACITY;
+        while (capacity < 2L * expectedSize)
+            capacity <<= 1;
+        slots = new long[capacity];
+        rules = new int[capacity];
+        mask = capacity - 1;
+    }
+
+    /**
+     * Sets the rule for a fingerprint, replacing any previous rule.
+     *
+     * @param fingerprint A fingerprint, not 0
+     * @param rule        A rule, not {@link HostRule#NONE}
+     */
+    void put(long fingerprint, int rule) {
+        int i = (int) fingerprint & mask;
+        while (slots[i] != 0 && slots[i] != fingerprint)
+            i = (i + 1) & mask;
+
+        if (slots[i] == 0) {
+            if (2 * (size + 1) > slots.length) {
+                resize(slots.length * 2);
+                put(fingerprint, rule);
+                return;
+            }
+            slots[i] = fingerprint;
+            size++;
+        }
+        rules[i] = rule;
+    }
+
+    /**
+     * @return The rule for the fingerprint, or {@link HostRule#NONE}
+     */
+    int get(long fingerprint) {
+        for (int i = (int) fingerprint & mask; ; i = (i + 1) & mask) {
+            if (slots[i] == fingerprint)
+                return rules[i];
+            if (slots[i] == 0)
+                return HostRule.NONE;
+        }
+    }
+
+    /**
+     * @return The number of entries
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Returns the fingerprints, for writing them out. Empty slots are 0.
+     */
+    long[] getTable() {
+        return slots;
+    }
+
+    /**
+     * Returns the rules, for writing them out. The rule at an index belongs to the fingerprint
+     * at the same index of {@link #getTable()}.
+     */
+    int[] getRules() {
+        return rules;
+    }
+
+    private void resize(int capacity) {
+        long[] oldSlots = slots;
+        int[] oldRules = rules;
+
+        slots = new long[capacity];
+        rules = new int[capacity];
+        mask = capacity - 1;
+        for (int j = 0; j < oldSlots.length; j++) {
+            if (oldSlots[j] == 0)
+                continue;
+            int i = (int) oldSlots[j] & mask;
+            while (slots[i] != 0)
+                i = (i + 1) & mask;
+            slots[i] = oldSlots[j];
+            rules[i] = oldRules[j];
+        }
+    }
+}
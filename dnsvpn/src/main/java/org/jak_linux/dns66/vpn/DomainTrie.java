@@ -0,0 +1,314 @@
+package org.jak_linux.dns66.vpn;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.util.Arrays;
+
+/**
+ * A trie of domain names keyed on their labels in reverse order, that is, "ad.example.com" is
+ * stored as com -&gt; example -&gt; ad. All rules below a common suffix share the nodes of that
+ * suffix, and a lookup costs one hash probe per label of the queried name, independent of the
+ * number of rules.
+ * <p>
+ * Every node can carry two rules: an exact rule that only applies to the name of the node
+ * itself, and a domain rule that applies to the name and all its subdomains. A rule either
+ * blocks or allows, and records the source (the position of the configuration item) it came
+ * from. If several rules match a name, the one from the latest source wins, so that items
+ * further down the list override earlier ones.
+ * <p>
+ * Nodes are numbered, with the root being node 0. The children of all nodes are stored in a
+ * single open addressing table keyed on a 64-bit hash of the parent number and the label. All
+ * data lives in flat buffers, so that a trie can be written into the host index and used from
+ * the mapped file without copying it. While a trie is built, it also collects the fingerprints
+ * of the names that have rules, for the filter of the host index, see {@link HostIndex}.
+ */
+class DomainTrie {
+    private static final int ROOT = 0;
+    private static final int INITIAL_CAPACITY = 16;
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final boolean readOnly;
+    private int nodeCount;
+    private int edgeCount;
+    private int edgeMask;
+    private LongBuffer edgeKeys;
+    private IntBuffer edgeChildren;
+    private IntBuffer exactRules;
+    private IntBuffer domainRules;
+    /* The names with rules, or null if the trie is read-only */
+    private final DomainHashSet names;
+
+    /**
+     * Creates a new, empty, trie.
+     */
+    DomainTrie() {
+        readOnly = false;
+        names = new DomainHashSet();
+        nodeCount = 1;
+        edgeMask = INITIAL_CAPACITY - 1;
+        edgeKeys = LongBuffer.wrap(new long[INITIAL_CAPACITY]);
+        edgeChildren = IntBuffer.wrap(new int[INITIAL_CAPACITY]);
+        exactRules = IntBuffer.wrap(new int[INITIAL_CAPACITY]);
+        domainRules = IntBuffer.wrap(new int[INITIAL_CAPACITY]);
+    }
+
+    private DomainTrie(int nodeCount, int edgeCount, LongBuffer edgeKeys, IntBuffer edgeChildren, IntBuffer exactRules, IntBuffer domainRules) {
+        this.readOnly = true;
+        this.names = null;
+        this.nodeCount = nodeCount;
+        this.edgeCount = edgeCount;
+        this.edgeMask = edgeKeys.capacity() - 1;
+        this.edgeKeys = edgeKeys;
+        this.edgeChildren = edgeChildren;
+        this.exactRules = exactRules;
+        this.domainRules = domainRules;
+    }
+
+    /**
+     * Reads a trie written by {@link #writeTo(ByteBuffer)}, starting at the position of the
+     * buffer. The returned trie is a read-only view of the buffer; the position of the buffer
+     * is advanced past the trie.
+     *
+     * @param buffer A little endian buffer
+     * @return A read-only trie
+     * @throws IOException If the buffer does not contain a valid trie
+     */
+    static DomainTrie read(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < 12)
+            throw new IOException("Truncated domain trie");
+
+        int nodeCount = buffer.getInt();
+        int edgeCount = buffer.getInt();
+        int edgeCapacity = buffer.getInt();
+        if (nodeCount < 1 || Integer.bitCount(edgeCapacity) != 1 || edgeCount >= edgeCapacity
+                || 12L * edgeCapacity + 8L * nodeCount > buffer.remaining())
+            throw new IOException("Truncated domain trie");
+
+        LongBuffer edgeKeys = slice(buffer, 8 * edgeCapacity).asLongBuffer();
+        IntBuffer edgeChildren = slice(buffer, 4 * edgeCapacity).asIntBuffer();
+        IntBuffer exactRules = slice(buffer, 4 * nodeCount).asIntBuffer();
+        IntBuffer domainRules = slice(buffer, 4 * nodeCount).asIntBuffer();
+        return new DomainTrie(nodeCount, edgeCount, edgeKeys, edgeChildren, exactRules, domainRules);
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int length) {
+        ByteBuffer slice = buffer.slice();
+        slice.limit(length);
+        buffer.position(buffer.position() + length);
+        return slice.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * @return The number of bytes {@link #writeTo(ByteBuffer)} writes
+     */
+    int serializedSize() {
+        return 12 + 12 * (edgeMask + 1) + 8 * nodeCount;
+    }
+
+    /**
+     * Writes the trie to the buffer, in the format understood by {@link #read(ByteBuffer)}.
+     *
+     * @param buffer A little endian buffer with at least {@link #serializedSize()} bytes remaining
+     */
+    void writeTo(ByteBuffer buffer) {
+        buffer.putInt(nodeCount);
+        buffer.putInt(edgeCount);
+        buffer.putInt(edgeMask + 1);
+        for (int i = 0; i <= edgeMask; i++)
+            buffer.putLong(edgeKeys.get(i));
+        for (int i = 0; i <= edgeMask; i++)
+            buffer.putInt(edgeChildren.get(i));
+        for (int i = 0; i < nodeCount; i++)
+            buffer.putInt(exactRules.get(i));
+        for (int i = 0; i < nodeCount; i++)
+            buffer.putInt(domainRules.get(i));
+    }
+
+    /**
+     * Adds a rule that only applies to the given name itself.
+     *
+     * @param host   The host name
+     * @param block  true if the rule blocks, false if it allows
+     * @param source The source of the rule; rules from later sources override earlier ones
+     */
+    void addHost(CharSequence host, boolean block, int source) {
+        int node = insertPath(host);
+        exactRules.put(node, HostRule.encode(block, source));
+    }
+
+    /**
+     * Adds a rule that applies to the given domain and all of its subdomains.
+     *
+     * @param domain The domain name
+     * @param block  true if the rule blocks, false if it allows
+     * @param source The source of the rule; rules from later sources override earlier ones
+     */
+    void addDomain(CharSequence domain, boolean block, int source) {
+        addDomain(domain, HostRule.encode(block, source));
+    }
+
+    /**
+     * Adds a rule that applies to the given domain and all of its subdomains.
+     *
+     * @param domain The domain name
+     * @param rule   The encoded rule, see {@link HostRule}. If the domain already has a rule, the
+     *               larger one is kept.
+     */
+    void addDomain(CharSequence domain, int rule) {
+        int node = insertPath(domain);
+        domainRules.put(node, Math.max(domainRules.get(node), rule));
+    }
+
+    /**
+     * Finds the rule deciding about the given name: of all exact rules for the name and all
+     * domain rules for the name or one of its parent domains, the one from the latest source.
+     * The lookup is ASCII case-insensitive.
+     *
+     * @param name A host name
+     * @return The rule, see {@link HostRule}, or {@link HostRule#NONE}
+     */
+    int lookup(CharSequence name) {
+        if (edgeCount == 0)
+            return HostRule.NONE;
+
+        int rule = HostRule.NONE;
+        int node = ROOT;
+        int end = stripTrailingDot(name);
+        while (end > 0) {
+            int start = labelStart(name, end);
+            node = findChild(node, hashLabel(name, start, end));
+            if (node < 0)
+                return rule;
+            // Of two rules, the larger one is the one from the later source.
+            rule = Math.max(rule, domainRules.get(node));
+            end = start - 1;
+        }
+        return Math.max(rule, exactRules.get(node));
+    }
+
+    /**
+     * @return The names that have rules, without a trailing dot; must not be modified
+     * @throws UnsupportedOperationException If the trie is read-only
+     */
+    DomainHashSet getNames() {
+        if (readOnly)
+            throw new UnsupportedOperationException("Trie is read-only");
+        return names;
+    }
+
+    /**
+     * @return true if the trie does not contain any rule
+     */
+    boolean isEmpty() {
+        return edgeCount == 0;
+    }
+
+    private int insertPath(CharSequence name) {
+        if (readOnly)
+            throw new UnsupportedOperationException("Trie is read-only");
+
+        int node = ROOT;
+        int end = stripTrailingDot(name);
+        names.add(DomainHashSet.fingerprint(name, 0, end));
+        while (end > 0) {
+            int start = labelStart(name, end);
+            long labelHash = hashLabel(name, start, end);
+            int child = findChild(node, labelHash);
+            if (child < 0) {
+                child = newNode();
+                putChild(node, labelHash, child);
+            }
+            node = child;
+            end = start - 1;
+        }
+        return node;
+    }
+
+    private int newNode() {
+        if (nodeCount == exactRules.capacity()) {
+            exactRules = IntBuffer.wrap(Arrays.copyOf(exactRules.array(), nodeCount * 2));
+            domainRules = IntBuffer.wrap(Arrays.copyOf(domainRules.array(), nodeCount * 2));
+        }
+        return nodeCount++;
+    }
+
+    private int findChild(int parent, long labelHash) {
+        long key = edgeKey(parent, labelHash);
+        for (int i = (int) key & edgeMask; ; i = (i + 1) & edgeMask) {
+            long slot = edgeKeys.get(i);
+            if (slot == key)
+                return edgeChildren.get(i);
+            if (slot == 0)
+                return -1;
+        }
+    }
+
+    private void putChild(int parent, long labelHash, int child) {
+        if (2 * (edgeCount + 1) > edgeMask + 1)
+            growEdges();
+
+        long key = edgeKey(parent, labelHash);
+        int i = (int) key & edgeMask;
+        while (edgeKeys.get(i) != 0)
+            i = (i + 1) & edgeMask;
+        edgeKeys.put(i, key);
+        edgeChildren.put(i, child);
+        edgeCount++;
+    }
+
+    private void growEdges() {
+        long[] oldKeys = edgeKeys.array();
+        int[] oldChildren = edgeChildren.array();
+
+        edgeMask = oldKeys.length * 2 - 1;
+        edgeKeys = LongBuffer.wrap(new long[oldKeys.length * 2]);
+        edgeChildren = IntBuffer.wrap(new int[oldKeys.length * 2]);
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldKeys[j] == 0)
+                continue;
+            int i = (int) oldKeys[j] & edgeMask;
+            while (edgeKeys.get(i) != 0)
+                i = (i + 1) & edgeMask;
+            edgeKeys.put(i, oldKeys[j]);
+            edgeChildren.put(i, oldChildren[j]);
+        }
+    }
+
+    private static int stripTrailingDot(CharSequence name) {
+        int end = name.length();
+        return end > 0 && name.charAt(end - 1) == '.' ? end - 1 : end;
+    }
+
+    private static int labelStart(CharSequence name, int end) {
+        int start = end;
+        while (start > 0 && name.charAt(start - 1) != '.')
+            start--;
+        return start;
+    }
+
+    private static long hashLabel(CharSequence name, int start, int end) {
+        long hash = FNV_OFFSET_BASIS;
+        for (int i = start; i < end; i++) {
+            char c = name.charAt(i);
+            if (c >= 'A' && c <= 'Z')
+                c += 'a' - 'A';
+            hash ^= c;
+            hash *= FNV_PRIME;
+        }
+        return hash;
+    }
+
+    private static long edgeKey(int parent, long labelHash) {
+        long key = labelHash ^ (parent * 0x9e3779b97f4a7c15L);
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        // 0 marks an empty slot
+        return key == 0 ? 1 : key;
+    }
+}
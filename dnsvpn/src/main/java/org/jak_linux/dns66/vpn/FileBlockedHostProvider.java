@@ -1,14 +1,21 @@
 package org.jak_linux.dns66.vpn;
 
 import android.content.Context;
+import android.util.Log;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 class FileBlockedHostProvider implements AdVpnThread.BlockedHostProvider {
+    private static final String TAG = "FileBlockedHostProvider";
+    /* Guards the index file, which is shared by all providers */
+    private static final Object INDEX_LOCK = new Object();
 
     private final AdVpnService.ConfigProvider configProvider;
     private final Context context;
@@ -19,42 +26,142 @@ class FileBlockedHostProvider implements AdVpnThread.BlockedHostProvider {
     }
 
     @Override
-    public Set<String> retrieveBlockedHosts() throws InterruptedException {
-        HashSet<String> blockedHosts = new HashSet<>();
+    public HostIndex retrieveBlockedHosts() throws InterruptedException {
+        HostIndex index = retrieveIndex(configProvider.retrieveConfig());
 
+        BloomFilter filter = index.getFilter();
+        if (filter != null) {
+            Log.d(TAG, "retrieveBlockedHosts: Using filter of " + filter.sizeInBytes() + " bytes for " + index.size() + " hosts");
+        }
+        if (index.patternCount() > 0) {
+            Log.d(TAG, "retrieveBlockedHosts: Matching " + index.patternCount() + " patterns");
+        }
+        return index;
+    }
+
+    @Override
+    public BlockResponse retrieveBlockResponse() {
+        Configuration config = configProvider.retrieveConfig();
+        if (config == null || config.blocking == null)
+            return BlockResponse.NXDOMAIN;
+        return BlockResponse.forConfiguration(config.blocking);
+    }
+
+    @Override
+    public int retrieveDecisionWorkers() {
         Configuration config = configProvider.retrieveConfig();
+        int processors = Runtime.getRuntime().availableProcessors();
+        if (config == null)
+            return new Configuration().getDecisionWorkers(processors);
+        return config.getDecisionWorkers(processors);
+    }
+
+    /**
+     * Opens the index compiled from the given configuration, compiling it first if it is
+     * missing or out of date. Synchronized across all providers, as the VPN thread, a
+     * background reload and a lookup from the app may compile the index at the same time.
+     */
+    HostIndex retrieveIndex(Configuration config) throws InterruptedException {
+        synchronized (INDEX_LOCK) {
+            return openOrCompileIndex(config);
+        }
+    }
+
+    private HostIndex openOrCompileIndex(Configuration config) throws InterruptedException {
+        File indexFile = FileHelper.getHostIndexFile(context);
+        long stamp = computeStamp(config, Collections.<Integer>emptySet());
+
+        try {
+            HostIndex index = HostIndex.open(indexFile);
+            if (index.getStamp() == stamp) {
+                Log.d(TAG, "retrieveBlockedHosts: Using compiled index with " + index.size() + " hosts");
+                return index;
+            }
+        } catch (IOException e) {
+            Log.d(TAG, "retrieveBlockedHosts: No usable compiled index: " + e.getMessage());
+        }
+
+        HostListCompiler compiler = new HostListCompiler(Runtime.getRuntime().availableProcessors());
+        compiler.compile(collectSources(config));
+        if (!compiler.getFailures().isEmpty()) {
+            // Leave the failed lists out of the stamp, so that the next start compiles again
+            Set<Integer> failedItems = new HashSet<>();
+            for (Map.Entry<HostListCompiler.Source, Throwable> failure : compiler.getFailures().entrySet()) {
+                int item = failure.getKey().id;
+                failedItems.add(item);
+                Log.e(TAG, "retrieveBlockedHosts: Cannot read list " + config.hosts.items.get(item).location, failure.getValue());
+            }
+            stamp = computeStamp(config, failedItems);
+        }
+        try {
+            HostIndex.write(indexFile, stamp, compiler.getHosts(), compiler.getTrie(), compiler.getPatterns(),
+                    config.hosts.filterFalsePositiveRate);
+            return HostIndex.open(indexFile);
+        } catch (IOException e) {
+            Log.e(TAG, "retrieveBlockedHosts: Cannot compile index, running without blocking", e);
+            return HostIndex.empty();
+        }
+    }
+
+    /**
+     * Computes a stamp over everything the blocked hosts are derived from: the configured items,
+     * the size and modification time of their downloaded and compiled files, and the filter. The compiled
+     * index is rebuilt whenever the stamp changes, i.e. after the configuration changed or a
+     * list was downloaded.
+     *
+     * @param skippedItems The positions of items to leave out, so that the stamp does not match
+     */
+    private long computeStamp(Configuration config, Set<Integer> skippedItems) {
+        long stamp = config.hosts.enabled ? 1 : 2;
+        stamp = 31 * stamp + Double.doubleToLongBits(config.hosts.filterFalsePositiveRate);
 
         if (config.hosts.enabled) {
-            for (Configuration.Item item : config.hosts.items) {
-                if (item.state == Configuration.Item.STATE_IGNORE) {
+            for (int i = 0; i < config.hosts.items.size(); i++) {
+                if (skippedItems.contains(i))
                     continue;
-                }
+                Configuration.Item item = config.hosts.items.get(i);
+                stamp = 31 * stamp + item.state;
+                stamp = 31 * stamp + item.location.hashCode();
 
                 File file = FileHelper.getItemFile(context, item);
-
-                if (file == null) {
-                    if (!item.location.contains("/")) {
-                        if (item.state == Configuration.Item.STATE_ALLOW) {
-                            blockedHosts.remove(item.location);
-                        } else if (item.state == Configuration.Item.STATE_DENY) {
-                            blockedHosts.add(item.location);
-                        }
-                    }
-                    continue;
+                if (file != null) {
+                    stamp = 31 * stamp + file.length();
+                    stamp = 31 * stamp + file.lastModified();
                 }
-
-                try (FileInputStream fileInputStream = new FileInputStream(file)) {
-                    Set<String> hosts = new HostFileParser().parse(fileInputStream);
-                    if (item.state == Configuration.Item.STATE_DENY) {
-                        blockedHosts.addAll(hosts);
-                    } else if (item.state == Configuration.Item.STATE_ALLOW) {
-                        blockedHosts.removeAll(hosts);
-                    }
-                } catch (IOException e) {
-                    e.printStackTrace();
+                File segmentFile = FileHelper.getItemSegmentFile(context, item);
+                if (segmentFile != null) {
+                    stamp = 31 * stamp + segmentFile.length();
+                    stamp = 31 * stamp + segmentFile.lastModified();
                 }
             }
         }
-        return blockedHosts;
+        return stamp;
+    }
+
+    private List<HostListCompiler.Source> collectSources(Configuration config) {
+        List<HostListCompiler.Source> sources = new ArrayList<>();
+        if (!config.hosts.enabled) {
+            return sources;
+        }
+
+        for (int i = 0; i < config.hosts.items.size(); i++) {
+            Configuration.Item item = config.hosts.items.get(i);
+            if (item.state == Configuration.Item.STATE_IGNORE) {
+                continue;
+            }
+
+            boolean block = item.state == Configuration.Item.STATE_DENY;
+            File segmentFile = FileHelper.getItemSegmentFile(context, item);
+            File file = FileHelper.getItemFile(context, item);
+            if (segmentFile != null && HostSegment.isCurrent(segmentFile)) {
+                sources.add(new HostListCompiler.SegmentSource(i, block, segmentFile));
+            } else if (file != null) {
+                // Downloaded before lists were compiled while downloading
+                sources.add(new HostListCompiler.FileSource(i, block, file));
+            } else if (!item.location.contains("/")) {
+                sources.add(new HostListCompiler.LineSource(i, block, item.location));
+            }
+        }
+        return sources;
     }
 }
@@ -66,9 +66,11 @@ public final class FileHelper {
         else {
             stream = FileHelper.openRead(context, name);
         }
-        Configuration config = new Configuration();
-        config.read(new JsonReader(new InputStreamReader(stream)));
-        return config;
+        try (InputStream in = stream) {
+            Configuration config = new Configuration();
+            config.read(new JsonReader(new InputStreamReader(in)));
+            return config;
+        }
     }
 
     public static Configuration loadCurrentSettings(Context context) {
@@ -98,12 +100,25 @@ public final class FileHelper {
         }
     }
 
+    /**
+     * Writes the settings, and has a running VPN reload the blocked hosts if the settings now
+     * block differently, see {@link Configuration#blocksSameAs(Configuration)}.
+     */
     public static void writeSettings(Context context, Configuration config) {
         Log.d("FileHelper", "writeSettings: Writing the settings file");
+        Configuration previous;
+        try {
+            previous = readConfigFile(context, "settings.json", false);
+        } catch (Exception e) {
+            previous = null;
+        }
         try {
             JsonWriter writer = new JsonWriter(new OutputStreamWriter(FileHelper.openWrite(context, "settings.json")));
             config.write(writer);
             writer.close();
+            if (previous == null || !previous.blocksSameAs(config)) {
+                AdVpnService.reloadBlockedHosts(context);
+            }
         } catch (IOException e) {
             Toast.makeText(context, context.getString(R.string.cannot_write_config, e.getLocalizedMessage()), Toast.LENGTH_SHORT).show();
         }
@@ -123,18 +138,48 @@ public final class FileHelper {
         try {
             return new File(context.getExternalFilesDir(null), java.net.URLEncoder.encode(item.location, "UTF-8"));
         } catch (UnsupportedEncodingException e) {
-            e.printStackTrace();
+            Log.e("FileHelper", "getItemFile: Cannot encode the location of " + item.title, e);
+            return null;
+        }
+    }
+
+    /**
+     * Returns the file the compiled form of a downloaded item is stored in, see
+     * {@link HostSegment}.
+     *
+     * @param context A context to work in
+     * @param item    A configuration item.
+     * @return File or null, if that item is not downloadable.
+     */
+    public static File getItemSegmentFile(Context context, Configuration.Item item) {
+        if (!item.location.contains("/"))
+            return null;
+
+        try {
+            return new File(context.getFilesDir(), java.net.URLEncoder.encode(item.location, "UTF-8") + ".seg");
+        } catch (UnsupportedEncodingException e) {
+            Log.e("FileHelper", "getItemSegmentFile: Cannot encode the location of " + item.title, e);
             return null;
         }
     }
 
+    /**
+     * Returns the file the compiled index of blocked hosts is stored in.
+     *
+     * @param context A context to work in
+     * @return The index file in the private files directory
+     */
+    public static File getHostIndexFile(Context context) {
+        return new File(context.getFilesDir(), "hosts.idx");
+    }
+
     /**
      * Wrapper around {@link Os#poll(StructPollfd[], int)} that automatically restarts on EINTR
      * While post-Lollipop devices handle that themselves, we need to do this for Lollipop.
      *
      * @param fds     Descriptors and events to wait on
-     * @param timeout Timeout. Should be -1 for infinite, as we do not lower the timeout when
-     *                retrying due to an interrupt
+     * @param timeout Timeout, or -1 for infinite. We do not lower the timeout when retrying due
+     *                to an interrupt, so it may be exceeded
      * @return The number of fds that have events
      * @throws ErrnoException See {@link Os#poll(StructPollfd[], int)}
      */
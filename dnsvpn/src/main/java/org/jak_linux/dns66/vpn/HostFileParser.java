@@ -1,41 +1,423 @@
 package org.jak_linux.dns66.vpn;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.net.IDN;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.HashSet;
-import java.util.Locale;
 import java.util.Set;
 
+/**
+ * Parses host files.
+ * <p>
+ * The parser works on raw bytes with a small state machine instead of decoding, trimming and
+ * splitting lines, so it does not allocate per line. Each line holds either a single name, or a
+ * device local address followed by a name, optionally followed by a comment starting with
+ * {@code #}. Names starting with {@code *.} or {@code .} stand for a whole domain, and other
+ * names with wildcards are patterns. Names are lower cased while they are copied into a
+ * reusable buffer and handed to the {@link Listener} as a {@link CharSequence} view of that
+ * buffer; it is up to the listener to turn a name into a {@link String} if it needs to keep it.
+ * <p>
+ * The domain anchored subset of Adblock Plus filter lists is understood as well: a rule
+ * {@code ||example.com^} stands for a domain, an exception {@code @@||example.com^} for a
+ * domain that is allowed even though the list blocks it, and the {@code $important} option
+ * makes a rule override exceptions, see {@link HostRule}. Rules with other options, paths or
+ * regular expressions apply to URLs rather than names and are skipped, as are
+ * {@code [Adblock Plus 2.0]} headers and {@code !} comments.
+ * <p>
+ * Each line is classified on its own, so that a stray Adblock style line in a host file does
+ * not change how the lines after it are read. A {@code #} ends the token it follows and starts
+ * a comment, so {@code somehost#comment} names {@code somehost}, unless the first token goes on
+ * like an element hiding rule, as in {@code example.com##.banner} or
+ * {@code example.com#@#.banner}, which makes the line invalid. A name on a line of its own must
+ * only consist of characters valid in names and wildcards, which rules out URL fragments.
+ * <p>
+ * Names containing bytes outside of ASCII are decoded as UTF-8 and reported in their ASCII
+ * form, as queries carry them; patterns and names that have no ASCII form are skipped. Only
+ * these names are allocated while parsing.
+ * A parser keeps state between the chunks of a file, so it must not be shared between threads.
+ */
 class HostFileParser {
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final int INITIAL_TOKEN_SIZE = 256;
+
+    private static final byte[] LOCALHOST = "127.0.0.1".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] ANY_ADDRESS = "0.0.0.0".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] IMPORTANT = "important".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * Receives the entries of a host file.
+     * <p>
+     * The names passed to the listener are only valid until the method returns.
+     */
+    interface Listener {
+        /**
+         * Called for an entry naming a single host.
+         */
+        void host(CharSequence host);
+
+        /**
+         * Called for an entry naming a domain and all of its subdomains, written as
+         * {@code *.example.com}, {@code .example.com} or {@code ||example.com^}.
+         *
+         * @param modifiers The modifiers of an Adblock style rule, see {@link HostRule}, or 0
+         */
+        void domain(CharSequence domain, int modifiers);
+
+        /**
+         * Called for an entry containing wildcards other than a leading {@code *.}, such as
+         * {@code *ads*.example.*}, see {@link PatternMatcher}.
+         *
+         * @param modifiers The modifiers of an Adblock style rule, see {@link HostRule}, or 0
+         */
+        void pattern(CharSequence pattern, int modifiers);
+    }
+
+    /**
+     * A view of a range of the bytes of a token.
+     */
+    private static class Name implements CharSequence {
+        private byte[] bytes;
+        private int offset;
+        private int length;
+
+        Name set(byte[] bytes, int offset, int length) {
+            this.bytes = bytes;
+            this.offset = offset;
+            this.length = length;
+            return this;
+        }
+
+        @Override
+        public int length() {
+            return length;
+        }
+
+        @Override
+        public char charAt(int index) {
+            return (char) bytes[offset + index];
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return toString().substring(start, end);
+        }
+
+        @Override
+        public String toString() {
+            return new String(bytes, offset, length, StandardCharsets.US_ASCII);
+        }
+    }
+
+    // Line state
+    private boolean inComment;
+    private boolean afterHash;
+    private boolean invalid;
+    private boolean inToken;
+    private int tokenCount;
+    private boolean firstIsLocalIp;
+    private boolean nonAscii;
+
+    // The first two tokens of the line; later ones make the line invalid and are not stored.
+    private byte[] first = new byte[INITIAL_TOKEN_SIZE];
+    private int firstLength;
+    private boolean firstNonAscii;
+    private byte[] second = new byte[INITIAL_TOKEN_SIZE];
+    private int secondLength;
+    // An anchored Adblock pattern, prefixed with "*."
+    private byte[] subdomainPattern = new byte[INITIAL_TOKEN_SIZE];
+
+    private final Name name = new Name();
+
     public Set<String> parse(InputStream inputStream) {
-        HashSet<String> hosts = new HashSet<>();
-        try {
-            try (BufferedReader br = new BufferedReader(new InputStreamReader(inputStream))) {
-                String line;
-                while ((line = br.readLine()) != null) {
-                    String s = line.trim();
-                    s = s.substring(0, s.contains("#") ? s.indexOf("#") : s.length());
-
-                    if (!s.isEmpty()) {
-                        String[] split = s.split("[ \t]+");
-
-                        if (split.length == 2 && isDeviceLocalIp(split[0])) {
-                            hosts.add(split[1].toLowerCase(Locale.ENGLISH));
-                        } else if (split.length == 1) {
-                            hosts.add(split[0].toLowerCase(Locale.ENGLISH));
-                        }
-                    }
-                }
+        final HashSet<String> hosts = new HashSet<>();
+        parse(inputStream, new Listener() {
+            @Override
+            public void host(CharSequence host) {
+                hosts.add(host.toString());
             }
+
+            @Override
+            public void domain(CharSequence domain, int modifiers) {
+            }
+
+            @Override
+            public void pattern(CharSequence pattern, int modifiers) {
+            }
+        });
+        return hosts;
+    }
+
+    public void parse(InputStream inputStream, Listener listener) {
+        try {
+            read(inputStream, listener);
         } catch (IOException ignored) {
 
         }
-        return hosts;
     }
 
-    private boolean isDeviceLocalIp(String s) {
-        return s.equals("127.0.0.1") || s.equals("0.0.0.0");
+    /**
+     * Parses a stream until its end, and closes it. Unlike
+     * {@link #parse(InputStream, Listener)}, a failure to read the stream is reported, so that
+     * callers can tell an incomplete list from a complete one.
+     *
+     * @throws IOException If the stream cannot be read. The entries of complete lines read
+     *                     before the failure have already been reported.
+     */
+    void read(InputStream inputStream, Listener listener) throws IOException {
+        byte[] buffer = new byte[READ_BUFFER_SIZE];
+        try (InputStream in = inputStream) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                for (int i = 0; i < read; i++)
+                    feed(buffer[i], listener);
+            }
+        } catch (IOException e) {
+            reset();
+            throw e;
+        }
+        endLine(listener);
+    }
+
+    /**
+     * Parses the remaining bytes of a buffer, such as a memory mapped host file, without
+     * copying them. The position of the buffer is not changed.
+     */
+    void parse(ByteBuffer buffer, Listener listener) {
+        for (int i = buffer.position(); i < buffer.limit(); i++)
+            feed(buffer.get(i), listener);
+        endLine(listener);
+    }
+
+    void parseLine(String line, Listener listener) {
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        for (byte b : bytes)
+            feed(b, listener);
+        endLine(listener);
+    }
+
+    private void feed(byte b, Listener listener) {
+        if (afterHash) {
+            afterHash = false;
+            // Element hiding rules and their exceptions
+            if (b == '#' || b == '@' || b == '?' || b == '$')
+                invalid = true;
+        }
+
+        switch (b) {
+            case '\n':
+            case '\r':
+                endLine(listener);
+                return;
+            case '#':
+                if (inToken && tokenCount == 1)
+                    afterHash = true;
+                endToken();
+                inComment = true;
+                return;
+            case ' ':
+            case '\t':
+                endToken();
+                return;
+        }
+
+        if (inComment)
+            return;
+        if (!inToken) {
+            inToken = true;
+            tokenCount++;
+        }
+
+        if (b >= 'A' && b <= 'Z')
+            b += 'a' - 'A';
+        else if (b < 0)
+            nonAscii = true;
+
+        if (tokenCount == 1) {
+            if (firstLength == first.length)
+                first = Arrays.copyOf(first, first.length * 2);
+            first[firstLength++] = b;
+        } else if (tokenCount == 2) {
+            if (secondLength == second.length)
+                second = Arrays.copyOf(second, second.length * 2);
+            second[secondLength++] = b;
+        }
+    }
+
+    private void endToken() {
+        if (!inToken)
+            return;
+        inToken = false;
+        if (tokenCount == 1) {
+            firstIsLocalIp = isDeviceLocalIp(first, firstLength);
+            firstNonAscii = nonAscii;
+            nonAscii = false;
+        }
+    }
+
+    private void endLine(Listener listener) {
+        endToken();
+        if (invalid || (tokenCount > 0 && (first[0] == '!' || first[0] == '['))) {
+            // Element hiding rules, Adblock comments and headers
+        } else if (tokenCount == 1 && (first[0] == '|' || first[0] == '@')) {
+            if (!firstNonAscii)
+                parseAdblockRule(first, firstLength, listener);
+        } else if (tokenCount == 1 && isBareName(first, firstLength)) {
+            parseName(first, firstLength, firstNonAscii, listener);
+        } else if (tokenCount == 2 && firstIsLocalIp) {
+            parseName(second, secondLength, nonAscii, listener);
+        }
+        reset();
+    }
+
+    private void reset() {
+        inToken = false;
+        inComment = false;
+        afterHash = false;
+        invalid = false;
+        tokenCount = 0;
+        firstIsLocalIp = false;
+        nonAscii = false;
+        firstNonAscii = false;
+        firstLength = 0;
+        secondLength = 0;
+    }
+
+    private void parseName(byte[] bytes, int length, boolean nonAscii, Listener listener) {
+        if (nonAscii) {
+            // Queries carry internationalized names in their ASCII form.
+            bytes = toAscii(bytes, length);
+            if (bytes == null)
+                return;
+            length = bytes.length;
+        }
+        if (length >= 2 && bytes[0] == '*' && bytes[1] == '.' && !PatternMatcher.isPattern(name.set(bytes, 2, length - 2))) {
+            if (length > 2)
+                listener.domain(name, 0);
+        } else if (bytes[0] == '.' && !PatternMatcher.isPattern(name.set(bytes, 1, length - 1))) {
+            if (length > 1)
+                listener.domain(name, 0);
+        } else if (PatternMatcher.isPattern(name.set(bytes, 0, length))) {
+            listener.pattern(name, 0);
+        } else {
+            listener.host(name);
+        }
+    }
+
+    /**
+     * Converts an internationalized name, possibly standing for a domain, to its ASCII form,
+     * see {@link IDN#toASCII(String, int)}.
+     *
+     * @return The ASCII name, or null if it is invalid or a pattern
+     */
+    private static byte[] toAscii(byte[] bytes, int length) {
+        String name = new String(bytes, 0, length, StandardCharsets.UTF_8);
+        int start = name.startsWith("*.") ? 2 : name.startsWith(".") ? 1 : 0;
+        if (PatternMatcher.isPattern(name.substring(start)))
+            return null;
+        try {
+            return (name.substring(0, start) + IDN.toASCII(name.substring(start), IDN.USE_STD3_ASCII_RULES)).getBytes(StandardCharsets.US_ASCII);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Parses a rule of the form {@code [@@]||name[^][|][$important]}.
+     */
+    private void parseAdblockRule(byte[] bytes, int length, Listener listener) {
+        int modifiers = 0;
+        int i = 0;
+        if (length >= 2 && bytes[0] == '@' && bytes[1] == '@') {
+            modifiers |= HostRule.EXCEPTION;
+            i = 2;
+        }
+        if (length < i + 2 || bytes[i] != '|' || bytes[i + 1] != '|')
+            return;
+
+        int start = i + 2;
+        int end = start;
+        while (end < length && bytes[end] != '^' && bytes[end] != '$' && bytes[end] != '|')
+            end++;
+
+        i = end;
+        if (i < length && bytes[i] == '^')
+            i++;
+        if (i < length && bytes[i] == '|')
+            i++;
+        if (i < length) {
+            if (bytes[i] != '$')
+                return;
+            int optionStart = i + 1;
+            while (optionStart <= length) {
+                int optionEnd = optionStart;
+                while (optionEnd < length && bytes[optionEnd] != ',')
+                    optionEnd++;
+                if (!equals(bytes, optionStart, optionEnd - optionStart, IMPORTANT))
+                    return;
+                modifiers |= HostRule.IMPORTANT;
+                optionStart = optionEnd + 1;
+            }
+        }
+
+        if (end == start || bytes[start] == '.')
+            return;
+        boolean wildcard = false;
+        for (int j = start; j < end; j++) {
+            byte b = bytes[j];
+            if (b == '*')
+                wildcard = true;
+            else if (!isNameByte(b))
+                return;
+        }
+
+        if (!wildcard) {
+            listener.domain(name.set(bytes, start, end - start), modifiers);
+            return;
+        }
+        listener.pattern(name.set(bytes, start, end - start), modifiers);
+        if (bytes[start] != '*') {
+            // The anchor also matches the subdomains of what the pattern matches.
+            int patternLength = end - start + 2;
+            if (patternLength > subdomainPattern.length)
+                subdomainPattern = new byte[patternLength];
+            subdomainPattern[0] = '*';
+            subdomainPattern[1] = '.';
+            System.arraycopy(bytes, start, subdomainPattern, 2, end - start);
+            listener.pattern(name.set(subdomainPattern, 0, patternLength), modifiers);
+        }
+    }
+
+    /**
+     * @return true if the bytes only consist of characters valid in names and wildcards, or of
+     * bytes outside of ASCII
+     */
+    private static boolean isBareName(byte[] bytes, int length) {
+        for (int i = 0; i < length; i++) {
+            byte b = bytes[i];
+            if (!isNameByte(b) && b != '*' && b != '?' && b >= 0)
+                return false;
+        }
+        return true;
+    }
+
+    private static boolean isNameByte(byte b) {
+        return (b >= 'a' && b <= 'z') || (b >= '0' && b <= '9') || b == '-' || b == '_' || b == '.';
+    }
+
+    private static boolean isDeviceLocalIp(byte[] bytes, int length) {
+        return equals(bytes, 0, length, LOCALHOST) || equals(bytes, 0, length, ANY_ADDRESS);
+    }
+
+    private static boolean equals(byte[] bytes, int offset, int length, byte[] other) {
+        if (length != other.length)
+            return false;
+        for (int i = 0; i < length; i++) {
+            if (bytes[offset + i] != other[i])
+                return false;
+        }
+        return true;
     }
 }
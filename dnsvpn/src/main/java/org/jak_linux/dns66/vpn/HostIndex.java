@@ -0,0 +1,367 @@
+package org.jak_linux.dns66.vpn;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A compiled, read-only set of blocked host names.
+ * <p>
+ * The index stores the tables of a {@link DomainRuleMap} with the fingerprints of host names and
+ * the rules deciding about them, followed by a {@link DomainTrie} holding the rules for domains
+ * and their subdomains, and by the wildcard patterns of a {@link PatternMatcher}. If several of
+ * them have a rule for a name, the one from the latest source wins. The on-disk layout is
+ * identical to the in-memory layout, so a file written by
+ * {@link #write(File, long, DomainRuleMap, DomainTrie, PatternMatcher)} can be mapped with
+ * {@link #open(File)} and queried in place, without parsing the host files again and without
+ * copying the data onto the Java heap.
+ * <p>
+ * The table and the trie sit behind a {@link BloomFilter} of the fingerprints of the hosts in
+ * the table and of the names with rules in the trie. A name is only looked up in them if the
+ * filter may contain the name or, if there are domain rules, one of its parent domains. The
+ * patterns cannot be filtered by fingerprints; they have a filter of their own, which rejects
+ * names lacking the characters every pattern requires, see {@link PatternMatcher}.
+ * <p>
+ * File layout (little endian, the native order on all supported devices):
+ * <pre>
+ *     int  magic
+ *     int  version
+ *     long stamp      -- identifies the inputs the index was built from
+ *     int  size       -- number of hosts
+ *     int  capacity   -- number of slots, a power of two
+ *     filter          -- see {@link BloomFilter#writeTo(ByteBuffer)}, or two zero ints if none
+ *     long slots[capacity]
+ *     int  rules[capacity]
+ *     trie            -- see {@link DomainTrie#writeTo(ByteBuffer)}
+ *     patterns        -- see {@link PatternMatcher#writeTo(ByteBuffer)}
+ * </pre>
+ * <p>
+ * The patterns are read onto the heap, as matching them builds an automaton there anyway.
+ * Lookups update the pattern automaton, so an index must only be queried from one thread at a
+ * time; other threads query their own {@link #duplicate()}.
+ */
+class HostIndex {
+    private static final int MAGIC = 0x444e5336; // "DNS6"
+    private static final int VERSION = 7;
+    private static final int HEADER_SIZE = 24;
+    /* Written in place of a filter, where a filter starts with its block count */
+    private static final int NO_FILTER_SIZE = 8;
+    /* False positive rate of the filter in front of the table and the trie */
+    static final double DEFAULT_FILTER_FALSE_POSITIVE_RATE = 0.01;
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
+    private final long stamp;
+    private final int size;
+    private final int mask;
+    private final LongBuffer slots;
+    private final IntBuffer rules;
+    private final DomainTrie trie;
+    private final PatternMatcher patterns;
+    /* The serialized patterns, to build the automaton of duplicates from */
+    private final ByteBuffer patternData;
+    private final BloomFilter filter;
+
+    private HostIndex(ByteBuffer buffer) throws IOException {
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC)
+            throw new IOException("Not a host index");
+        if (buffer.getInt(4) != VERSION)
+            throw new IOException("Unsupported host index version " + buffer.getInt(4));
+
+        stamp = buffer.getLong(8);
+        size = buffer.getInt(16);
+        int capacity = buffer.getInt(20);
+        buffer.position(HEADER_SIZE);
+        if (buffer.remaining() >= NO_FILTER_SIZE && buffer.getInt(HEADER_SIZE) == 0) {
+            filter = null;
+            buffer.position(HEADER_SIZE + NO_FILTER_SIZE);
+        } else {
+            filter = BloomFilter.read(buffer);
+        }
+        int tableOffset = buffer.position();
+        if (Integer.bitCount(capacity) != 1 || tableOffset + 12L * capacity > buffer.capacity())
+            throw new IOException("Truncated host index");
+
+        mask = capacity - 1;
+        slots = buffer.slice().order(ByteOrder.LITTLE_ENDIAN).asLongBuffer();
+        buffer.position(tableOffset + 8 * capacity);
+        rules = buffer.slice().order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+        buffer.position(tableOffset + 12 * capacity);
+        trie = DomainTrie.read(buffer);
+        patternData = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+        patterns = PatternMatcher.read(buffer);
+    }
+
+    private HostIndex(HostIndex other) throws IOException {
+        stamp = other.stamp;
+        size = other.size;
+        mask = other.mask;
+        slots = other.slots;
+        rules = other.rules;
+        trie = other.trie;
+        patternData = other.patternData;
+        patterns = PatternMatcher.read(patternData.duplicate().order(ByteOrder.LITTLE_ENDIAN));
+        filter = other.filter == null ? null : other.filter.duplicate();
+    }
+
+    /**
+     * Creates an index that does not contain any host.
+     */
+    static HostIndex empty() {
+        try {
+            DomainTrie trie = new DomainTrie();
+            PatternMatcher patterns = new PatternMatcher();
+            ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + NO_FILTER_SIZE + 12 + trie.serializedSize() + patterns.serializedSize()).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.put(header(0, 0, 1));
+            buffer.putLong(0);
+            buffer.putLong(0);
+            buffer.putInt(HostRule.NONE);
+            trie.writeTo(buffer);
+            patterns.writeTo(buffer);
+            buffer.flip();
+            return new HostIndex(buffer);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Maps an index file written by {@link #write(File, long, DomainRuleMap, DomainTrie, PatternMatcher)} into
+     * memory.
+     *
+     * @param file The index file
+     * @return An index backed by the mapped file
+     * @throws IOException If the file cannot be read or is not a valid index
+     */
+    static HostIndex open(File file) throws IOException {
+        try (FileInputStream inputStream = new FileInputStream(file)) {
+            FileChannel channel = inputStream.getChannel();
+            // The mapping stays valid after the channel has been closed.
+            return new HostIndex(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * Compiles the given rules into an index file, with a filter of the default false positive
+     * rate, see {@link #write(File, long, DomainRuleMap, DomainTrie, PatternMatcher, double)}.
+     */
+    static void write(File file, long stamp, DomainRuleMap hosts, DomainTrie trie, PatternMatcher patterns) throws IOException {
+        write(file, stamp, hosts, trie, patterns, DEFAULT_FILTER_FALSE_POSITIVE_RATE);
+    }
+
+    /**
+     * Compiles the given rules into an index file. The file is written to a temporary
+     * location first and then renamed, so readers never observe a partially written index.
+     * The filter is built here, from the table on the heap, so that opening the index does not
+     * have to read the whole table.
+     *
+     * @param file                    The index file to write
+     * @param stamp                   A value identifying the inputs, see {@link #getStamp()}
+     * @param hosts                   The rules for host names
+     * @param trie                    The rules for domains and their subdomains
+     * @param patterns                The rules for patterns
+     * @param filterFalsePositiveRate The false positive rate the filter is sized for; the index
+     *                                is written without a filter unless it is between 0 and 1
+     *                                exclusive
+     * @throws IOException If the index cannot be written
+     */
+    static void write(File file, long stamp, DomainRuleMap hosts, DomainTrie trie, PatternMatcher patterns,
+                      double filterFalsePositiveRate) throws IOException {
+        long[] table = hosts.getTable();
+        int[] tableRules = hosts.getRules();
+
+        File tmpFile = new File(file.getPath() + ".tmp");
+        try (FileOutputStream outputStream = new FileOutputStream(tmpFile)) {
+            FileChannel channel = outputStream.getChannel();
+            writeFully(channel, header(stamp, hosts.size(), table.length));
+
+            ByteBuffer filterBuffer;
+            if (filterFalsePositiveRate > 0 && filterFalsePositiveRate < 1) {
+                DomainHashSet names = trie.getNames();
+                BloomFilter filter = new BloomFilter(hosts.size() + names.size(), filterFalsePositiveRate);
+                for (long slot : table) {
+                    if (slot != 0)
+                        filter.add(slot);
+                }
+                for (long name : names.getTable()) {
+                    if (name != 0)
+                        filter.add(name);
+                }
+                filterBuffer = ByteBuffer.allocate(filter.serializedSize()).order(ByteOrder.LITTLE_ENDIAN);
+                filter.writeTo(filterBuffer);
+            } else {
+                filterBuffer = ByteBuffer.allocate(NO_FILTER_SIZE);
+                filterBuffer.position(NO_FILTER_SIZE);
+            }
+            filterBuffer.flip();
+            writeFully(channel, filterBuffer);
+
+            ByteBuffer buffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            for (long slot : table) {
+                if (!buffer.hasRemaining())
+                    flush(channel, buffer);
+                buffer.putLong(slot);
+            }
+            for (int rule : tableRules) {
+                if (!buffer.hasRemaining())
+                    flush(channel, buffer);
+                buffer.putInt(rule);
+            }
+            flush(channel, buffer);
+
+            ByteBuffer trieBuffer = ByteBuffer.allocate(trie.serializedSize() + patterns.serializedSize()).order(ByteOrder.LITTLE_ENDIAN);
+            trie.writeTo(trieBuffer);
+            patterns.writeTo(trieBuffer);
+            trieBuffer.flip();
+            writeFully(channel, trieBuffer);
+            outputStream.getFD().sync();
+        }
+        if (!tmpFile.renameTo(file))
+            throw new IOException("Cannot rename " + tmpFile + " to " + file);
+    }
+
+    private static ByteBuffer header(long stamp, int size, int capacity) {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        buffer.putLong(stamp);
+        buffer.putInt(size);
+        buffer.putInt(capacity);
+        buffer.flip();
+        return buffer;
+    }
+
+    private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        writeFully(channel, buffer);
+        buffer.clear();
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+    }
+
+    /**
+     * Creates an index for another thread, that shares the tables and the filter with this one,
+     * but has a pattern automaton of its own.
+     */
+    HostIndex duplicate() {
+        try {
+            return new HostIndex(this);
+        } catch (IOException e) {
+            // The patterns were read from the same data before.
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Checks whether the given host is blocked by the index. The check is ASCII
+     * case-insensitive.
+     */
+    boolean contains(CharSequence host) {
+        return HostRule.isBlocking(lookup(host));
+    }
+
+    /**
+     * Finds the rule deciding about the given host: of the rules for the host itself, for its
+     * parent domains and for the patterns matching it, the one from the latest source, see
+     * {@link HostRule}.
+     *
+     * @return The rule, or {@link HostRule#NONE}
+     */
+    int lookup(CharSequence host) {
+        long fingerprint = DomainHashSet.fingerprint(host);
+        if (filter == null)
+            return Math.max(patterns.match(host), Math.max(lookupHost(fingerprint), trie.lookup(host)));
+
+        boolean positive = mightHaveRule(host, fingerprint);
+        filter.recordAnswer(positive);
+        if (!positive)
+            return patterns.match(host);
+        int found = Math.max(lookupHost(fingerprint), trie.lookup(host));
+        if (found == HostRule.NONE)
+            filter.recordFalsePositive();
+        return Math.max(patterns.match(host), found);
+    }
+
+    /**
+     * Checks whether the filter may contain the host or, if the trie has rules, one of its
+     * parent domains.
+     */
+    private boolean mightHaveRule(CharSequence host, long fingerprint) {
+        if (filter.test(fingerprint))
+            return true;
+        if (trie.isEmpty())
+            return false;
+
+        int length = host.length();
+        int end = length > 0 && host.charAt(length - 1) == '.' ? length - 1 : length;
+        // Without a trailing dot, the whole name was tested above.
+        int start = end == length ? nextLabel(host, 0, end) : 0;
+        while (start < end) {
+            if (filter.test(DomainHashSet.fingerprint(host, start, end)))
+                return true;
+            start = nextLabel(host, start, end);
+        }
+        return false;
+    }
+
+    /**
+     * @return The start of the label after the one starting at the given position, or the end
+     */
+    private static int nextLabel(CharSequence host, int start, int end) {
+        while (start < end && host.charAt(start) != '.')
+            start++;
+        return start + 1;
+    }
+
+    /**
+     * Finds the rule for the host itself in the table.
+     */
+    private int lookupHost(long fingerprint) {
+        for (int i = (int) fingerprint & mask; ; i = (i + 1) & mask) {
+            long slot = slots.get(i);
+            if (slot == fingerprint)
+                return rules.get(i);
+            if (slot == 0)
+                return HostRule.NONE;
+        }
+    }
+
+    /**
+     * @return The filter consulted before the table and the trie, so that hosts which definitely
+     * have no rule in them do not have to be looked up, or null if the index was written without
+     * one
+     */
+    BloomFilter getFilter() {
+        return filter;
+    }
+
+    /**
+     * @return A value identifying the inputs the index was built from.
+     */
+    long getStamp() {
+        return stamp;
+    }
+
+    /**
+     * @return The number of patterns
+     */
+    int patternCount() {
+        return patterns.size();
+    }
+
+    /**
+     * @return The number of hosts in the table, not counting domain rules
+     */
+    int size() {
+        return size;
+    }
+}
@@ -0,0 +1,268 @@
+package org.jak_linux.dns66.vpn;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Compiles host lists into the rules of a {@link HostIndex}.
+ * <p>
+ * The lists are loaded concurrently on a bounded number of threads, each into a
+ * {@link HostSegment} of its own. The segments are merged on the calling thread in the order
+ * of the lists, as soon as each one is ready, so that rules from later lists override those
+ * from earlier ones.
+ * <p>
+ * The hosts of a list are only merged once all lists have been loaded. Until then, they wait
+ * in memory mapped files: segment files as they are, and lists parsed on the heap moved into
+ * a temporary file, see {@link HostSegment#mapHosts()}. So the heap holds little more than the
+ * merged table, however many lists there are.
+ */
+class HostListCompiler {
+
+    /**
+     * A host list to compile.
+     */
+    static abstract class Source {
+        final int id;
+        final boolean block;
+
+        /**
+         * @param id    The source of the rules, see {@link HostRule}
+         * @param block true if the list blocks hosts, false if it allows them
+         */
+        Source(int id, boolean block) {
+            this.id = id;
+            this.block = block;
+        }
+
+        abstract HostSegment load(HostFileParser parser) throws IOException;
+    }
+
+    /**
+     * A host list stored in a file. Plain files are mapped into memory for parsing, gzip
+     * compressed ones, as written by {@link HostListDownloader}, are read through a streaming
+     * decompressor.
+     */
+    static class FileSource extends Source {
+        private static final int GZIP_BUFFER_SIZE = 64 * 1024;
+
+        private final File file;
+
+        FileSource(int id, boolean block, File file) {
+            super(id, block);
+            this.file = file;
+        }
+
+        @Override
+        HostSegment load(HostFileParser parser) throws IOException {
+            HostSegment.Builder builder = new HostSegment.Builder();
+            try (FileInputStream fileInputStream = new FileInputStream(file)) {
+                FileChannel channel = fileInputStream.getChannel();
+                if (isGzip(channel))
+                    parser.read(new GZIPInputStream(fileInputStream, GZIP_BUFFER_SIZE), builder);
+                else
+                    parser.parse(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), builder);
+            }
+            return builder.build();
+        }
+
+        private static boolean isGzip(FileChannel channel) throws IOException {
+            ByteBuffer magic = ByteBuffer.allocate(2);
+            while (magic.hasRemaining() && channel.read(magic, magic.position()) > 0) {
+                // Positional reads leave the position of the channel at the start
+            }
+            return !magic.hasRemaining() && (magic.get(0) & 0xff) == 0x1f && (magic.get(1) & 0xff) == 0x8b;
+        }
+    }
+
+    /**
+     * A host list compiled into a segment file, see {@link HostSegment#write(File)}.
+     */
+    static class SegmentSource extends Source {
+        private final File file;
+
+        SegmentSource(int id, boolean block, File file) {
+            super(id, block);
+            this.file = file;
+        }
+
+        @Override
+        HostSegment load(HostFileParser parser) throws IOException {
+            return HostSegment.read(file);
+        }
+    }
+
+    /**
+     * A single entry given directly in the configuration.
+     */
+    static class LineSource extends Source {
+        private final String line;
+
+        LineSource(int id, boolean block, String line) {
+            super(id, block);
+            this.line = line;
+        }
+
+        @Override
+        HostSegment load(HostFileParser parser) {
+            HostSegment.Builder builder = new HostSegment.Builder();
+            parser.parseLine(line, builder);
+            return builder.build();
+        }
+    }
+
+    private final int threads;
+    private DomainRuleMap hosts = new DomainRuleMap();
+    private final DomainTrie trie = new DomainTrie();
+    private final PatternMatcher patterns = new PatternMatcher();
+    private final Map<Source, Throwable> failures = new LinkedHashMap<>();
+
+    /**
+     * @param threads The maximum number of lists to parse at the same time
+     */
+    HostListCompiler(int threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * Parses the sources and merges them into the rules. Sources that cannot be read are
+     * skipped and reported by {@link #getFailures()}.
+     * <p>
+     * Domains and patterns are merged as soon as each list is ready. The hosts of all lists
+     * are merged at the end, from their mapped sorted fingerprints, see
+     * {@link SortedRunMerger}, directly into a table of the final size.
+     *
+     * @param sources The sources, in increasing order of their ids
+     * @throws InterruptedException If the calling thread was interrupted while waiting for a list
+     */
+    void compile(List<? extends Source> sources) throws InterruptedException {
+        List<LongBuffer> runs = new ArrayList<>(sources.size());
+        List<Integer> runRules = new ArrayList<>(sources.size());
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, sources.size())));
+        try {
+            List<Future<HostSegment>> segments = new ArrayList<>(sources.size());
+            for (final Source source : sources) {
+                segments.add(executor.submit(new Callable<HostSegment>() {
+                    @Override
+                    public HostSegment call() throws IOException {
+                        HostSegment segment = source.load(new HostFileParser());
+                        try {
+                            return segment.mapHosts();
+                        } catch (IOException e) {
+                            // The hosts are merged from the heap then.
+                            return segment;
+                        }
+                    }
+                }));
+            }
+
+            for (int i = 0; i < sources.size(); i++) {
+                Source source = sources.get(i);
+                try {
+                    HostSegment segment = segments.get(i).get();
+                    mergeNames(source, segment);
+                    runs.add(segment.getHosts());
+                    runRules.add(HostRule.encode(source.block, source.id));
+                } catch (ExecutionException e) {
+                    failures.put(source, e.getCause());
+                }
+                // Only the hosts of the segment are kept
+                segments.set(i, null);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        int[] rules = new int[runRules.size()];
+        for (int i = 0; i < rules.length; i++)
+            rules[i] = runRules.get(i);
+        mergeHosts(runs.toArray(new LongBuffer[runs.size()]), rules);
+    }
+
+    private void mergeNames(Source source, HostSegment segment) {
+        List<String> domains = segment.getDomains();
+        for (int i = 0; i < domains.size(); i++) {
+            trie.addDomain(domains.get(i), ruleOf(source, segment.getDomainModifiers(i)));
+        }
+        List<String> patternList = segment.getPatterns();
+        for (int i = 0; i < patternList.size(); i++) {
+            patterns.add(patternList.get(i), ruleOf(source, segment.getPatternModifiers(i)));
+        }
+    }
+
+    /**
+     * Exceptions allow, whatever the list does with its other entries.
+     */
+    private static int ruleOf(Source source, int modifiers) {
+        boolean block = source.block && (modifiers & HostRule.EXCEPTION) == 0;
+        return HostRule.encode(block, source.id, modifiers);
+    }
+
+    /**
+     * Merges the hosts of all lists into the table, keeping the rule of the latest list for
+     * each host. Allow rules only matter if they can override a domain or pattern rule; if
+     * there are none, only the blocked hosts are kept.
+     */
+    private void mergeHosts(LongBuffer[] runs, int[] rules) {
+        boolean keepAllowed = !trie.isEmpty() || patterns.size() > 0;
+
+        // The first pass counts the entries, so that the table can be allocated at its final
+        // size; it reads the mapped runs only, whereas growing the table would need the old and
+        // the new one on the heap at the same time.
+        int count = 0;
+        SortedRunMerger merger = new SortedRunMerger(runs, rules);
+        while (merger.next()) {
+            if (keepAllowed || HostRule.isBlocking(merger.rule()))
+                count++;
+        }
+
+        hosts = new DomainRuleMap(count);
+        merger = new SortedRunMerger(runs, rules);
+        while (merger.next()) {
+            if (keepAllowed || HostRule.isBlocking(merger.rule()))
+                hosts.put(merger.fingerprint(), merger.rule());
+        }
+    }
+
+    /**
+     * @return The rules for host names
+     */
+    DomainRuleMap getHosts() {
+        return hosts;
+    }
+
+    /**
+     * @return The rules for domains and their subdomains
+     */
+    DomainTrie getTrie() {
+        return trie;
+    }
+
+    /**
+     * @return The rules for patterns
+     */
+    PatternMatcher getPatterns() {
+        return patterns;
+    }
+
+    /**
+     * @return The sources that could not be read, in order, with the reason they failed
+     */
+    Map<Source, Throwable> getFailures() {
+        return failures;
+    }
+}
@@ -0,0 +1,239 @@
+package org.jak_linux.dns66.vpn;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Downloads host lists and compiles them into {@link HostSegment} files on the fly.
+ * <p>
+ * The response body is streamed straight through a {@link HostFileParser}, so a list is read
+ * once and never stored in its raw form unless asked for. The segment, and the raw file if
+ * any, are only replaced once the whole list has been received; until then, the previous ones
+ * stay in place.
+ * <p>
+ * Servers are asked for gzip or deflate encoded responses, which are decompressed while they
+ * are parsed. Deflate bodies may come with or without the zlib wrapper the standard asks for,
+ * as many servers send them bare. Raw files are always stored gzip compressed: a gzip encoded response is written
+ * as received, anything else is compressed on the way. {@link HostListCompiler.FileSource}
+ * recognizes compressed files and reads them through a streaming decompressor.
+ * <p>
+ * The Last-Modified time and the ETag of the response are stored in the segment, and sent
+ * back with the next request for the list, so that whether it changed is decided by the clock
+ * of the server alone.
+ */
+class HostListDownloader {
+    private static final int CONNECT_TIMEOUT_MS = 15000;
+    private static final int READ_TIMEOUT_MS = 30000;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final boolean verifyFingerprints;
+    private int collisions;
+
+    /**
+     * Copies everything read from a stream into a file.
+     */
+    private static class TeeInputStream extends FilterInputStream {
+        private final OutputStream outputStream;
+
+        TeeInputStream(InputStream in, OutputStream outputStream) {
+            super(in);
+            this.outputStream = outputStream;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1)
+                outputStream.write(b);
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int read = super.read(buffer, offset, count);
+            if (read > 0)
+                outputStream.write(buffer, offset, read);
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            // Skipped bytes would be missing from the copy
+            return 0;
+        }
+    }
+
+    HostListDownloader() {
+        this(false);
+    }
+
+    /**
+     * @param verifyFingerprints true if lists should be checked for distinct hosts sharing a
+     *                           fingerprint, see {@link #getCollisions()}
+     */
+    HostListDownloader(boolean verifyFingerprints) {
+        this.verifyFingerprints = verifyFingerprints;
+    }
+
+    /**
+     * @return The number of hosts of the last list compiled that share the fingerprint of
+     * another host of it, if lists are verified
+     */
+    int getCollisions() {
+        return collisions;
+    }
+
+    /**
+     * Downloads a list, unless the server reports that it did not change since the segment
+     * file was downloaded. A segment of another version, see {@link HostSegment#isCurrent(File)},
+     * or without validators is replaced in any case.
+     *
+     * @param url         The location of the list
+     * @param segmentFile The file to store the compiled list in
+     * @param rawFile     The file to store the list as received in, or null
+     * @return true if the list was downloaded, false if it did not change
+     * @throws IOException If the list cannot be downloaded or stored
+     */
+    boolean download(URL url, File segmentFile, File rawFile) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        try {
+            connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+            connection.setReadTimeout(READ_TIMEOUT_MS);
+            // Setting this disables the transparent decompression of HttpURLConnection, so that
+            // gzip encoded responses can be stored without decompressing and compressing them.
+            connection.setRequestProperty("Accept-Encoding", "gzip, deflate");
+            HostSegment.Validators validators = rawFile == null || rawFile.exists() ? HostSegment.readValidators(segmentFile) : null;
+            if (validators != null && validators.lastModified != 0)
+                connection.setIfModifiedSince(validators.lastModified);
+            if (validators != null && validators.entityTag != null)
+                connection.setRequestProperty("If-None-Match", validators.entityTag);
+
+            int responseCode = connection.getResponseCode();
+            if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED)
+                return false;
+            if (responseCode != HttpURLConnection.HTTP_OK)
+                throw new IOException("Cannot download " + url + ": " + responseCode + " " + connection.getResponseMessage());
+
+            download(connection.getInputStream(), connection.getContentEncoding(), segmentFile, rawFile,
+                    new HostSegment.Validators(connection.getLastModified(), connection.getHeaderField("ETag")));
+            return true;
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * Compiles a list from an unencoded stream, and closes the stream.
+     *
+     * @see #download(URL, File, File)
+     */
+    void download(InputStream inputStream, File segmentFile, File rawFile) throws IOException {
+        download(inputStream, null, segmentFile, rawFile, HostSegment.Validators.NONE);
+    }
+
+    /**
+     * Compiles a list from a stream, and closes the stream.
+     *
+     * @param contentEncoding The HTTP content encoding of the stream, or null if it is not
+     *                        encoded
+     * @param validators      The validators of the response, stored with the segment
+     * @see #download(URL, File, File)
+     */
+    void download(InputStream inputStream, String contentEncoding, File segmentFile, File rawFile,
+                  HostSegment.Validators validators) throws IOException {
+        HostSegment.Builder builder = new HostSegment.Builder(verifyFingerprints);
+        collisions = 0;
+        if (rawFile == null) {
+            new HostFileParser().read(decode(inputStream, contentEncoding), builder);
+            collisions = builder.getCollisions();
+            builder.build().write(segmentFile, validators);
+            return;
+        }
+
+        File tmpFile = new File(rawFile.getPath() + ".tmp");
+        try {
+            try (FileOutputStream outputStream = new FileOutputStream(tmpFile)) {
+                if (isGzip(contentEncoding)) {
+                    new HostFileParser().read(decode(new TeeInputStream(inputStream, outputStream), contentEncoding), builder);
+                    outputStream.getFD().sync();
+                } else {
+                    GZIPOutputStream gzipOutputStream = new GZIPOutputStream(outputStream, BUFFER_SIZE);
+                    try {
+                        new HostFileParser().read(new TeeInputStream(decode(inputStream, contentEncoding), gzipOutputStream), builder);
+                        gzipOutputStream.finish();
+                        outputStream.getFD().sync();
+                    } finally {
+                        // Releases the native memory of the deflater
+                        gzipOutputStream.close();
+                    }
+                }
+            }
+            collisions = builder.getCollisions();
+            builder.build().write(segmentFile, validators);
+            if (!tmpFile.renameTo(rawFile))
+                throw new IOException("Cannot rename " + tmpFile + " to " + rawFile);
+        } finally {
+            tmpFile.delete();
+        }
+    }
+
+    private static boolean isGzip(String contentEncoding) {
+        return contentEncoding != null && (contentEncoding.equalsIgnoreCase("gzip") || contentEncoding.equalsIgnoreCase("x-gzip"));
+    }
+
+    private static InputStream decode(InputStream inputStream, String contentEncoding) throws IOException {
+        if (contentEncoding == null || contentEncoding.equalsIgnoreCase("identity"))
+            return inputStream;
+        try {
+            if (isGzip(contentEncoding))
+                return new GZIPInputStream(inputStream, BUFFER_SIZE);
+            if (contentEncoding.equalsIgnoreCase("deflate"))
+                return inflate(inputStream);
+            throw new IOException("Unsupported content encoding " + contentEncoding);
+        } catch (IOException e) {
+            inputStream.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Decodes a deflate encoded stream, which is zlib wrapped if it starts with a zlib header,
+     * and raw otherwise.
+     */
+    private static InputStream inflate(InputStream inputStream) throws IOException {
+        PushbackInputStream pushbackInputStream = new PushbackInputStream(inputStream, 2);
+        byte[] header = new byte[2];
+        int length = 0;
+        int read;
+        while (length < header.length && (read = pushbackInputStream.read(header, length, header.length - length)) != -1)
+            length += read;
+        pushbackInputStream.unread(header, 0, length);
+
+        // The compression method is deflate, and the header is a multiple of 31, see RFC 1950.
+        int cmfFlg = (header[0] & 0xff) << 8 | (header[1] & 0xff);
+        boolean zlib = length == 2 && (header[0] & 0x0f) == 8 && cmfFlg % 31 == 0;
+        final Inflater inflater = new Inflater(!zlib);
+        return new InflaterInputStream(pushbackInputStream, inflater, BUFFER_SIZE) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    // Releases the native memory of the inflater
+                    inflater.end();
+                }
+            }
+        };
+    }
+}
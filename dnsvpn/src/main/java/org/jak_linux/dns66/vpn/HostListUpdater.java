@@ -0,0 +1,103 @@
+package org.jak_linux.dns66.vpn;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Downloads the configured host lists in the background, compiling each one while it is being
+ * received, and then asks a running VPN to reload the blocked hosts. Only one update runs at a
+ * time, as updates write to the same files; an update started while another one runs does
+ * nothing.
+ */
+public class HostListUpdater implements Runnable {
+    private static final String TAG = "HostListUpdater";
+    /* Set while an update runs */
+    private static final AtomicBoolean RUNNING = new AtomicBoolean(false);
+
+    private final Context context;
+    private final List<Configuration.Item> items;
+    private final boolean keepRawFiles;
+    private final boolean verifyFingerprints;
+
+    /**
+     * @param context A context to work in
+     * @param config  The configuration to update the host lists of; the lists are also stored as
+     *                received and verified if it says so, see
+     *                {@link Configuration.Hosts#keepRawFiles} and
+     *                {@link Configuration.Hosts#verifyFingerprints}
+     */
+    public HostListUpdater(Context context, Configuration config) {
+        this.context = context.getApplicationContext();
+        this.items = new ArrayList<>(config.hosts.items);
+        this.keepRawFiles = config.hosts.keepRawFiles;
+        this.verifyFingerprints = config.hosts.verifyFingerprints;
+    }
+
+    /**
+     * Starts updating on a new thread.
+     */
+    public void start() {
+        new Thread(this, TAG).start();
+    }
+
+    @Override
+    public void run() {
+        if (!RUNNING.compareAndSet(false, true)) {
+            Log.i(TAG, "run: Another update is running");
+            return;
+        }
+        try {
+            update();
+        } finally {
+            RUNNING.set(false);
+        }
+    }
+
+    private void update() {
+        HostListDownloader downloader = new HostListDownloader(verifyFingerprints);
+        int updated = 0;
+
+        for (Configuration.Item item : items) {
+            File segmentFile = FileHelper.getItemSegmentFile(context, item);
+            if (segmentFile == null || item.state == Configuration.Item.STATE_IGNORE)
+                continue;
+
+            File rawFile = keepRawFiles ? FileHelper.getItemFile(context, item) : null;
+            try {
+                Log.d(TAG, "update: Downloading " + item.location + " to " + segmentFile);
+                if (downloader.download(new URL(item.location), segmentFile, rawFile)) {
+                    updated++;
+                    if (downloader.getCollisions() > 0)
+                        Log.w(TAG, "update: " + downloader.getCollisions() + " hosts of " + item.location + " share the fingerprint of another host");
+                    if (rawFile == null)
+                        deleteRawFile(item);
+                } else
+                    Log.d(TAG, "update: " + item.location + " is up to date");
+            } catch (IOException e) {
+                Log.w(TAG, "update: Cannot update " + item.location, e);
+            }
+        }
+
+        Log.i(TAG, "update: Updated " + updated + " host lists");
+        if (updated > 0)
+            AdVpnService.reloadBlockedHosts(context);
+    }
+
+    /**
+     * Deletes a file stored as received by an earlier download, made before lists were compiled
+     * while being downloaded or while raw files were kept, now that the compiled list replaces
+     * it.
+     */
+    private void deleteRawFile(Configuration.Item item) {
+        File file = FileHelper.getItemFile(context, item);
+        if (file != null && file.exists() && !file.delete())
+            Log.w(TAG, "deleteRawFile: Cannot delete " + file);
+    }
+}
@@ -0,0 +1,53 @@
+package org.jak_linux.dns66.vpn;
+
+import android.content.Context;
+
+/**
+ * Tells whether a host is blocked, and which configured host list decided about it.
+ * <p>
+ * Every rule in the compiled index records the position of the item it came from, so a
+ * lookup finds the deciding item in constant time, without keeping a list of sources per host.
+ */
+public final class HostLookup {
+    private final boolean blocked;
+    private final Configuration.Item item;
+
+    private HostLookup(boolean blocked, Configuration.Item item) {
+        this.blocked = blocked;
+        this.item = item;
+    }
+
+    /**
+     * Looks up a host in the index compiled from the current settings, compiling it first if
+     * it is out of date. This may take a while, so it must not be called on the main thread.
+     *
+     * @param context A context to work in
+     * @param host    The host name to look up
+     * @return The result of the lookup
+     * @throws InterruptedException If the thread was interrupted while compiling the index
+     */
+    public static HostLookup lookup(Context context, String host) throws InterruptedException {
+        ContextConfigProvider configProvider = new ContextConfigProvider(context);
+        Configuration config = configProvider.retrieveConfig();
+        HostIndex index = new FileBlockedHostProvider(configProvider, context).retrieveIndex(config);
+
+        int rule = index.lookup(host);
+        int source = HostRule.sourceOf(rule);
+        Configuration.Item item = source >= 0 && source < config.hosts.items.size() ? config.hosts.items.get(source) : null;
+        return new HostLookup(HostRule.isBlocking(rule), item);
+    }
+
+    /**
+     * @return true if the host is blocked
+     */
+    public boolean isBlocked() {
+        return blocked;
+    }
+
+    /**
+     * @return The item whose list blocks or allows the host, or null if no list mentions it
+     */
+    public Configuration.Item getItem() {
+        return item;
+    }
+}
@@ -0,0 +1,65 @@
+package org.jak_linux.dns66.vpn;
+
+/**
+ * Encoding of the rules stored in {@link DomainTrie} and {@link DomainRuleMap}.
+ * <p>
+ * A rule either blocks or allows a name and records its source, the position of the
+ * configuration item it came from, and the modifiers of the Adblock style rule it came from, if
+ * any. Rules are encoded into a positive int so that, of two rules, the one from the later
+ * source is the larger one, and {@link #NONE} is smaller than all rules. Of two rules from the
+ * same source, an {@link #EXCEPTION} is larger than a plain rule, and an {@link #IMPORTANT}
+ * rule is larger than both, so the largest rule is always the one that decides.
+ */
+final class HostRule {
+    /**
+     * No rule
+     */
+    static final int NONE = 0;
+
+    /**
+     * Modifier of an exception rule, {@code @@||example.com^}, which overrides the other rules
+     * of its source
+     */
+    static final int EXCEPTION = 1;
+
+    /**
+     * Modifier of a rule marked {@code $important}, which overrides exceptions of its source
+     */
+    static final int IMPORTANT = 2;
+
+    private HostRule() {
+    }
+
+    /**
+     * @param block  true if the rule blocks, false if it allows
+     * @param source The source of the rule, at least 0
+     * @return The encoded rule
+     */
+    static int encode(boolean block, int source) {
+        return encode(block, source, 0);
+    }
+
+    /**
+     * @param block     true if the rule blocks, false if it allows
+     * @param source    The source of the rule, at least 0
+     * @param modifiers A combination of {@link #EXCEPTION} and {@link #IMPORTANT}, or 0
+     * @return The encoded rule
+     */
+    static int encode(boolean block, int source, int modifiers) {
+        return ((source + 1) << 3) | (modifiers << 1) | (block ? 1 : 0);
+    }
+
+    /**
+     * @return true if the rule blocks; false if it allows or is {@link #NONE}
+     */
+    static boolean isBlocking(int rule) {
+        return (rule & 1) != 0;
+    }
+
+    /**
+     * @return The source of the rule, or -1 for {@link #NONE}
+     */
+    static int sourceOf(int rule) {
+        return (rule >>> 3) - 1;
+    }
+}
@@ -0,0 +1,392 @@
+package org.jak_linux.dns66.vpn;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The compiled entries of a single host list: the sorted fingerprints of its hosts, see
+ * {@link DomainHashSet#fingerprint(CharSequence)}, the names of its domains, and its patterns.
+ * Domains and patterns from Adblock style rules carry modifiers, see {@link HostRule}.
+ * <p>
+ * Segments are built while a list is parsed or downloaded, and can be stored so that the list
+ * does not have to be parsed again when the index is compiled. File layout (little endian):
+ * <pre>
+ *     int  magic
+ *     int  version
+ *     long lastModified         -- of the response the list was downloaded from, or 0
+ *     short entityTagLength     -- followed by as many ISO-8859-1 bytes of its ETag, if any
+ *     int  hostCount
+ *     long hosts[hostCount]     -- ascending, as unsigned values
+ *     int  domainCount
+ *     domains[domainCount]      -- short length, byte modifiers, followed by as many ASCII
+ *                                  bytes as the length
+ *     int  patternCount
+ *     patterns[patternCount]    -- like domains
+ * </pre>
+ * Segments of other versions are rejected, so that lists compiled by an older parser are
+ * downloaded and compiled again.
+ */
+class HostSegment {
+    private static final int MAGIC = 0x444e5347; // "DNSG"
+    private static final int VERSION = 4;
+    private static final int HEADER_SIZE = 22;
+    /* Fewer hosts than this stay on the heap, see mapHosts() */
+    private static final int MIN_MAPPED_HOSTS = 4096;
+
+    private final Validators validators;
+    private final LongBuffer hosts;
+    private final List<String> domains;
+    private final byte[] domainModifiers;
+    private final List<String> patterns;
+    private final byte[] patternModifiers;
+
+    /**
+     * The validators of the HTTP response a list was downloaded from, to ask the server whether
+     * the list changed since.
+     */
+    static class Validators {
+        static final Validators NONE = new Validators(0, null);
+
+        /* The Last-Modified time, in milliseconds since the epoch, or 0 */
+        final long lastModified;
+        /* The ETag, or null */
+        final String entityTag;
+
+        Validators(long lastModified, String entityTag) {
+            this.lastModified = lastModified;
+            this.entityTag = entityTag;
+        }
+    }
+
+    /**
+     * Names with the modifiers of each name.
+     */
+    private static class Names {
+        final List<String> names = new ArrayList<>();
+        byte[] modifiers = new byte[16];
+
+        void add(CharSequence name, int modifier) {
+            if (names.size() == modifiers.length)
+                modifiers = Arrays.copyOf(modifiers, modifiers.length * 2);
+            modifiers[names.size()] = (byte) modifier;
+            names.add(name.toString());
+        }
+    }
+
+    /**
+     * Collects the entries reported by a {@link HostFileParser}.
+     */
+    static class Builder implements HostFileParser.Listener {
+        /* The longest valid domain name */
+        private static final int MAX_DOMAIN_LENGTH = 253;
+
+        private final DomainHashSet hosts;
+        private final Names domains = new Names();
+        private final Names patterns = new Names();
+
+        Builder() {
+            this(false);
+        }
+
+        /**
+         * @param verify true if the hosts should be checked for distinct names sharing a
+         *               fingerprint, see {@link #getCollisions()}
+         */
+        Builder(boolean verify) {
+            hosts = new DomainHashSet(verify);
+        }
+
+        @Override
+        public void host(CharSequence host) {
+            hosts.add(host);
+        }
+
+        @Override
+        public void domain(CharSequence domain, int modifiers) {
+            if (domain.length() <= MAX_DOMAIN_LENGTH)
+                domains.add(domain, modifiers);
+        }
+
+        @Override
+        public void pattern(CharSequence pattern, int modifiers) {
+            if (pattern.length() <= MAX_DOMAIN_LENGTH)
+                patterns.add(pattern, modifiers);
+        }
+
+        /**
+         * @return The number of hosts left out as they share the fingerprint of another host,
+         * if the builder verifies them, see {@link DomainHashSet#getCollisions()}
+         */
+        int getCollisions() {
+            return hosts.getCollisions();
+        }
+
+        HostSegment build() {
+            long[] table = hosts.getTable();
+            long[] sorted = new long[hosts.size()];
+            int n = 0;
+            for (long fingerprint : table) {
+                if (fingerprint != 0)
+                    sorted[n++] = fingerprint;
+            }
+            sortUnsigned(sorted);
+            return new HostSegment(Validators.NONE, LongBuffer.wrap(sorted), domains, patterns);
+        }
+    }
+
+    private HostSegment(Validators validators, LongBuffer hosts, Names domains, Names patterns) {
+        this.validators = validators;
+        this.hosts = hosts;
+        this.domains = Collections.unmodifiableList(domains.names);
+        this.domainModifiers = domains.modifiers;
+        this.patterns = Collections.unmodifiableList(patterns.names);
+        this.patternModifiers = patterns.modifiers;
+    }
+
+    private HostSegment(HostSegment other, LongBuffer hosts) {
+        this.validators = other.validators;
+        this.hosts = hosts;
+        this.domains = other.domains;
+        this.domainModifiers = other.domainModifiers;
+        this.patterns = other.patterns;
+        this.patternModifiers = other.patternModifiers;
+    }
+
+    /**
+     * Reads a segment written by {@link #write(File)}. The hosts stay in the mapped file, only
+     * the domains and patterns are read onto the heap.
+     *
+     * @throws IOException If the file cannot be read or is not a valid segment
+     */
+    static HostSegment read(File file) throws IOException {
+        ByteBuffer buffer = map(file);
+        try {
+            Validators validators = readHeader(buffer);
+            int hostCount = buffer.getInt();
+            if (hostCount < 0 || 8L * hostCount > buffer.remaining())
+                throw new IOException("Truncated host segment");
+            ByteBuffer hostBytes = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+            hostBytes.limit(8 * hostCount);
+            LongBuffer hosts = hostBytes.asLongBuffer();
+            buffer.position(buffer.position() + 8 * hostCount);
+
+            Names domains = readNames(buffer);
+            Names patterns = readNames(buffer);
+            return new HostSegment(validators, hosts, domains, patterns);
+        } catch (RuntimeException e) {
+            // BufferUnderflowException, IllegalArgumentException, NegativeArraySizeException
+            throw new IOException("Truncated host segment", e);
+        }
+    }
+
+    /**
+     * Reads only the validators of a segment, without its entries.
+     *
+     * @return The validators, or null if the file is missing or not a segment of the current
+     * version, see {@link #isCurrent(File)}
+     */
+    static Validators readValidators(File file) {
+        try {
+            return readHeader(map(file));
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static ByteBuffer map(File file) throws IOException {
+        try (FileInputStream inputStream = new FileInputStream(file)) {
+            FileChannel channel = inputStream.getChannel();
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+        }
+    }
+
+    private static Validators readHeader(ByteBuffer buffer) throws IOException {
+        if (buffer.getInt() != MAGIC)
+            throw new IOException("Not a host segment");
+        int version = buffer.getInt();
+        if (version != VERSION)
+            throw new IOException("Unsupported host segment version " + version);
+
+        long lastModified = buffer.getLong();
+        int entityTagLength = buffer.getShort() & 0xffff;
+        String entityTag = null;
+        if (entityTagLength > 0) {
+            byte[] bytes = new byte[entityTagLength];
+            buffer.get(bytes);
+            entityTag = new String(bytes, StandardCharsets.ISO_8859_1);
+        }
+        return new Validators(lastModified, entityTag);
+    }
+
+    private static Names readNames(ByteBuffer buffer) throws IOException {
+        int count = buffer.getInt();
+        Names names = new Names();
+        byte[] name = new byte[256];
+        for (int i = 0; i < count; i++) {
+            int length = buffer.getShort() & 0xffff;
+            int modifiers = buffer.get();
+            if ((modifiers & ~(HostRule.EXCEPTION | HostRule.IMPORTANT)) != 0)
+                throw new IOException("Invalid modifiers " + modifiers);
+            if (length > name.length)
+                name = new byte[length];
+            buffer.get(name, 0, length);
+            names.add(new String(name, 0, length, StandardCharsets.US_ASCII), modifiers);
+        }
+        return names;
+    }
+
+    /**
+     * Checks the header of a file, so that a list compiled into a segment of another version
+     * can be downloaded again instead of being asked for only if it changed.
+     *
+     * @return true if the file is a segment of the current version
+     */
+    static boolean isCurrent(File file) {
+        return readValidators(file) != null;
+    }
+
+    /**
+     * Writes the segment without validators, see {@link #write(File, Validators)}.
+     */
+    void write(File file) throws IOException {
+        write(file, Validators.NONE);
+    }
+
+    /**
+     * Writes the segment to a temporary file first, and then renames it, so readers either see
+     * the previous segment or the complete new one.
+     *
+     * @param validators The validators of the response the list was downloaded from
+     * @throws IOException If the segment cannot be written
+     */
+    void write(File file, Validators validators) throws IOException {
+        byte[] entityTag = validators.entityTag == null ? new byte[0] : validators.entityTag.getBytes(StandardCharsets.ISO_8859_1);
+        if (entityTag.length > 0xffff)
+            entityTag = new byte[0];
+        int size = HEADER_SIZE + entityTag.length + 8 * hosts.limit() + 8;
+        for (String domain : domains)
+            size += 3 + domain.length();
+        for (String pattern : patterns)
+            size += 3 + pattern.length();
+
+        ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        buffer.putLong(validators.lastModified);
+        buffer.putShort((short) entityTag.length);
+        buffer.put(entityTag);
+        buffer.putInt(hosts.limit());
+        buffer.asLongBuffer().put(getHosts());
+        buffer.position(buffer.position() + 8 * hosts.limit());
+        writeNames(buffer, domains, domainModifiers);
+        writeNames(buffer, patterns, patternModifiers);
+        buffer.flip();
+
+        File tmpFile = new File(file.getPath() + ".tmp");
+        try (FileOutputStream outputStream = new FileOutputStream(tmpFile)) {
+            FileChannel channel = outputStream.getChannel();
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+            outputStream.getFD().sync();
+        }
+        if (!tmpFile.renameTo(file))
+            throw new IOException("Cannot rename " + tmpFile + " to " + file);
+    }
+
+    private static void writeNames(ByteBuffer buffer, List<String> names, byte[] modifiers) {
+        buffer.putInt(names.size());
+        for (int i = 0; i < names.size(); i++) {
+            buffer.putShort((short) names.get(i).length());
+            buffer.put(modifiers[i]);
+            buffer.put(names.get(i).getBytes(StandardCharsets.US_ASCII));
+        }
+    }
+
+    /**
+     * Moves the hosts of a segment built on the heap into a temporary file, which is mapped into
+     * memory and deleted right away, so that the hosts of many lists can wait to be merged
+     * without taking up the heap. Segments read from a file, and small ones, are returned as
+     * they are.
+     *
+     * @return A segment with the same entries
+     * @throws IOException If the temporary file cannot be written
+     */
+    HostSegment mapHosts() throws IOException {
+        if (hosts.isDirect() || hosts.limit() < MIN_MAPPED_HOSTS)
+            return this;
+
+        File file = File.createTempFile("hosts", ".run");
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            FileChannel channel = randomAccessFile.getChannel();
+            // The mapping stays valid after the file has been deleted and the channel closed.
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, 8L * hosts.limit()).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.asLongBuffer().put(getHosts());
+            return new HostSegment(this, buffer.asLongBuffer());
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * @return The validators of the response the list was downloaded from
+     */
+    Validators getValidators() {
+        return validators;
+    }
+
+    /**
+     * @return A read-only view of the fingerprints of the hosts, in ascending unsigned order
+     */
+    LongBuffer getHosts() {
+        return hosts.asReadOnlyBuffer();
+    }
+
+    /**
+     * @return The domains, each standing for itself and all of its subdomains
+     */
+    List<String> getDomains() {
+        return domains;
+    }
+
+    /**
+     * @return The modifiers of the domain at the given index of {@link #getDomains()}
+     */
+    int getDomainModifiers(int index) {
+        return domainModifiers[index];
+    }
+
+    /**
+     * @return The patterns, see {@link PatternMatcher}
+     */
+    List<String> getPatterns() {
+        return patterns;
+    }
+
+    /**
+     * @return The modifiers of the pattern at the given index of {@link #getPatterns()}
+     */
+    int getPatternModifiers(int index) {
+        return patternModifiers[index];
+    }
+
+    private static void sortUnsigned(long[] values) {
+        // Flipping the sign bit maps unsigned order onto signed order and back.
+        for (int i = 0; i < values.length; i++)
+            values[i] ^= Long.MIN_VALUE;
+        Arrays.sort(values);
+        for (int i = 0; i < values.length; i++)
+            values[i] ^= Long.MIN_VALUE;
+    }
+}
@@ -0,0 +1,442 @@
+package org.jak_linux.dns66.vpn;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+
+/**
+ * A reusable view of an IPv4 packet carrying a UDP datagram, as read from the tun device.
+ * <p>
+ * Parsing only records the offsets and header fields needed to forward a DNS query and answer
+ * it; the packet stays in its buffer and nothing is allocated. Responses are written with a
+ * plain 20 byte IPv4 header, so a response is always {@link #HEADER_LENGTH} bytes longer than
+ * its payload. Fragments, packets with inconsistent lengths and other protocols are rejected,
+ * and left to a full parser for diagnostics.
+ * <p>
+ * The checksums of a response are derived from those of the request where possible, as in
+ * RFC 1624: swapping addresses and ports leaves a one's complement sum unchanged, so only the
+ * fields and payload bytes that differ need to be taken out of the sum and added in again.
+ * This relies on the checksums of the request being right, as they are for packets written to
+ * the device by the kernel.
+ * <p>
+ * An instance is meant to be reused for every packet of a single thread.
+ */
+class Ipv4UdpPacket {
+    /**
+     * The length of the headers of the packets written by this class
+     */
+    static final int HEADER_LENGTH = 28;
+
+    private static final int IP_HEADER_LENGTH = 20;
+    private static final int UDP_HEADER_LENGTH = 8;
+    private static final int PROTOCOL_UDP = 17;
+    private static final int DEFAULT_TTL = 64;
+
+    // Offsets of IPv4 header fields
+    private static final int IP_VERSION_AND_IHL = 0;
+    private static final int IP_TOS = 1;
+    private static final int IP_TOTAL_LENGTH = 2;
+    private static final int IP_IDENTIFICATION = 4;
+    private static final int IP_FLAGS_AND_FRAGMENT_OFFSET = 6;
+    private static final int IP_TTL = 8;
+    private static final int IP_PROTOCOL = 9;
+    private static final int IP_CHECKSUM = 10;
+    private static final int IP_SOURCE = 12;
+    private static final int IP_DESTINATION = 16;
+
+    // Offsets of UDP header fields, relative to the UDP header
+    private static final int UDP_SOURCE_PORT = 0;
+    private static final int UDP_DESTINATION_PORT = 2;
+    private static final int UDP_LENGTH = 4;
+    private static final int UDP_CHECKSUM = 6;
+
+    /* Below this many bytes kept from the request, summing the response is cheaper than
+     * updating the checksum of the request */
+    private static final int MINIMUM_KEPT_FOR_UPDATE = 64;
+
+    /* More fragments flag and fragment offset */
+    private static final int FRAGMENT_MASK = 0x3fff;
+
+    private ByteBuffer buffer;
+    private int offset;
+    private int tos;
+    private int identification;
+    /* The length of the IP header of the request, or 0 if it is not known */
+    private int ipHeaderLength;
+    private int totalLength;
+    private int flagsAndFragmentOffset;
+    private int ttlAndProtocol;
+    private int ipChecksum;
+    private int udpChecksum;
+    private int sourceAddress;
+    private int destinationAddress;
+    private int sourcePort;
+    private int destinationPort;
+    private int payloadOffset;
+    private int payloadLength;
+
+    /**
+     * Parses the packet between the position and the limit of a buffer, in network byte order
+     * whatever the order of the buffer. The buffer is not modified, and must not be modified
+     * while the packet is in use.
+     *
+     * @return false if the buffer does not hold a complete, unfragmented IPv4 UDP packet
+     */
+    boolean parse(ByteBuffer packet) {
+        buffer = null;
+        int start = packet.position();
+        int available = packet.remaining();
+        if (available < IP_HEADER_LENGTH + UDP_HEADER_LENGTH)
+            return false;
+
+        int versionAndIhl = packet.get(start + IP_VERSION_AND_IHL) & 0xff;
+        int ipHeaderLength = (versionAndIhl & 0x0f) * 4;
+        int totalLength = getShort(packet, start + IP_TOTAL_LENGTH);
+        if ((versionAndIhl >>> 4) != 4 || ipHeaderLength < IP_HEADER_LENGTH
+                || totalLength > available || totalLength < ipHeaderLength + UDP_HEADER_LENGTH)
+            return false;
+        if ((packet.get(start + IP_PROTOCOL) & 0xff) != PROTOCOL_UDP)
+            return false;
+        if ((getShort(packet, start + IP_FLAGS_AND_FRAGMENT_OFFSET) & FRAGMENT_MASK) != 0)
+            return false;
+
+        int udp = start + ipHeaderLength;
+        int udpLength = getShort(packet, udp + UDP_LENGTH);
+        if (udpLength < UDP_HEADER_LENGTH || udpLength > totalLength - ipHeaderLength)
+            return false;
+
+        buffer = packet;
+        offset = start;
+        tos = packet.get(start + IP_TOS) & 0xff;
+        identification = getShort(packet, start + IP_IDENTIFICATION);
+        this.ipHeaderLength = ipHeaderLength;
+        this.totalLength = totalLength;
+        flagsAndFragmentOffset = getShort(packet, start + IP_FLAGS_AND_FRAGMENT_OFFSET);
+        ttlAndProtocol = getShort(packet, start + IP_TTL);
+        ipChecksum = getShort(packet, start + IP_CHECKSUM);
+        udpChecksum = getShort(packet, udp + UDP_CHECKSUM);
+        sourceAddress = getInt(packet, start + IP_SOURCE);
+        destinationAddress = getInt(packet, start + IP_DESTINATION);
+        sourcePort = getShort(packet, udp + UDP_SOURCE_PORT);
+        destinationPort = getShort(packet, udp + UDP_DESTINATION_PORT);
+        payloadOffset = udp + UDP_HEADER_LENGTH;
+        payloadLength = udpLength - UDP_HEADER_LENGTH;
+        return true;
+    }
+
+    /**
+     * Sets the header fields of a packet parsed earlier, so that it can be answered without
+     * keeping it. The packet has no buffer or payload afterwards.
+     */
+    void restore(int sourceAddress, int sourcePort, int destinationAddress, int destinationPort,
+                 int tos, int identification) {
+        this.buffer = null;
+        this.offset = 0;
+        this.ipHeaderLength = 0;
+        this.udpChecksum = 0;
+        this.payloadOffset = 0;
+        this.payloadLength = 0;
+        this.sourceAddress = sourceAddress;
+        this.sourcePort = sourcePort;
+        this.destinationAddress = destinationAddress;
+        this.destinationPort = destinationPort;
+        this.tos = tos;
+        this.identification = identification;
+    }
+
+    /**
+     * @return The buffer of the parsed packet
+     */
+    ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    /**
+     * @return The offset of the parsed packet in its buffer
+     */
+    int getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return The offset of the UDP payload in the buffer of the parsed packet
+     */
+    int getPayloadOffset() {
+        return payloadOffset;
+    }
+
+    /**
+     * @return The length of the UDP payload
+     */
+    int getPayloadLength() {
+        return payloadLength;
+    }
+
+    /**
+     * @return The source address, in network byte order
+     */
+    int getSourceAddress() {
+        return sourceAddress;
+    }
+
+    /**
+     * @return The destination address, in network byte order
+     */
+    int getDestinationAddress() {
+        return destinationAddress;
+    }
+
+    int getTos() {
+        return tos;
+    }
+
+    int getIdentification() {
+        return identification;
+    }
+
+    int getSourcePort() {
+        return sourcePort;
+    }
+
+    int getDestinationPort() {
+        return destinationPort;
+    }
+
+    /**
+     * @return The destination address; unlike the other accessors, this allocates
+     */
+    InetAddress getDestinationInetAddress() {
+        try {
+            return InetAddress.getByAddress(new byte[]{
+                    (byte) (destinationAddress >>> 24), (byte) (destinationAddress >>> 16),
+                    (byte) (destinationAddress >>> 8), (byte) destinationAddress});
+        } catch (UnknownHostException e) {
+            // Only thrown for addresses of an illegal length
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Writes the response to the parsed packet: a packet from its destination to its source,
+     * carrying the given payload. The UDP checksum is summed in one pass over the payload.
+     *
+     * @param payload The payload of the response
+     * @param offset  The offset of the payload in its array
+     * @param length  The length of the payload
+     * @param out     A buffer with at least {@link #HEADER_LENGTH} + length bytes remaining; the
+     *                packet is written at its position, which is advanced past it. If it is
+     *                backed by the payload array, the payload may already be in place at
+     *                {@link #HEADER_LENGTH} bytes past the position.
+     */
+    void writeResponse(byte[] payload, int offset, int length, ByteBuffer out) {
+        int ip = out.position();
+        int udp = ip + IP_HEADER_LENGTH;
+        writeHeaders(out, ip, length);
+        if (out.hasArray()) {
+            System.arraycopy(payload, offset, out.array(), out.arrayOffset() + udp + UDP_HEADER_LENGTH, length);
+        } else {
+            out.position(udp + UDP_HEADER_LENGTH);
+            out.put(payload, offset, length);
+        }
+
+        putUdpChecksum(out, udp, sum(payload, offset, length, pseudoHeaderSum(length)));
+        out.position(ip + HEADER_LENGTH + length);
+    }
+
+    /**
+     * Writes a response whose payload is mostly the payload of the request: its first
+     * {@code keep} bytes, of which the first {@code head.length} are replaced by {@code head},
+     * followed by the given tail. This suits a DNS response that repeats the question of the
+     * query, after a header of its own.
+     * <p>
+     * The UDP checksum is updated from that of the request, so only the replaced, dropped and
+     * added bytes are summed. That pays off once a good part of the payload is kept; otherwise,
+     * and if the request has no UDP checksum, the payload is summed in full.
+     *
+     * @param head       Replaces the start of the payload of the request
+     * @param keep       The number of bytes of the payload of the request to keep, at least
+     *                   head.length and at most the length of the payload
+     * @param tail       The payload following the kept bytes
+     * @param tailOffset The offset of the tail in its array
+     * @param tailLength The length of the tail
+     * @param out        A buffer with at least {@link #HEADER_LENGTH} + keep + tailLength bytes
+     *                   remaining, which does not hold the request; the packet is written at its
+     *                   position, which is advanced past it
+     */
+    void writeResponse(byte[] head, int keep, byte[] tail, int tailOffset, int tailLength, ByteBuffer out) {
+        int length = keep + tailLength;
+        int ip = out.position();
+        int udp = ip + IP_HEADER_LENGTH;
+        int data = udp + UDP_HEADER_LENGTH;
+        writeHeaders(out, ip, length);
+        out.position(data);
+        out.put(head);
+        copy(buffer, payloadOffset + head.length, out, data + head.length, keep - head.length);
+        out.position(data + keep);
+        out.put(tail, tailOffset, tailLength);
+
+        int sum;
+        if (udpChecksum == 0 || keep - head.length < MINIMUM_KEPT_FOR_UPDATE) {
+            sum = sum(out, data, length, pseudoHeaderSum(length));
+        } else {
+            // The length is in the pseudo header and in the UDP header.
+            int oldUdpLength = UDP_HEADER_LENGTH + payloadLength;
+            int newUdpLength = UDP_HEADER_LENGTH + length;
+            sum = (~udpChecksum & 0xffff) + 2 * ((~oldUdpLength & 0xffff) + newUdpLength);
+            // Adding the complement of a sum takes it out.
+            sum += finishChecksum(sum(buffer, payloadOffset, head.length, 0));
+            sum += sum(head, 0, head.length, 0);
+            // Bytes at odd offsets are summed swapped.
+            boolean odd = (keep & 1) != 0;
+            sum += finishChecksum(swapIf(odd, sum(buffer, payloadOffset + keep, payloadLength - keep, 0)));
+            sum += swapIf(odd, sum(tail, tailOffset, tailLength, 0));
+        }
+        putUdpChecksum(out, udp, sum);
+        out.position(ip + HEADER_LENGTH + length);
+    }
+
+    /**
+     * Writes the IPv4 and UDP headers of a response, without the UDP checksum.
+     */
+    private void writeHeaders(ByteBuffer out, int ip, int length) {
+        int udp = ip + IP_HEADER_LENGTH;
+        int newTotalLength = HEADER_LENGTH + length;
+
+        out.put(ip + IP_VERSION_AND_IHL, (byte) 0x45);
+        out.put(ip + IP_TOS, (byte) tos);
+        putShort(out, ip + IP_TOTAL_LENGTH, newTotalLength);
+        putShort(out, ip + IP_IDENTIFICATION, identification);
+        putShort(out, ip + IP_FLAGS_AND_FRAGMENT_OFFSET, 0);
+        out.put(ip + IP_TTL, (byte) DEFAULT_TTL);
+        out.put(ip + IP_PROTOCOL, (byte) PROTOCOL_UDP);
+        putShort(out, ip + IP_CHECKSUM, 0);
+        putInt(out, ip + IP_SOURCE, destinationAddress);
+        putInt(out, ip + IP_DESTINATION, sourceAddress);
+        if (ipHeaderLength == IP_HEADER_LENGTH) {
+            // Only the length, the flags and the TTL differ from the request.
+            int sum = (~ipChecksum & 0xffff)
+                    + (~totalLength & 0xffff) + newTotalLength
+                    + (~flagsAndFragmentOffset & 0xffff)
+                    + (~ttlAndProtocol & 0xffff) + ((DEFAULT_TTL << 8) | PROTOCOL_UDP);
+            putShort(out, ip + IP_CHECKSUM, finishChecksum(sum));
+        } else {
+            // The options of the request are not repeated.
+            putShort(out, ip + IP_CHECKSUM, finishChecksum(sum(out, ip, IP_HEADER_LENGTH, 0)));
+        }
+
+        putShort(out, udp + UDP_SOURCE_PORT, destinationPort);
+        putShort(out, udp + UDP_DESTINATION_PORT, sourcePort);
+        putShort(out, udp + UDP_LENGTH, UDP_HEADER_LENGTH + length);
+        putShort(out, udp + UDP_CHECKSUM, 0);
+    }
+
+    /**
+     * @return The sum of the pseudo header and the UDP header of a response, but its checksum
+     */
+    private int pseudoHeaderSum(int length) {
+        int udpLength = UDP_HEADER_LENGTH + length;
+        return (sourceAddress >>> 16) + (sourceAddress & 0xffff)
+                + (destinationAddress >>> 16) + (destinationAddress & 0xffff)
+                + PROTOCOL_UDP + udpLength
+                + sourcePort + destinationPort + udpLength;
+    }
+
+    private static void putUdpChecksum(ByteBuffer out, int udp, int sum) {
+        int checksum = finishChecksum(sum);
+        // A zero checksum means that there is none.
+        putShort(out, udp + UDP_CHECKSUM, checksum == 0 ? 0xffff : checksum);
+    }
+
+    /**
+     * Adds up 16-bit words in one's complement arithmetic, as the Internet checksum does. An odd
+     * trailing byte is padded with zero.
+     *
+     * @param sum The sum to add to, with carries not yet folded
+     * @return The sum, with carries not yet folded
+     */
+    static int sum(ByteBuffer buffer, int offset, int length, int sum) {
+        int end = offset + (length & ~1);
+        if (buffer.hasArray()) {
+            byte[] array = buffer.array();
+            int base = buffer.arrayOffset();
+            for (int i = base + offset; i < base + end; i += 2)
+                sum += ((array[i] & 0xff) << 8) | (array[i + 1] & 0xff);
+        } else {
+            for (int i = offset; i < end; i += 2)
+                sum += getShort(buffer, i);
+        }
+        if ((length & 1) != 0)
+            sum += (buffer.get(end) & 0xff) << 8;
+        // Fold early enough that the sum of a 64 KiB packet cannot overflow.
+        return (sum & 0xffff) + (sum >>> 16);
+    }
+
+    /**
+     * Adds up 16-bit words of an array, like {@link #sum(ByteBuffer, int, int, int)}.
+     */
+    static int sum(byte[] data, int offset, int length, int sum) {
+        // Wide enough for the sum of a 64 KiB packet
+        long total = sum;
+        int end = offset + (length & ~1);
+        for (int i = offset; i < end; i += 2)
+            total += ((data[i] & 0xff) << 8) | (data[i + 1] & 0xff);
+        if ((length & 1) != 0)
+            total += (data[end] & 0xff) << 8;
+        total = (total & 0xffffffffL) + (total >>> 32);
+        return fold((int) (total & 0xffff) + (int) (total >>> 16));
+    }
+
+    /**
+     * @return The checksum for a sum computed by {@link #sum(ByteBuffer, int, int, int)}; it is
+     * also the sum to add to take that sum out of another
+     */
+    static int finishChecksum(int sum) {
+        return ~fold(sum) & 0xffff;
+    }
+
+    /**
+     * Folds the carries of a sum into its low 16 bits.
+     */
+    private static int fold(int sum) {
+        while ((sum >>> 16) != 0)
+            sum = (sum & 0xffff) + (sum >>> 16);
+        return sum;
+    }
+
+    /**
+     * Swaps the bytes of a sum, which is what the sum of the same bytes at odd offsets is.
+     */
+    private static int swapIf(boolean swap, int sum) {
+        if (!swap)
+            return sum;
+        sum = fold(sum);
+        return ((sum & 0xff) << 8) | (sum >>> 8);
+    }
+
+    private static void copy(ByteBuffer from, int fromIndex, ByteBuffer to, int toIndex, int length) {
+        if (from.hasArray() && to.hasArray()) {
+            System.arraycopy(from.array(), from.arrayOffset() + fromIndex, to.array(), to.arrayOffset() + toIndex, length);
+        } else {
+            for (int i = 0; i < length; i++)
+                to.put(toIndex + i, from.get(fromIndex + i));
+        }
+    }
+
+    private static int getShort(ByteBuffer buffer, int index) {
+        return ((buffer.get(index) & 0xff) << 8) | (buffer.get(index + 1) & 0xff);
+    }
+
+    private static int getInt(ByteBuffer buffer, int index) {
+        return (getShort(buffer, index) << 16) | getShort(buffer, index + 2);
+    }
+
+    private static void putShort(ByteBuffer buffer, int index, int value) {
+        buffer.put(index, (byte) (value >>> 8));
+        buffer.put(index + 1, (byte) value);
+    }
+
+    private static void putInt(ByteBuffer buffer, int index, int value) {
+        putShort(buffer, index, value >>> 16);
+        putShort(buffer, index + 2, value);
+    }
+}
@@ -0,0 +1,170 @@
+package org.jak_linux.dns66.vpn;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hands jobs from one thread to a number of worker threads, and their results back to it.
+ * <p>
+ * The owning thread submits each job with the flow it belongs to, and a flow always goes to
+ * the same worker. Each worker has a queue in and a queue out, both {@link SpscQueue}s, so jobs
+ * of a flow come back in the order they were submitted, while jobs of different flows may
+ * overtake each other. Idle workers park until a job is submitted to them. When results are
+ * waiting, the workers call the {@link Wakeup} once, until the owner has taken them with
+ * {@link #poll()}.
+ * <p>
+ * Only the owning thread may submit and poll.
+ *
+ * @param <J> The type of the jobs
+ */
+class PacketPipeline<J> {
+
+    /**
+     * The work done on a worker thread. Each worker has its own stage, so stages may keep
+     * state without synchronization.
+     */
+    interface Stage<J> {
+        void process(J job);
+    }
+
+    interface StageFactory<J> {
+        Stage<J> create();
+    }
+
+    /**
+     * Tells the owning thread that results are waiting; called on a worker thread.
+     */
+    interface Wakeup {
+        void wakeup();
+    }
+
+    private final List<Worker<J>> workers;
+    private final Wakeup wakeup;
+    private final AtomicBoolean signalled = new AtomicBoolean(false);
+    private int nextOut;
+    private int pending;
+
+    /**
+     * @param workerCount The number of worker threads
+     * @param queueSize   The number of jobs each worker queues, in each direction
+     * @param factory     Creates the stage of each worker
+     * @param wakeup      Tells the owning thread about results
+     */
+    PacketPipeline(int workerCount, int queueSize, StageFactory<J> factory, Wakeup wakeup) {
+        this.wakeup = wakeup;
+        this.workers = new ArrayList<>(workerCount);
+        for (int i = 0; i < workerCount; i++)
+            workers.add(new Worker<>(this, i, queueSize, factory.create()));
+    }
+
+    void start() {
+        for (Worker<J> worker : workers)
+            worker.thread.start();
+    }
+
+    /**
+     * Stops the workers, and waits for them. Jobs still queued are lost.
+     */
+    void stop() throws InterruptedException {
+        for (Worker<J> worker : workers)
+            worker.thread.interrupt();
+        for (Worker<J> worker : workers)
+            worker.thread.join();
+    }
+
+    /**
+     * Queues a job for the worker of its flow.
+     *
+     * @param flow Identifies the flow, for example a hash of its addresses and ports
+     * @return false if the queue of the worker is full
+     */
+    boolean submit(int flow, J job) {
+        Worker<J> worker = workers.get((flow & Integer.MAX_VALUE) % workers.size());
+        if (!worker.in.offer(job))
+            return false;
+        pending++;
+        if (worker.parked)
+            LockSupport.unpark(worker.thread);
+        return true;
+    }
+
+    /**
+     * Takes a finished job, visiting the workers in turn.
+     *
+     * @return The job, or null if no results are waiting
+     */
+    J poll() {
+        // Results after this point wake the owner again.
+        signalled.set(false);
+        for (int i = 0; i < workers.size(); i++) {
+            Worker<J> worker = workers.get(nextOut);
+            nextOut = (nextOut + 1) % workers.size();
+            J job = worker.out.poll();
+            if (job != null) {
+                pending--;
+                return job;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return The number of jobs submitted whose results have not been taken yet
+     */
+    int pending() {
+        return pending;
+    }
+
+    /**
+     * Tells the owning thread that results are waiting, unless it has been told already.
+     */
+    private void signal() {
+        if (signalled.compareAndSet(false, true))
+            wakeup.wakeup();
+    }
+
+    private static class Worker<J> implements Runnable {
+        final PacketPipeline<J> pipeline;
+        final SpscQueue<J> in;
+        final SpscQueue<J> out;
+        final Stage<J> stage;
+        final Thread thread;
+        volatile boolean parked;
+
+        Worker(PacketPipeline<J> pipeline, int index, int queueSize, Stage<J> stage) {
+            this.pipeline = pipeline;
+            this.in = new SpscQueue<>(queueSize);
+            this.out = new SpscQueue<>(queueSize);
+            this.stage = stage;
+            this.thread = new Thread(this, "PacketPipeline-" + index);
+            this.thread.setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (!Thread.currentThread().isInterrupted()) {
+                J job = in.poll();
+                if (job == null) {
+                    // Announce the park first, so a job submitted in between unparks us.
+                    parked = true;
+                    if (in.isEmpty())
+                        LockSupport.park(this);
+                    parked = false;
+                    continue;
+                }
+
+                stage.process(job);
+                // The out queue is as large as the in queue, but the owner may be slow to poll.
+                while (!out.offer(job)) {
+                    pipeline.signal();
+                    LockSupport.parkNanos(this, 100000);
+                    if (Thread.currentThread().isInterrupted())
+                        return;
+                }
+                pipeline.signal();
+            }
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package org.jak_linux.dns66.vpn;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A first in, first out queue of packets, stored in a fixed number of buffers that are
+ * allocated once and reused.
+ * <p>
+ * A packet is added in two steps: {@link #claim()} hands out the next free buffer, which the
+ * caller fills and flips, and {@link #commit()} appends it to the queue. A claimed buffer that
+ * is not committed is handed out again by the next claim, so a failed receive does not leak a
+ * buffer. When all buffers are in use, {@link #claim()} returns null; it is up to the caller to
+ * stop producing packets until {@link #remove()} frees a buffer again.
+ * <p>
+ * The ring is not thread-safe.
+ */
+class PacketRing {
+    private final ByteBuffer[] buffers;
+    private int head;
+    private int size;
+
+    /**
+     * @param capacity   The number of buffers
+     * @param bufferSize The size of each buffer, that is, of the largest packet
+     */
+    PacketRing(int capacity, int bufferSize) {
+        buffers = new ByteBuffer[capacity];
+        for (int i = 0; i < capacity; i++)
+            buffers[i] = ByteBuffer.allocate(bufferSize);
+    }
+
+    /**
+     * @return true if there are no packets in the queue
+     */
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return true if all buffers hold packets, so nothing can be claimed
+     */
+    boolean isFull() {
+        return size == buffers.length;
+    }
+
+    /**
+     * @return The number of packets in the queue
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return The size of each buffer
+     */
+    int bufferSize() {
+        return buffers[0].capacity();
+    }
+
+    /**
+     * Hands out the buffer for the next packet, cleared.
+     *
+     * @return The buffer, or null if the ring is full
+     */
+    ByteBuffer claim() {
+        if (isFull())
+            return null;
+        ByteBuffer buffer = buffers[(head + size) % buffers.length];
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Appends the buffer handed out by the last {@link #claim()} to the queue. The packet is
+     * the data between its position and its limit.
+     */
+    void commit() {
+        if (isFull())
+            throw new IllegalStateException("No buffer claimed");
+        size++;
+    }
+
+    /**
+     * @return The first packet in the queue, or null if it is empty
+     */
+    ByteBuffer peek() {
+        return size == 0 ? null : buffers[head];
+    }
+
+    /**
+     * Removes the first packet from the queue, freeing its buffer.
+     */
+    void remove() {
+        if (size == 0)
+            throw new IllegalStateException("Ring is empty");
+        head = (head + 1) % buffers.length;
+        size--;
+    }
+}
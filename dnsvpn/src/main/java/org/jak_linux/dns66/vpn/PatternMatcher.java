@@ -0,0 +1,439 @@
+package org.jak_linux.dns66.vpn;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Matches host names against a set of wildcard patterns, such as {@code *ads*.example.*}, where
+ * {@code *} stands for any sequence of characters and {@code ?} for a single one. Patterns
+ * match whole names, ASCII case-insensitively.
+ * <p>
+ * All patterns are combined into one nondeterministic automaton, which is turned into a
+ * deterministic one lazily: a state of the deterministic automaton is the set of pattern
+ * positions reachable after the characters read so far, and its transitions are computed the
+ * first time they are taken and cached afterwards. A match thus costs one table lookup per
+ * character of the name, no matter how many patterns there are. For patterns that are plain
+ * {@code *literal*} fragments, the automaton is the one the Aho-Corasick algorithm would build.
+ * The cache is bounded; when it is full it is dropped and built up again from the current
+ * state, so adversarial pattern sets cost time rather than memory.
+ * <p>
+ * Most names match no pattern, so the automaton is guarded by a filter of trigrams: each
+ * pattern contributes three consecutive characters of its longest literal run, which every
+ * name it matches contains. A name containing none of them is rejected without walking the
+ * automaton, at the cost of one bit test per character. Unless every pattern has a literal run
+ * of three characters, all names are matched.
+ * <p>
+ * Like the rest of the rules, each pattern carries a {@link HostRule}, and the rule of the
+ * latest source among the matching patterns wins. The cache is updated during matching, so a
+ * matcher must only be used from one thread at a time.
+ */
+class PatternMatcher {
+    /* Character classes: a-z, 0-9, '-', '_', '.', and everything else */
+    private static final int ALPHABET = 40;
+    private static final int OTHER = ALPHABET - 1;
+
+    /* Elements of the nondeterministic automaton besides character classes */
+    private static final int STAR = -1;
+    private static final int ANY = -2;
+    private static final int ACCEPT = -3;
+
+    private static final int DEAD = 0;
+    private static final int START = 1;
+    private static final int UNKNOWN = -1;
+    private static final int DEFAULT_MAX_CACHED_STATES = 4096;
+    /* Characters in a trigram of the filter, each taking six bits, and the bits of the filter
+     * the trigrams are hashed to */
+    private static final int GRAM = 3;
+    private static final int GRAM_MASK = (1 << 6 * GRAM) - 1;
+    private static final int GRAM_FILTER_SHIFT = 17;
+
+    /**
+     * A set of automaton positions, as key of the state cache.
+     */
+    private static class StateSet {
+        final int[] positions;
+        final int hashCode;
+
+        StateSet(int[] positions) {
+            this.positions = positions;
+            this.hashCode = Arrays.hashCode(positions);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof StateSet && Arrays.equals(positions, ((StateSet) o).positions);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+
+    private final int maxCachedStates;
+    private final List<String> patterns = new ArrayList<>();
+    private int[] patternRules = new int[16];
+
+    // The nondeterministic automaton: the elements of all patterns, each followed by ACCEPT
+    private int[] elements;
+    private int[] acceptRules;
+    /* The trigrams one of which a name must contain to match, or null to match all names */
+    private long[] grams;
+
+    // The cache of the deterministic automaton
+    private final Map<StateSet, Integer> stateIds = new HashMap<>();
+    private final List<int[]> states = new ArrayList<>();
+    private int[] transitions;
+    private int[] stateRules;
+
+    // Scratch space for computing a set of positions
+    private int[] marks;
+    private int generation;
+    private int[] scratch;
+
+    PatternMatcher() {
+        this(DEFAULT_MAX_CACHED_STATES);
+    }
+
+    /**
+     * @param maxCachedStates The number of states of the deterministic automaton to keep, at
+     *                        least 3
+     */
+    PatternMatcher(int maxCachedStates) {
+        this.maxCachedStates = maxCachedStates;
+    }
+
+    /**
+     * Reads patterns written by {@link #writeTo(ByteBuffer)}, starting at the position of the
+     * buffer, and advances the position past them.
+     *
+     * @param buffer A little endian buffer
+     * @throws IOException If the buffer does not contain valid patterns
+     */
+    static PatternMatcher read(ByteBuffer buffer) throws IOException {
+        PatternMatcher matcher = new PatternMatcher();
+        try {
+            int count = buffer.getInt();
+            if (count < 0)
+                throw new IOException("Invalid pattern count " + count);
+            byte[] bytes = new byte[256];
+            for (int i = 0; i < count; i++) {
+                int rule = buffer.getInt();
+                int length = buffer.getShort() & 0xffff;
+                if (length > bytes.length)
+                    bytes = new byte[length];
+                buffer.get(bytes, 0, length);
+                if (!matcher.add(new String(bytes, 0, length, StandardCharsets.US_ASCII), rule))
+                    throw new IOException("Invalid pattern");
+            }
+        } catch (RuntimeException e) {
+            throw new IOException("Truncated patterns", e);
+        }
+        return matcher;
+    }
+
+    /**
+     * @return The number of bytes {@link #writeTo(ByteBuffer)} writes
+     */
+    int serializedSize() {
+        int size = 4;
+        for (String pattern : patterns)
+            size += 6 + pattern.length();
+        return size;
+    }
+
+    /**
+     * Writes the patterns to the buffer, in the format understood by {@link #read(ByteBuffer)}.
+     *
+     * @param buffer A little endian buffer with at least {@link #serializedSize()} bytes remaining
+     */
+    void writeTo(ByteBuffer buffer) {
+        buffer.putInt(patterns.size());
+        for (int i = 0; i < patterns.size(); i++) {
+            buffer.putInt(patternRules[i]);
+            buffer.putShort((short) patterns.get(i).length());
+            buffer.put(patterns.get(i).getBytes(StandardCharsets.US_ASCII));
+        }
+    }
+
+    /**
+     * Checks whether a name from a host file is a pattern rather than a host name.
+     */
+    static boolean isPattern(CharSequence name) {
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c == '*' || c == '?')
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Adds a pattern.
+     *
+     * @param pattern A pattern made of letters, digits, '-', '_', '.' and wildcards, at most 255
+     *                characters long. Patterns made of wildcards only would match every name,
+     *                and are not supported either.
+     * @param rule    The rule to apply to matching names, see {@link HostRule}
+     * @return false if the pattern is not supported and has not been added
+     */
+    boolean add(String pattern, int rule) {
+        if (pattern.length() > 255)
+            return false;
+        boolean hasLiteral = false;
+        for (int i = 0; i < pattern.length(); i++) {
+            char c = pattern.charAt(i);
+            if (c == '*' || c == '?')
+                continue;
+            if (classOf(c) == OTHER)
+                return false;
+            hasLiteral = true;
+        }
+        if (!hasLiteral)
+            return false;
+
+        if (patterns.size() == patternRules.length)
+            patternRules = Arrays.copyOf(patternRules, patternRules.length * 2);
+        patternRules[patterns.size()] = rule;
+        patterns.add(pattern.toLowerCase(Locale.ENGLISH));
+        // Rebuilt on the next match
+        elements = null;
+        return true;
+    }
+
+    /**
+     * @return The number of patterns
+     */
+    int size() {
+        return patterns.size();
+    }
+
+    /**
+     * Finds the rule deciding about a name: of the rules of all patterns matching it, the one
+     * from the latest source.
+     *
+     * @param name A host name, optionally with a trailing dot
+     * @return The rule, or {@link HostRule#NONE}
+     */
+    int match(CharSequence name) {
+        if (patterns.isEmpty())
+            return HostRule.NONE;
+        if (elements == null)
+            compile();
+
+        int length = name.length();
+        if (length > 0 && name.charAt(length - 1) == '.')
+            length--;
+        if (grams != null && !containsGram(name, length))
+            return HostRule.NONE;
+
+        int state = START;
+        for (int i = 0; i < length; i++) {
+            int c = classOf(name.charAt(i));
+            int next = transitions[state * ALPHABET + c];
+            if (next == UNKNOWN)
+                next = computeTransition(state, c);
+            if (next == DEAD)
+                return HostRule.NONE;
+            state = next;
+        }
+        return stateRules[state];
+    }
+
+    private void compile() {
+        int size = 0;
+        for (String pattern : patterns)
+            size += pattern.length() + 1;
+
+        elements = new int[size];
+        acceptRules = new int[size];
+        int n = 0;
+        for (int p = 0; p < patterns.size(); p++) {
+            String pattern = patterns.get(p);
+            for (int i = 0; i < pattern.length(); i++) {
+                char c = pattern.charAt(i);
+                if (c == '*') {
+                    // Consecutive stars are equivalent to one
+                    if (n == 0 || elements[n - 1] != STAR)
+                        elements[n++] = STAR;
+                } else if (c == '?') {
+                    elements[n++] = ANY;
+                } else {
+                    elements[n++] = classOf(c);
+                }
+            }
+            acceptRules[n] = patternRules[p];
+            elements[n++] = ACCEPT;
+        }
+        marks = new int[n];
+        scratch = new int[n];
+        generation = 0;
+        resetCache();
+        compileGrams();
+    }
+
+    /**
+     * Collects the trigram each pattern requires, see {@link #containsGram(CharSequence, int)}.
+     */
+    private void compileGrams() {
+        grams = new long[(1 << 32 - GRAM_FILTER_SHIFT) / 64];
+        for (String pattern : patterns) {
+            // The first trigram of the longest literal run
+            int best = -1;
+            int bestLength = 0;
+            int start = 0;
+            for (int i = 0; i <= pattern.length(); i++) {
+                if (i < pattern.length() && pattern.charAt(i) != '*' && pattern.charAt(i) != '?')
+                    continue;
+                if (i - start > bestLength) {
+                    best = start;
+                    bestLength = i - start;
+                }
+                start = i + 1;
+            }
+            if (bestLength < GRAM) {
+                grams = null;
+                return;
+            }
+            int gram = 0;
+            for (int i = best; i < best + GRAM; i++)
+                gram = gram << 6 | classOf(pattern.charAt(i));
+            int bit = hashGram(gram);
+            grams[bit >>> 6] |= 1L << bit;
+        }
+    }
+
+    /**
+     * Checks whether the first characters of a name contain one of the required trigrams.
+     */
+    private boolean containsGram(CharSequence name, int length) {
+        int gram = 0;
+        for (int i = 0; i < length; i++) {
+            gram = (gram << 6 | classOf(name.charAt(i))) & GRAM_MASK;
+            int bit = hashGram(gram);
+            if (i >= GRAM - 1 && (grams[bit >>> 6] & 1L << bit) != 0)
+                return true;
+        }
+        return false;
+    }
+
+    private static int hashGram(int gram) {
+        return gram * 0x9e3779b1 >>> GRAM_FILTER_SHIFT;
+    }
+
+    private void resetCache() {
+        stateIds.clear();
+        states.clear();
+        transitions = new int[16 * ALPHABET];
+        stateRules = new int[16];
+
+        intern(new int[0]);
+
+        int count = beginSet();
+        for (int i = 0; i < elements.length; i++) {
+            if (i == 0 || elements[i - 1] == ACCEPT)
+                count = addClosure(i, count);
+        }
+        intern(endSet(count));
+    }
+
+    private int computeTransition(int state, int c) {
+        int count = beginSet();
+        for (int position : states.get(state)) {
+            int element = elements[position];
+            if (element == STAR)
+                count = addClosure(position, count);
+            else if (element == ANY || element == c)
+                count = addClosure(position + 1, count);
+        }
+        int[] target = endSet(count);
+
+        if (states.size() >= maxCachedStates && !stateIds.containsKey(new StateSet(target))) {
+            // The source state is dropped with the cache, so the transition is not recorded.
+            resetCache();
+            return intern(target);
+        }
+
+        int next = intern(target);
+        transitions[state * ALPHABET + c] = next;
+        return next;
+    }
+
+    private int beginSet() {
+        if (++generation == 0) {
+            Arrays.fill(marks, 0);
+            generation = 1;
+        }
+        return 0;
+    }
+
+    private int addClosure(int position, int count) {
+        while (true) {
+            if (marks[position] == generation)
+                return count;
+            marks[position] = generation;
+            scratch[count++] = position;
+            // A star may match the empty string
+            if (elements[position] != STAR)
+                return count;
+            position++;
+        }
+    }
+
+    private int[] endSet(int count) {
+        int[] set = Arrays.copyOf(scratch, count);
+        Arrays.sort(set);
+        return set;
+    }
+
+    private int intern(int[] set) {
+        StateSet key = new StateSet(set);
+        Integer id = stateIds.get(key);
+        if (id != null)
+            return id;
+
+        int newId = states.size();
+        states.add(set);
+        stateIds.put(key, newId);
+        if ((newId + 1) * ALPHABET > transitions.length) {
+            int oldLength = transitions.length;
+            transitions = Arrays.copyOf(transitions, oldLength * 2);
+            stateRules = Arrays.copyOf(stateRules, stateRules.length * 2);
+            Arrays.fill(transitions, oldLength, transitions.length, UNKNOWN);
+        }
+        int rule = HostRule.NONE;
+        for (int position : set) {
+            if (elements[position] == ACCEPT)
+                rule = Math.max(rule, acceptRules[position]);
+        }
+        stateRules[newId] = rule;
+        Arrays.fill(transitions, newId * ALPHABET, (newId + 1) * ALPHABET, newId == DEAD ? DEAD : UNKNOWN);
+        return newId;
+    }
+
+    private static int classOf(char c) {
+        if (c >= 'a' && c <= 'z')
+            return c - 'a';
+        if (c >= 'A' && c <= 'Z')
+            return c - 'A';
+        if (c >= '0' && c <= '9')
+            return 26 + c - '0';
+        switch (c) {
+            case '-':
+                return 36;
+            case '_':
+                return 37;
+            case '.':
+                return 38;
+            default:
+                return OTHER;
+        }
+    }
+}
@@ -3,15 +3,26 @@ package org.jak_linux.dns66.vpn;
 import android.os.ParcelFileDescriptor;
 import android.support.annotation.NonNull;
 import android.system.ErrnoException;
+import android.system.Os;
 import android.system.OsConstants;
 import android.system.StructPollfd;
+import android.util.Log;
 
 import java.io.FileDescriptor;
 import java.io.IOException;
 import java.net.DatagramSocket;
 import java.net.SocketException;
-import java.util.Set;
-
+import java.util.Arrays;
+
+/**
+ * The descriptors the VPN thread waits on: the device, the pipe that stops it, the pipe workers
+ * wake it with, if any, and the sockets of upstream queries.
+ * <p>
+ * The group lives as long as the connection. Sockets are added and removed as they are opened
+ * and closed, which is rare, so a wakeup only updates the events and polls the array as it is.
+ * The descriptor of each socket is duplicated once, when it is added, and closed when it is
+ * removed.
+ */
 class PollGroup {
     static class PollGroupException extends Throwable {
         PollGroupException(Exception reason) {
@@ -27,25 +38,33 @@ class PollGroup {
         void response(StructPollfd fd) throws SocketException, PollGroupException;
     }
 
-    private final StructPollfd[] polls;
-    private StructPollfd deviceFd;
-    private StructPollfd blockFd;
-    private DatagramSocket[] others;
-
-    PollGroup(FileDescriptor inFd, FileDescriptor blockfd, Set<DatagramSocket> datagramSockets, boolean canWrite) {
-        this.deviceFd = createPollFdForFileDescriptorWithEvents(inFd, (short) (OsConstants.POLLIN | (canWrite?OsConstants.POLLOUT:0)));
+    private static final String TAG = "PollGroup";
+
+    private StructPollfd[] polls;
+    private final StructPollfd deviceFd;
+    private final StructPollfd blockFd;
+    private final StructPollfd wakeFd;
+    /* Index of the first socket in polls */
+    private final int firstSocket;
+    private final byte[] wakeBuffer = new byte[64];
+    private DatagramSocket[] others = new DatagramSocket[0];
+    private ParcelFileDescriptor[] otherFds = new ParcelFileDescriptor[0];
+    private short socketEvents = (short) OsConstants.POLLIN;
+
+    /**
+     * @param wakefd The end of a pipe that is written to when the thread should wake up, or null
+     */
+    PollGroup(FileDescriptor inFd, FileDescriptor blockfd, FileDescriptor wakefd) {
+        this.deviceFd = createPollFdForFileDescriptorWithEvents(inFd, (short) OsConstants.POLLIN);
         this.blockFd = createPollFdForFileDescriptorWithEvents(blockfd, (short) (OsConstants.POLLHUP | OsConstants.POLLERR));
+        this.wakeFd = wakefd == null ? null : createPollFdForFileDescriptorWithEvents(wakefd, (short) OsConstants.POLLIN);
 
-        this.others = new DatagramSocket[datagramSockets.size()];
-        datagramSockets.toArray(others);
-
-        this.polls = new StructPollfd[2 + others.length];
-        polls[0] = deviceFd;
-        polls[1] = blockFd;
+        this.firstSocket = wakeFd == null ? 2 : 3;
+        this.polls = initialPolls();
+    }
 
-        for (int i = 0; i < others.length; i++) {
-            polls[2 + i] = createPollFdForFileDescriptorWithEvents(ParcelFileDescriptor.fromDatagramSocket(others[i]).getFileDescriptor(), (short) OsConstants.POLLIN);
-        }
+    private StructPollfd[] initialPolls() {
+        return wakeFd == null ? new StructPollfd[]{deviceFd, blockFd} : new StructPollfd[]{deviceFd, blockFd, wakeFd};
     }
 
     @NonNull
@@ -56,16 +75,91 @@ class PollGroup {
         return pollFd;
     }
 
-    boolean poll(ReadySocketCallback readySocketCallback, ResponseCallback responseCallback) throws ErrnoException, InterruptedException, IOException, PollGroupException {
-        FileHelper.poll(polls, -1);
+    /**
+     * Starts waiting for responses on a socket.
+     */
+    void add(DatagramSocket socket) {
+        ParcelFileDescriptor fd = ParcelFileDescriptor.fromDatagramSocket(socket);
+        if (fd == null) {
+            Log.w(TAG, "add: Socket is closed, not adding it");
+            return;
+        }
+
+        int count = others.length;
+        others = Arrays.copyOf(others, count + 1);
+        otherFds = Arrays.copyOf(otherFds, count + 1);
+        polls = Arrays.copyOf(polls, firstSocket + count + 1);
+        others[count] = socket;
+        otherFds[count] = fd;
+        polls[firstSocket + count] = createPollFdForFileDescriptorWithEvents(fd.getFileDescriptor(), socketEvents);
+    }
+
+    /**
+     * Stops waiting on a socket, before it is closed.
+     */
+    void remove(DatagramSocket socket) {
+        for (int i = 0; i < others.length; i++) {
+            if (others[i] != socket)
+                continue;
+
+            FileHelper.closeOrWarn(otherFds[i], TAG, "remove: Could not close socket descriptor");
+            others = remove(others, i, new DatagramSocket[others.length - 1]);
+            otherFds = remove(otherFds, i, new ParcelFileDescriptor[otherFds.length - 1]);
+            polls = remove(polls, firstSocket + i, new StructPollfd[polls.length - 1]);
+            return;
+        }
+    }
+
+    private static <T> T[] remove(T[] array, int index, T[] result) {
+        System.arraycopy(array, 0, result, 0, index);
+        System.arraycopy(array, index + 1, result, index, array.length - index - 1);
+        return result;
+    }
+
+    /**
+     * Sets the events to wait for in the next polls.
+     *
+     * @param canReadDevice  false to leave the device alone, because there is no room for the
+     *                       responses its packets may cause, or nothing to read them into
+     * @param canReadSockets false to leave the sockets alone, because there is no room for the
+     *                       responses
+     * @param canWrite       true if there are packets to write to the device
+     */
+    void setEvents(boolean canReadDevice, boolean canReadSockets, boolean canWrite) {
+        deviceFd.events = (short) ((canReadDevice ? OsConstants.POLLIN : 0) | (canWrite ? OsConstants.POLLOUT : 0));
+        short events = (short) (canReadSockets ? OsConstants.POLLIN : 0);
+        if (events != socketEvents) {
+            socketEvents = events;
+            for (int i = firstSocket; i < polls.length; i++)
+                polls[i].events = events;
+        }
+    }
+
+    /**
+     * Waits for events, and passes them to the callbacks.
+     *
+     * @param timeout The longest time to wait, in milliseconds, or -1 to wait for events only.
+     *                It starts over when poll() is interrupted, so it may be exceeded.
+     * @return false if the group was told to stop
+     */
+    boolean poll(int timeout, ReadySocketCallback readySocketCallback, ResponseCallback responseCallback) throws ErrnoException, InterruptedException, IOException, PollGroupException {
+        FileHelper.poll(polls, timeout);
 
         if (blockFd.revents != 0) {
             return false;
         }
 
-        for (int i = 0, j = 2; i < others.length; i++, j++) {
-            if ((polls[j].revents & OsConstants.POLLIN) != 0) {
-                readySocketCallback.ready(others[i]);
+        // The wakeup only ends the poll; what woke the thread is for the caller to look at.
+        if (wakeFd != null && (wakeFd.revents & OsConstants.POLLIN) != 0) {
+            Os.read(wakeFd.fd, wakeBuffer, 0, wakeBuffer.length);
+        }
+
+        // The callback may close sockets, and remove them, so walk a snapshot.
+        DatagramSocket[] sockets = others;
+        StructPollfd[] socketPolls = polls;
+        for (int i = 0, j = firstSocket; i < sockets.length; i++, j++) {
+            if ((socketPolls[j].revents & OsConstants.POLLIN) != 0) {
+                readySocketCallback.ready(sockets[i]);
             }
         }
 
@@ -73,4 +167,15 @@ class PollGroup {
 
         return true;
     }
+
+    /**
+     * Closes the duplicated descriptors of the remaining sockets.
+     */
+    void close() {
+        for (ParcelFileDescriptor fd : otherFds)
+            FileHelper.closeOrWarn(fd, TAG, "close: Could not close socket descriptor");
+        others = new DatagramSocket[0];
+        otherFds = new ParcelFileDescriptor[0];
+        polls = initialPolls();
+    }
 }
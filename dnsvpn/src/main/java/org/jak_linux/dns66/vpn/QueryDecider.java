@@ -0,0 +1,189 @@
+package org.jak_linux.dns66.vpn;
+
+import org.xbill.DNS.Message;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Decides about the DNS queries read from the device: whether a packet is a query at all, and
+ * whether its name is blocked, in which case the response is prepared, too. Plain queries are
+ * answered from a {@link BlockResponse} template, which the VPN thread writes around the query
+ * without allocating; others are parsed by dnsjava, and get a response built from the same
+ * template.
+ * <p>
+ * This is the part of handling a packet that takes time, as it parses the packet and looks the
+ * name up in the blocked hosts. It runs on the VPN thread, or on the workers of a
+ * {@link PacketPipeline}, with a decider for each worker. Sending the query upstream or the
+ * response to the device is left to the VPN thread.
+ */
+class QueryDecider implements PacketPipeline.Stage<QueryDecider.Job> {
+
+    /* The packet is not an IPv4 UDP packet, or not a valid DNS query */
+    static final int DISCARD = 0;
+    /* The query is to be sent upstream */
+    static final int ALLOW = 1;
+    /* The query is blocked, and the job holds the response, or how to write it */
+    static final int BLOCK = 2;
+
+    /**
+     * Provides the current blocked hosts and the response to blocked queries, which may be
+     * replaced at any time.
+     */
+    interface BlockedHosts {
+        HostIndex get();
+
+        BlockResponse getResponse();
+    }
+
+    /**
+     * A packet read from the device, and the decision about it.
+     */
+    static class Job {
+        final ByteBuffer packet;
+        final Ipv4UdpPacket request = new Ipv4UdpPacket();
+        private final DnsQueryName queryName = new DnsQueryName();
+
+        int verdict;
+        /* The name asked for, valid until the job is decided about again */
+        CharSequence name;
+        /* Why the packet is discarded */
+        String reason;
+        /* The whole DNS response to a blocked query that is not plain enough to be written
+         * around in place */
+        byte[] response;
+        /* Otherwise the header of the response, the number of bytes of the query it repeats,
+         * header included, and the records following them */
+        final byte[] responseHead = new byte[BlockResponse.HEADER_LENGTH];
+        int responseKeep;
+        byte[] responseRecords;
+        /* Whether the request holds the headers of the packet already, see parseRequest() */
+        private boolean parsed;
+
+        /**
+         * @param packet The buffer the packet is read into
+         */
+        Job(ByteBuffer packet) {
+            this.packet = packet;
+        }
+
+        /**
+         * Parses the IPv4 and UDP headers of the packet, so that its flow is known before it is
+         * decided about; the decider does not parse them again.
+         *
+         * @return false if the packet is not an IPv4 UDP packet
+         */
+        boolean parseRequest() {
+            parsed = request.parse(packet);
+            return parsed;
+        }
+
+        /**
+         * @return A hash of the addresses and ports of the packet, valid once it is parsed
+         */
+        int flow() {
+            return ((request.getSourceAddress() * 31 + request.getSourcePort()) * 31
+                    + request.getDestinationAddress()) * 31 + request.getDestinationPort();
+        }
+    }
+
+    private final BlockedHosts blockedHosts;
+    private final boolean shared;
+    private HostIndex source;
+    private HostIndex index;
+
+    /**
+     * @param blockedHosts The blocked hosts to look names up in
+     * @param shared       true if the decider runs on another thread than the one the blocked
+     *                     hosts are used on, so it must look them up in a duplicate
+     */
+    QueryDecider(BlockedHosts blockedHosts, boolean shared) {
+        this.blockedHosts = blockedHosts;
+        this.shared = shared;
+    }
+
+    /**
+     * Parses the packet of a job, looks its name up, and builds the response if it is blocked.
+     * The position and limit of the packet mark the packet. Headers parsed with
+     * {@link Job#parseRequest()} are not parsed again.
+     */
+    @Override
+    public void process(Job job) {
+        job.name = null;
+        job.reason = null;
+        job.response = null;
+        job.responseRecords = null;
+        job.verdict = DISCARD;
+
+        boolean parsed = job.parsed || job.request.parse(job.packet);
+        job.parsed = false;
+        if (!parsed) {
+            job.reason = "not an IPv4 UDP packet";
+            return;
+        }
+
+        byte[] data = job.packet.array();
+        int dnsOffset = job.request.getPayloadOffset();
+        int dnsLength = job.request.getPayloadLength();
+        Message dnsMsg = null;
+        if (job.queryName.parse(data, dnsOffset, dnsLength)) {
+            job.name = job.queryName;
+        } else {
+            // Malformed or unusual messages take the slow path
+            dnsMsg = parseDnsMessage(job, Arrays.copyOfRange(data, dnsOffset, dnsOffset + dnsLength));
+            if (dnsMsg == null) {
+                return;
+            }
+            job.name = dnsMsg.getQuestion().getName().toString(true);
+        }
+
+        if (!currentIndex().contains(job.name)) {
+            job.verdict = ALLOW;
+            return;
+        }
+
+        BlockResponse blockResponse = blockedHosts.getResponse();
+        if (dnsMsg == null) {
+            int type = job.queryName.getType();
+            blockResponse.writeHeader(data, dnsOffset, type, job.responseHead);
+            job.responseKeep = job.queryName.getQuestionLength();
+            job.responseRecords = blockResponse.getRecords(type);
+            job.verdict = BLOCK;
+            return;
+        }
+        job.response = blockResponse.toWire(data, dnsOffset, dnsMsg);
+        job.verdict = BLOCK;
+    }
+
+    private HostIndex currentIndex() {
+        HostIndex current = blockedHosts.get();
+        if (!shared)
+            return current;
+        if (current != source) {
+            source = current;
+            index = current.duplicate();
+        }
+        return index;
+    }
+
+    /**
+     * Parses a DNS query with dnsjava.
+     *
+     * @return The message, or null if it is invalid or has no question
+     */
+    private static Message parseDnsMessage(Job job, byte[] dnsRawData) {
+        Message dnsMsg;
+        try {
+            dnsMsg = new Message(dnsRawData);
+        } catch (IOException e) {
+            job.reason = "non-DNS or invalid packet: " + e;
+            return null;
+        }
+        if (dnsMsg.getQuestion() == null) {
+            job.reason = "DNS packet with no query " + dnsMsg;
+            return null;
+        }
+        return dnsMsg;
+    }
+}
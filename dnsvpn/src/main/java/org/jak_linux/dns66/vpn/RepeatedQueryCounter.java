@@ -0,0 +1,71 @@
+package org.jak_linux.dns66.vpn;
+
+import java.util.Arrays;
+
+/**
+ * Counts queries, and how many of them repeat a query for the same name made shortly before.
+ * <p>
+ * A response that is cached is not asked for again until it expires, so the share of repeated
+ * queries shows how well the responses to blocked names are cached. The names seen recently are
+ * kept by fingerprint in a small table, one per entry; a name whose entry was taken over by
+ * another one counts as new. So the count of repeats is a lower bound, and nothing is
+ * allocated.
+ * <p>
+ * Times are in milliseconds, of a monotonic clock. The counter is not thread-safe.
+ */
+class RepeatedQueryCounter {
+    private final long windowMillis;
+    private final long[] fingerprints;
+    private final long[] times;
+    private final int mask;
+    private long queries;
+    private long repeatedQueries;
+
+    /**
+     * @param size         The number of names kept, rounded up to a power of two
+     * @param windowMillis The time within which a query for the same name is a repeat
+     */
+    RepeatedQueryCounter(int size, long windowMillis) {
+        int capacity = Integer.highestOneBit(Math.max(1, size - 1)) << 1;
+        this.windowMillis = windowMillis;
+        this.fingerprints = new long[capacity];
+        this.times = new long[capacity];
+        this.mask = capacity - 1;
+    }
+
+    /**
+     * Counts a query.
+     *
+     * @param name The name asked for
+     * @param now  The current time
+     * @return true if the query repeats one made within the window
+     */
+    boolean count(CharSequence name, long now) {
+        long fingerprint = DomainHashSet.fingerprint(name);
+        int index = (int) (fingerprint ^ (fingerprint >>> 32)) & mask;
+        boolean repeated = fingerprints[index] == fingerprint && now - times[index] < windowMillis;
+        fingerprints[index] = fingerprint;
+        times[index] = now;
+        queries++;
+        if (repeated)
+            repeatedQueries++;
+        return repeated;
+    }
+
+    long getQueries() {
+        return queries;
+    }
+
+    long getRepeatedQueries() {
+        return repeatedQueries;
+    }
+
+    /**
+     * Forgets the names and resets the counts.
+     */
+    void clear() {
+        Arrays.fill(fingerprints, 0);
+        queries = 0;
+        repeatedQueries = 0;
+    }
+}
@@ -0,0 +1,108 @@
+package org.jak_linux.dns66.vpn;
+
+import java.nio.LongBuffer;
+
+/**
+ * Merges runs of fingerprints, each sorted in ascending unsigned order and free of duplicates,
+ * into one sorted sequence in a single pass.
+ * <p>
+ * Every run carries a rule, see {@link HostRule}. A fingerprint contained in several runs is
+ * returned once, with the largest of their rules, that is, the rule of the latest source. The
+ * runs are kept in a binary heap ordered by their current fingerprint, so merging n
+ * fingerprints from k runs takes O(n log k) time and no memory beyond the heap.
+ */
+class SortedRunMerger {
+    private final LongBuffer[] runs;
+    private final int[] rules;
+    private final int[] positions;
+    // The current fingerprint of each run, with the sign bit flipped to compare as signed values
+    private final long[] heads;
+    // Indices of the runs that are not exhausted, as a binary min-heap
+    private final int[] heap;
+    private int heapSize;
+
+    private long fingerprint;
+    private int rule;
+
+    /**
+     * @param runs  The runs, from position 0 to their limit. They are not modified.
+     * @param rules The rule of each run
+     */
+    SortedRunMerger(LongBuffer[] runs, int[] rules) {
+        this.runs = runs;
+        this.rules = rules;
+        this.positions = new int[runs.length];
+        this.heads = new long[runs.length];
+        this.heap = new int[runs.length];
+        for (int i = 0; i < runs.length; i++) {
+            if (runs[i].limit() > 0) {
+                heads[i] = runs[i].get(0) ^ Long.MIN_VALUE;
+                heap[heapSize++] = i;
+            }
+        }
+        for (int i = heapSize / 2 - 1; i >= 0; i--)
+            siftDown(i);
+    }
+
+    /**
+     * Advances to the next distinct fingerprint.
+     *
+     * @return false if all runs are exhausted
+     */
+    boolean next() {
+        if (heapSize == 0)
+            return false;
+
+        long head = heads[heap[0]];
+        rule = HostRule.NONE;
+        while (heapSize > 0 && heads[heap[0]] == head) {
+            int run = heap[0];
+            rule = Math.max(rule, rules[run]);
+            if (++positions[run] < runs[run].limit()) {
+                heads[run] = runs[run].get(positions[run]) ^ Long.MIN_VALUE;
+                siftDown(0);
+            } else {
+                heap[0] = heap[--heapSize];
+                siftDown(0);
+            }
+        }
+        fingerprint = head ^ Long.MIN_VALUE;
+        return true;
+    }
+
+    /**
+     * @return The current fingerprint
+     */
+    long fingerprint() {
+        return fingerprint;
+    }
+
+    /**
+     * @return The rule of the latest run containing the current fingerprint
+     */
+    int rule() {
+        return rule;
+    }
+
+    private boolean less(int a, int b) {
+        return heads[heap[a]] < heads[heap[b]];
+    }
+
+    private void siftDown(int i) {
+        while (true) {
+            int smallest = i;
+            int left = 2 * i + 1;
+            int right = left + 1;
+            if (left < heapSize && less(left, smallest))
+                smallest = left;
+            if (right < heapSize && less(right, smallest))
+                smallest = right;
+            if (smallest == i)
+                return;
+            int tmp = heap[i];
+            heap[i] = heap[smallest];
+            heap[smallest] = tmp;
+            i = smallest;
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package org.jak_linux.dns66.vpn;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded first in, first out queue for exactly one producer thread and one consumer thread,
+ * without locks.
+ * <p>
+ * The items live in a ring. The producer publishes an item by moving the tail past it, and the
+ * consumer frees its slot by moving the head past it; each counter is only written by one side,
+ * and read by the other. The tail is a volatile write, so that a consumer that checks the queue
+ * before it goes to sleep and a producer that checks whether it sleeps cannot miss each other;
+ * the head only needs to become visible eventually, and is written with release semantics.
+ * Each side caches the counter of the other side, and only reads it again when the cached value
+ * says the queue is full or empty.
+ *
+ * @param <T> The type of the items
+ */
+class SpscQueue<T> {
+    private final Object[] items;
+    private final int mask;
+    /* The next item to take, written by the consumer */
+    private final AtomicLong head = new AtomicLong();
+    /* The next slot to fill, written by the producer */
+    private final AtomicLong tail = new AtomicLong();
+    private long cachedHead;
+    private long cachedTail;
+
+    /**
+     * @param capacity The number of items the queue holds, rounded up to a power of two
+     */
+    SpscQueue(int capacity) {
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        items = new Object[size];
+        mask = size - 1;
+    }
+
+    /**
+     * Adds an item, on the producer thread.
+     *
+     * @return false if the queue is full
+     */
+    boolean offer(T item) {
+        long t = tail.get();
+        if (t - cachedHead == items.length) {
+            cachedHead = head.get();
+            if (t - cachedHead == items.length)
+                return false;
+        }
+        items[(int) t & mask] = item;
+        tail.set(t + 1);
+        return true;
+    }
+
+    /**
+     * Takes the first item, on the consumer thread.
+     *
+     * @return The item, or null if the queue is empty
+     */
+    @SuppressWarnings("unchecked")
+    T poll() {
+        long h = head.get();
+        if (h == cachedTail) {
+            cachedTail = tail.get();
+            if (h == cachedTail)
+                return null;
+        }
+        int index = (int) h & mask;
+        T item = (T) items[index];
+        items[index] = null;
+        head.lazySet(h + 1);
+        return item;
+    }
+
+    /**
+     * @return true if the queue holds no items; exact on the consumer thread only
+     */
+    boolean isEmpty() {
+        return head.get() == tail.get();
+    }
+
+    /**
+     * @return The number of items the queue holds at most
+     */
+    int capacity() {
+        return items.length;
+    }
+}
@@ -0,0 +1,122 @@
+package org.jak_linux.dns66.vpn;
+
+import java.util.Arrays;
+
+/**
+ * A hashed timer wheel: values scheduled to expire at a deadline, in slots of a fixed duration.
+ * <p>
+ * Scheduling a value adds it to the slot of its deadline, and advancing the wheel empties the
+ * slots that have passed, so both cost O(1) per value. Deadlines are rounded up to the end of
+ * their slot, and must lie within one turn of the wheel; later ones are clamped to the last
+ * slot. The owner advances the wheel at least once per slot while values are waiting, see
+ * {@link #nextExpiry()}; an empty wheel catches up when a value is scheduled. There is no way
+ * to cancel a value: the owner checks whether an expired value is still current, and ignores
+ * it otherwise.
+ * <p>
+ * Values are plain longs, such as an index with a generation count, kept in arrays that only
+ * grow; so once the wheel has seen its busiest time, scheduling does not allocate.
+ * <p>
+ * Times are in milliseconds, of a monotonic clock. The wheel is not thread-safe.
+ */
+class TimerWheel {
+
+    interface Expiry {
+        void expired(long value);
+    }
+
+    private static final int INITIAL_SLOT_SIZE = 8;
+
+    private final long tickMillis;
+    private final long[][] slots;
+    private final int[] slotSizes;
+    /* The slot being emptied, swapped in so that expiring values can be scheduled again */
+    private long[] expiring = new long[INITIAL_SLOT_SIZE];
+    private long currentTick;
+    private int size;
+
+    /**
+     * @param tickMillis The duration of a slot
+     * @param span       The longest time between now and a deadline
+     * @param now        The current time
+     */
+    TimerWheel(long tickMillis, long span, long now) {
+        this.tickMillis = tickMillis;
+        // One more slot for the current tick, and one for rounding the current time down
+        int count = (int) ((span + tickMillis - 1) / tickMillis) + 2;
+        this.slots = new long[count][];
+        this.slotSizes = new int[count];
+        for (int i = 0; i < count; i++)
+            slots[i] = new long[INITIAL_SLOT_SIZE];
+        this.currentTick = now / tickMillis;
+    }
+
+    /**
+     * Schedules a value.
+     *
+     * @param deadline The time at or after which the value expires
+     * @param now      The current time
+     */
+    void schedule(long value, long deadline, long now) {
+        if (size == 0)
+            currentTick = Math.max(currentTick, now / tickMillis);
+        long tick = (deadline + tickMillis - 1) / tickMillis;
+        // Values of a tick that has passed expire with the next one.
+        tick = Math.max(currentTick + 1, Math.min(tick, currentTick + slots.length - 1));
+        int slot = (int) (tick % slots.length);
+        if (slotSizes[slot] == slots[slot].length)
+            slots[slot] = Arrays.copyOf(slots[slot], slots[slot].length * 2);
+        slots[slot][slotSizes[slot]++] = value;
+        size++;
+    }
+
+    /**
+     * @return The number of values waiting to expire
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return The time at which the next slot expires, or -1 if no values are waiting
+     */
+    long nextExpiry() {
+        return size == 0 ? -1 : (currentTick + 1) * tickMillis;
+    }
+
+    /**
+     * Drops all waiting values, without expiring them.
+     */
+    void clear() {
+        Arrays.fill(slotSizes, 0);
+        size = 0;
+    }
+
+    /**
+     * Expires the values of the slots that have passed.
+     *
+     * @param now    The current time
+     * @param expiry Called with each expired value, and may schedule values again
+     */
+    void advance(long now, Expiry expiry) {
+        long nowTick = now / tickMillis;
+        // After a long sleep, every slot is due once, in order.
+        long lastTick = Math.min(nowTick, currentTick + slots.length);
+
+        while (currentTick < lastTick) {
+            currentTick++;
+            int slot = (int) (currentTick % slots.length);
+            int count = slotSizes[slot];
+            if (count == 0)
+                continue;
+
+            long[] values = slots[slot];
+            slots[slot] = expiring;
+            slotSizes[slot] = 0;
+            expiring = values;
+            size -= count;
+            for (int i = 0; i < count; i++)
+                expiry.expired(values[i]);
+        }
+        currentTick = Math.max(currentTick, nowTick);
+    }
+}
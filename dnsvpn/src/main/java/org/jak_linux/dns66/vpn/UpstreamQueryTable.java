@@ -0,0 +1,381 @@
+package org.jak_linux.dns66.vpn;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * The queries sent upstream and waiting for a response, keyed by the socket they were sent
+ * with and the DNS transaction id they were sent with.
+ * <p>
+ * As several queries share a socket, each one is sent with a new random transaction id, unique
+ * among the queries waiting on its socket. The response carries that id back, and the query it
+ * belongs to is found by it; the id the client chose is restored before the response is
+ * passed on.
+ * <p>
+ * A query lives in a numbered slot, and the table keeps only what answering it takes: the
+ * addresses, ports and header fields of the request, the two transaction ids, the socket, and
+ * the time it was sent, each in an array of primitives indexed by slot. The DNS payload is
+ * kept for sending it again, in one shared array with a fixed amount of room per slot; longer
+ * queries are not sent again. Transaction ids are found through an open addressing hash of
+ * their own. All arrays are allocated up front, so adding and removing queries creates no
+ * objects, and the garbage collector has nothing to trace.
+ * <p>
+ * The number of waiting queries is bounded, the oldest query is dropped to make room for a new
+ * one. A {@link TimerWheel} keeps track of the deadlines of the queries: a query without a
+ * response is sent again once after the retransmit time, and dropped after the timeout, as
+ * {@link #expire(long, Listener)} is called.
+ */
+class UpstreamQueryTable {
+
+    interface Listener {
+        /**
+         * Sends the query in a slot upstream again, with the same socket and transaction id,
+         * see {@link #getQueryData()}.
+         */
+        void retransmit(int slot);
+    }
+
+    /* Deadlines are checked with this precision */
+    private static final long TICK_MILLIS = 250;
+    /* Marks a free slot, or a free entry of the hash */
+    private static final long NO_KEY = -1;
+
+    private final int maxQueries;
+    private final int maxQueryLength;
+    private final long timeoutMillis;
+    private final long retransmitMillis;
+    private final Random random;
+    private final TimerWheel deadlines;
+    private long droppedQueries;
+    private long retransmittedQueries;
+
+    // The slots: the socket and transaction id, as a key, and the query
+    private final long[] slotKeys;
+    private final int[] clientAddresses;
+    private final int[] serverAddresses;
+    private final char[] clientPorts;
+    private final char[] serverPorts;
+    private final char[] originalIds;
+    private final char[] identifications;
+    private final byte[] tos;
+    private final long[] times;
+    private final boolean[] retransmitted;
+    /* Counts the reuses of each slot, so that stale deadlines can be told apart */
+    private final int[] generations;
+    private final char[] queryLengths;
+    private final byte[] queryData;
+    private final int[] freeSlots;
+    private int freeCount;
+
+    // The hash from keys to slots, with linear probing
+    private final long[] hashKeys;
+    private final int[] hashSlots;
+    private final int hashMask;
+
+    private final TimerWheel.Expiry expiry = new TimerWheel.Expiry() {
+        @Override
+        public void expired(long value) {
+            int slot = (int) value;
+            // Answered or dropped queries stay in the wheel until they expire.
+            if (slotKeys[slot] == NO_KEY || generations[slot] != (int) (value >>> 32))
+                return;
+            if (retransmitMillis > 0 && !retransmitted[slot] && queryLengths[slot] > 0) {
+                retransmitted[slot] = true;
+                retransmittedQueries++;
+                deadlines.schedule(value, times[slot] + timeoutMillis, expiryTime);
+                expiryListener.retransmit(slot);
+            } else {
+                remove(slot);
+                droppedQueries++;
+            }
+        }
+    };
+    /* The arguments of the current call to expire() */
+    private long expiryTime;
+    private Listener expiryListener;
+
+    /**
+     * @param maxQueries       The number of queries that can wait, at most 65536 per socket
+     * @param maxQueryLength   The longest DNS payload that is kept for sending it again
+     * @param timeoutMillis    The time after which a query without a response is dropped
+     * @param retransmitMillis The time after which a query without a response is sent again,
+     *                         or 0 to never send it again
+     * @param random           The source of transaction ids, which should be unpredictable
+     * @param now              The current time, in milliseconds of a monotonic clock
+     */
+    UpstreamQueryTable(int maxQueries, int maxQueryLength, long timeoutMillis, long retransmitMillis, Random random, long now) {
+        this.maxQueries = maxQueries;
+        this.maxQueryLength = retransmitMillis > 0 ? maxQueryLength : 0;
+        this.timeoutMillis = timeoutMillis;
+        this.retransmitMillis = retransmitMillis;
+        this.random = random;
+        this.deadlines = new TimerWheel(TICK_MILLIS, timeoutMillis, now);
+
+        slotKeys = new long[maxQueries];
+        clientAddresses = new int[maxQueries];
+        serverAddresses = new int[maxQueries];
+        clientPorts = new char[maxQueries];
+        serverPorts = new char[maxQueries];
+        originalIds = new char[maxQueries];
+        identifications = new char[maxQueries];
+        tos = new byte[maxQueries];
+        times = new long[maxQueries];
+        retransmitted = new boolean[maxQueries];
+        generations = new int[maxQueries];
+        queryLengths = new char[maxQueries];
+        queryData = new byte[maxQueries * this.maxQueryLength];
+        freeSlots = new int[maxQueries];
+
+        // At most half full, so probe sequences stay short
+        int hashSize = Integer.highestOneBit(Math.max(1, maxQueries - 1)) << 2;
+        hashKeys = new long[hashSize];
+        hashSlots = new int[hashSize];
+        hashMask = hashSize - 1;
+        clear();
+    }
+
+    /**
+     * Adds a query about to be sent. The transaction id it is to be sent with is
+     * {@link #getId(int)}.
+     *
+     * @param upstreamId The id of the socket the query is sent with
+     * @param request    The packet of the query, with a DNS payload of at least two bytes
+     * @param now        The current time, in milliseconds
+     * @return The slot of the query
+     */
+    int add(int upstreamId, Ipv4UdpPacket request, long now) {
+        if (freeCount == 0) {
+            remove(oldestSlot());
+            droppedQueries++;
+        }
+
+        int id;
+        long key;
+        int index;
+        do {
+            id = random.nextInt(0x10000);
+            key = key(upstreamId, id);
+            index = find(key);
+        } while (hashKeys[index] != NO_KEY);
+
+        int slot = freeSlots[--freeCount];
+        slotKeys[slot] = key;
+        hashKeys[index] = key;
+        hashSlots[index] = slot;
+
+        ByteBuffer buffer = request.getBuffer();
+        int dnsOffset = request.getPayloadOffset();
+        int dnsLength = request.getPayloadLength();
+        clientAddresses[slot] = request.getSourceAddress();
+        clientPorts[slot] = (char) request.getSourcePort();
+        serverAddresses[slot] = request.getDestinationAddress();
+        serverPorts[slot] = (char) request.getDestinationPort();
+        identifications[slot] = (char) request.getIdentification();
+        tos[slot] = (byte) request.getTos();
+        originalIds[slot] = (char) (((buffer.get(dnsOffset) & 0xff) << 8) | (buffer.get(dnsOffset + 1) & 0xff));
+        times[slot] = now;
+        retransmitted[slot] = false;
+
+        if (dnsLength <= maxQueryLength) {
+            int start = slot * maxQueryLength;
+            for (int i = 0; i < dnsLength; i++)
+                queryData[start + i] = buffer.get(dnsOffset + i);
+            // The copy is sent as it is, with the new transaction id.
+            queryData[start] = (byte) (id >> 8);
+            queryData[start + 1] = (byte) id;
+            queryLengths[slot] = (char) dnsLength;
+        } else {
+            queryLengths[slot] = 0;
+        }
+
+        long deadline = now + (retransmitMillis > 0 && queryLengths[slot] > 0 ? retransmitMillis : timeoutMillis);
+        deadlines.schedule(((long) generations[slot] << 32) | slot, deadline, now);
+        return slot;
+    }
+
+    /**
+     * Retransmits and drops the queries whose deadlines have passed.
+     *
+     * @param now      The current time, in milliseconds
+     * @param listener Sends the queries again
+     */
+    void expire(long now, Listener listener) {
+        expiryTime = now;
+        expiryListener = listener;
+        try {
+            deadlines.advance(now, expiry);
+        } finally {
+            expiryListener = null;
+        }
+    }
+
+    /**
+     * @return The time the next deadline may pass, or -1 if no queries are waiting
+     */
+    long nextExpiry() {
+        return deadlines.nextExpiry();
+    }
+
+    /**
+     * @return The slot of the query sent with the given socket and transaction id, or -1
+     */
+    int get(int upstreamId, int id) {
+        return hashSlots[find(key(upstreamId, id))];
+    }
+
+    /**
+     * Removes a query, once its response has been received. The slot may be reused right away.
+     */
+    void remove(int slot) {
+        long key = slotKeys[slot];
+        if (key == NO_KEY)
+            return;
+        slotKeys[slot] = NO_KEY;
+        generations[slot]++;
+        freeSlots[freeCount++] = slot;
+
+        // Move later entries of the probe sequence up, so that no tombstones are needed.
+        int hole = find(key);
+        int i = hole;
+        while (true) {
+            i = (i + 1) & hashMask;
+            if (hashKeys[i] == NO_KEY)
+                break;
+            int home = hash(hashKeys[i]);
+            // Entries whose home lies cyclically in (hole, i] stay where they are.
+            if (((i - home) & hashMask) >= ((i - hole) & hashMask)) {
+                hashKeys[hole] = hashKeys[i];
+                hashSlots[hole] = hashSlots[i];
+                hole = i;
+            }
+        }
+        hashKeys[hole] = NO_KEY;
+        hashSlots[hole] = -1;
+    }
+
+    int getUpstreamId(int slot) {
+        return (int) (slotKeys[slot] >>> 16);
+    }
+
+    /**
+     * @return The transaction id the query is sent with
+     */
+    int getId(int slot) {
+        return (int) (slotKeys[slot] & 0xffff);
+    }
+
+    /**
+     * @return The transaction id chosen by the client
+     */
+    int getOriginalId(int slot) {
+        return originalIds[slot];
+    }
+
+    /**
+     * @return The address the query is sent to, in network byte order
+     */
+    int getServerAddress(int slot) {
+        return serverAddresses[slot];
+    }
+
+    int getServerPort(int slot) {
+        return serverPorts[slot];
+    }
+
+    /**
+     * Sets the header fields of the request of a query on a packet, which can then write the
+     * response, see {@link Ipv4UdpPacket#restore(int, int, int, int, int, int)}.
+     */
+    void getRequest(int slot, Ipv4UdpPacket packet) {
+        packet.restore(clientAddresses[slot], clientPorts[slot], serverAddresses[slot], serverPorts[slot],
+                tos[slot] & 0xff, identifications[slot]);
+    }
+
+    /**
+     * @return The array the DNS payloads of the queries are kept in, with the transaction id
+     * they are sent with, at {@link #getQueryOffset(int)}
+     */
+    byte[] getQueryData() {
+        return queryData;
+    }
+
+    int getQueryOffset(int slot) {
+        return slot * maxQueryLength;
+    }
+
+    /**
+     * @return The length of the DNS payload of the query, or 0 if it is too long to be kept
+     */
+    int getQueryLength(int slot) {
+        return queryLengths[slot];
+    }
+
+    /**
+     * @return The number of waiting queries
+     */
+    int size() {
+        return maxQueries - freeCount;
+    }
+
+    /**
+     * @return The number of queries dropped because they timed out or too many were waiting
+     */
+    long getDroppedQueries() {
+        return droppedQueries;
+    }
+
+    /**
+     * @return The number of queries sent again
+     */
+    long getRetransmittedQueries() {
+        return retransmittedQueries;
+    }
+
+    /**
+     * Drops all queries and their deadlines.
+     */
+    void clear() {
+        for (int slot = 0; slot < maxQueries; slot++) {
+            if (slotKeys[slot] != NO_KEY)
+                generations[slot]++;
+            slotKeys[slot] = NO_KEY;
+            // Slots are taken from the end, lowest first.
+            freeSlots[slot] = maxQueries - 1 - slot;
+        }
+        freeCount = maxQueries;
+        Arrays.fill(hashKeys, NO_KEY);
+        Arrays.fill(hashSlots, -1);
+        deadlines.clear();
+    }
+
+    /**
+     * @return The slot of the query sent first; only called when the table is full
+     */
+    private int oldestSlot() {
+        int oldest = 0;
+        for (int slot = 1; slot < maxQueries; slot++) {
+            if (times[slot] < times[oldest])
+                oldest = slot;
+        }
+        return oldest;
+    }
+
+    /**
+     * @return The index of a key in the hash, or of the free entry where it belongs
+     */
+    private int find(long key) {
+        int i = hash(key);
+        while (hashKeys[i] != NO_KEY && hashKeys[i] != key)
+            i = (i + 1) & hashMask;
+        return i;
+    }
+
+    private int hash(long key) {
+        return (int) ((key * 0x9E3779B97F4A7C15L) >>> 32) & hashMask;
+    }
+
+    private static long key(int upstreamId, int id) {
+        return ((long) upstreamId << 16) | id;
+    }
+}
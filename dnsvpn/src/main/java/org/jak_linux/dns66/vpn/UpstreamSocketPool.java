@@ -0,0 +1,164 @@
+package org.jak_linux.dns66.vpn;
+
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A small set of long-lived sockets that queries are sent upstream with, in turn.
+ * <p>
+ * Creating a socket involves protecting it from the VPN, which is a call into the system, so
+ * sockets are reused for many queries. To keep the source port of queries unpredictable, a
+ * socket is retired after a number of queries, and replaced by a new one on another random
+ * port. Retired sockets are kept open for a while, so that the responses to the queries sent
+ * with them can still be received.
+ */
+class UpstreamSocketPool {
+
+    /**
+     * Creates the sockets, ready to be used outside of the VPN, and closes them again.
+     */
+    interface SocketFactory {
+        DatagramSocket create() throws IOException;
+
+        void close(DatagramSocket socket);
+    }
+
+    /**
+     * A socket of the pool, with an id that stays unique within the pool.
+     */
+    static class Upstream {
+        final int id;
+        final DatagramSocket socket;
+        private int queries;
+        private long retiredAt;
+
+        Upstream(int id, DatagramSocket socket) {
+            this.id = id;
+            this.socket = socket;
+        }
+    }
+
+    private final SocketFactory factory;
+    private final int queriesPerSocket;
+    private final long lingerMillis;
+    private final Upstream[] active;
+    private final List<Upstream> retired = new ArrayList<>();
+    // All open sockets, active and retired
+    private final Map<DatagramSocket, Upstream> open = new LinkedHashMap<>();
+    private int next;
+    private int nextId;
+
+    /**
+     * @param size             The number of sockets to send queries with
+     * @param queriesPerSocket The number of queries after which a socket is retired
+     * @param lingerMillis     How long retired sockets are kept open
+     * @param factory          Creates the sockets
+     */
+    UpstreamSocketPool(int size, int queriesPerSocket, long lingerMillis, SocketFactory factory) {
+        this.active = new Upstream[size];
+        this.queriesPerSocket = queriesPerSocket;
+        this.lingerMillis = lingerMillis;
+        this.factory = factory;
+    }
+
+    /**
+     * Picks the socket to send the next query with, creating it if needed.
+     *
+     * @param now The current time, in milliseconds
+     * @throws IOException If a socket cannot be created
+     */
+    Upstream acquire(long now) throws IOException {
+        int slot = next;
+        next = (next + 1) % active.length;
+
+        Upstream upstream = active[slot];
+        if (upstream == null) {
+            upstream = new Upstream(nextId++, factory.create());
+            active[slot] = upstream;
+            open.put(upstream.socket, upstream);
+        }
+        if (++upstream.queries >= queriesPerSocket)
+            retire(upstream, now);
+        return upstream;
+    }
+
+    /**
+     * Stops sending queries with a socket, for example because sending failed. It stays open
+     * for receiving until {@link #closeRetired(long)} closes it.
+     */
+    void retire(Upstream upstream, long now) {
+        for (int i = 0; i < active.length; i++) {
+            if (active[i] == upstream) {
+                active[i] = null;
+                upstream.retiredAt = now;
+                retired.add(upstream);
+            }
+        }
+    }
+
+    /**
+     * Closes the sockets that have been retired for long enough.
+     *
+     * @param now The current time, in milliseconds
+     */
+    void closeRetired(long now) {
+        for (Iterator<Upstream> iterator = retired.iterator(); iterator.hasNext(); ) {
+            Upstream upstream = iterator.next();
+            if (now - upstream.retiredAt >= lingerMillis) {
+                iterator.remove();
+                open.remove(upstream.socket);
+                factory.close(upstream.socket);
+            }
+        }
+    }
+
+    /**
+     * @return The time the next retired socket is due to be closed, or -1 if there is none
+     */
+    long nextClose() {
+        return retired.isEmpty() ? -1 : retired.get(0).retiredAt + lingerMillis;
+    }
+
+    /**
+     * @return The socket with the given id, or null if it has been closed
+     */
+    Upstream get(int id) {
+        for (Upstream upstream : open.values()) {
+            if (upstream.id == id)
+                return upstream;
+        }
+        return null;
+    }
+
+    /**
+     * @return The socket of the pool, or null if it is not (or no longer) part of it
+     */
+    Upstream get(DatagramSocket socket) {
+        return open.get(socket);
+    }
+
+    /**
+     * @return All open sockets, to wait for responses on
+     */
+    Set<DatagramSocket> sockets() {
+        return open.keySet();
+    }
+
+    /**
+     * Closes all sockets.
+     */
+    void close() {
+        for (DatagramSocket socket : open.keySet())
+            factory.close(socket);
+        open.clear();
+        retired.clear();
+        for (int i = 0; i < active.length; i++)
+            active[i] = null;
+    }
+}
@@ -59,7 +59,8 @@ class VpnServiceVpnFileDescriptorProvider implements AdVpnThread.VpnFileDescript
             }
         }
 
-        builder.setBlocking(true);
+        // AdVpnThread drains the device after each poll until it would block.
+        builder.setBlocking(false);
 
         // Work around DownloadManager bug on Nougat - It cannot resolve DNS
         // names while a VPN service is active.
@@ -0,0 +1,94 @@
+package org.jak_linux.dns66.vpn;
+
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.Flags;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.Rcode;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.Type;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Measures answering a blocked query read from the tun device, once its name is known to be
+ * blocked: with dnsjava, as {@link QueryDecider} used to for every query, and from a
+ * {@link BlockResponse} template; nanoseconds per response, and bytes allocated per response.
+ * Run it with the test classpath on a HotSpot JVM; it is not run as part of the tests.
+ * <p>
+ * Arguments: [responses per round]
+ */
+public class BlockResponseBenchmark {
+    private static final int ROUNDS = 5;
+    /* Keeps the results alive */
+    private static volatile int sink;
+
+    private interface Responder {
+        /**
+         * @return Something depending on the result, so that the work cannot be skipped
+         */
+        int respond(Ipv4UdpPacket request, ByteBuffer out) throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int responses = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        byte[] query = Message.newQuery(Record.newRecord(Name.fromString("ads.example.com."), Type.A, DClass.IN)).toWire();
+        byte[] packet = Ipv4UdpPacketTest.buildPacket("10.0.0.2", 40000, "8.8.8.8", 53, query);
+
+        System.out.println("responder\tns/response\tbytes allocated/response");
+        run("dnsjava", new Responder() {
+            @Override
+            public int respond(Ipv4UdpPacket request, ByteBuffer out) throws Exception {
+                byte[] data = request.getBuffer().array();
+                int dnsOffset = request.getPayloadOffset();
+                Message message = new Message(Arrays.copyOfRange(data, dnsOffset, dnsOffset + request.getPayloadLength()));
+                message.getHeader().setFlag(Flags.QR);
+                message.getHeader().setRcode(Rcode.NXDOMAIN);
+                byte[] response = message.toWire();
+                request.writeResponse(response, 0, response.length, out);
+                return out.position();
+            }
+        }, packet, responses);
+
+        final DnsQueryName queryName = new DnsQueryName();
+        final byte[] head = new byte[BlockResponse.HEADER_LENGTH];
+        run("template", new Responder() {
+            @Override
+            public int respond(Ipv4UdpPacket request, ByteBuffer out) {
+                byte[] data = request.getBuffer().array();
+                int dnsOffset = request.getPayloadOffset();
+                // The decider has parsed the name already, and measured the question.
+                queryName.parse(data, dnsOffset, request.getPayloadLength());
+                BlockResponse.NXDOMAIN.writeHeader(data, dnsOffset, queryName.getType(), head);
+                byte[] records = BlockResponse.NXDOMAIN.getRecords(queryName.getType());
+                request.writeResponse(head, queryName.getQuestionLength(), records, 0, records.length, out);
+                return out.position();
+            }
+        }, packet, responses);
+    }
+
+    private static void run(String name, Responder responder, byte[] packet, int responses) throws Exception {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        Ipv4UdpPacket request = new Ipv4UdpPacket();
+        request.parse(ByteBuffer.wrap(packet));
+        ByteBuffer out = ByteBuffer.allocate(4096);
+        long best = Long.MAX_VALUE;
+        long allocated = 0;
+        int check = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            long allocatedBefore = threads.getThreadAllocatedBytes(threadId);
+            long start = System.nanoTime();
+            for (int i = 0; i < responses; i++) {
+                out.clear();
+                check += responder.respond(request, out);
+            }
+            best = Math.min(best, System.nanoTime() - start);
+            allocated = threads.getThreadAllocatedBytes(threadId) - allocatedBefore;
+        }
+        sink = check;
+        System.out.println(name + "\t" + best / responses + "\t" + allocated / responses);
+    }
+}
@@ -0,0 +1,148 @@
+package org.jak_linux.dns66.vpn;
+
+import org.junit.Test;
+import org.xbill.DNS.AAAARecord;
+import org.xbill.DNS.ARecord;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.Flags;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.OPTRecord;
+import org.xbill.DNS.Rcode;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.SOARecord;
+import org.xbill.DNS.Section;
+import org.xbill.DNS.Type;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class BlockResponseTest {
+
+    @Test
+    public void theHeaderAnswersTheQuery() throws Exception {
+        Message query = Message.newQuery(Record.newRecord(Name.fromString("ads.example.com."), Type.A, DClass.IN));
+        byte[] wire = query.toWire();
+        byte[] head = new byte[BlockResponse.HEADER_LENGTH];
+        BlockResponse.NXDOMAIN.writeHeader(wire, 0, Type.A, head);
+
+        byte[] response = Arrays.copyOf(wire, wire.length);
+        System.arraycopy(head, 0, response, 0, head.length);
+        Message message = new Message(response);
+        assertThat(message.getHeader().getID(), is(query.getHeader().getID()));
+        assertThat(message.getHeader().getFlag(Flags.QR), is(true));
+        assertThat(message.getHeader().getFlag(Flags.RD), is(true));
+        assertThat(message.getHeader().getFlag(Flags.RA), is(true));
+        assertThat(message.getRcode(), is(Rcode.NXDOMAIN));
+        assertThat(message.getQuestion(), is(query.getQuestion()));
+    }
+
+    @Test
+    public void additionalRecordsOfTheQueryAreDropped() throws Exception {
+        Message query = Message.newQuery(Record.newRecord(Name.fromString("ads.example.com."), Type.AAAA, DClass.IN));
+        query.addRecord(new OPTRecord(4096, 0, 0), Section.ADDITIONAL);
+
+        Message message = respond(BlockResponse.NXDOMAIN, query);
+        assertThat(message.getRcode(), is(Rcode.NXDOMAIN));
+        assertThat(message.getOPT(), is(nullValue()));
+        assertThat(message.getQuestion().getType(), is(Type.AAAA));
+    }
+
+    @Test
+    public void nameErrorsWithSoaAreCachedForTheTtl() throws Exception {
+        Message message = respond(BlockResponse.nxdomainWithSoa(600), query("ads.example.com.", Type.A));
+        assertThat(message.getRcode(), is(Rcode.NXDOMAIN));
+        assertThat(message.getSectionArray(Section.ANSWER).length, is(0));
+        assertSoa(message, 600);
+    }
+
+    @Test
+    public void nodataAnswersAreEmptyWithSoa() throws Exception {
+        Message message = respond(BlockResponse.nodata(60), query("ads.example.com.", Type.AAAA));
+        assertThat(message.getRcode(), is(Rcode.NOERROR));
+        assertThat(message.getSectionArray(Section.ANSWER).length, is(0));
+        assertSoa(message, 60);
+    }
+
+    @Test
+    public void sinkholesAnswerWithUnspecifiedAddresses() throws Exception {
+        BlockResponse response = BlockResponse.sinkhole(300);
+
+        Message message = respond(response, query("ads.example.com.", Type.A));
+        assertThat(message.getRcode(), is(Rcode.NOERROR));
+        ARecord a = (ARecord) message.getSectionArray(Section.ANSWER)[0];
+        assertThat(a.getName().toString(true), is("ads.example.com"));
+        assertThat(a.getTTL(), is(300L));
+        assertThat(a.getAddress().getHostAddress(), is("0.0.0.0"));
+
+        message = respond(response, query("ads.example.com.", Type.AAAA));
+        AAAARecord aaaa = (AAAARecord) message.getSectionArray(Section.ANSWER)[0];
+        assertThat(aaaa.getName().toString(true), is("ads.example.com"));
+        assertThat(aaaa.getAddress(), is(InetAddress.getByName("::")));
+
+        message = respond(response, query("ads.example.com.", Type.MX));
+        assertThat(message.getRcode(), is(Rcode.NOERROR));
+        assertThat(message.getSectionArray(Section.ANSWER).length, is(0));
+        assertSoa(message, 300);
+    }
+
+    @Test
+    public void theConfigurationSelectsTheResponse() throws Exception {
+        Configuration.Blocking blocking = new Configuration.Blocking();
+        assertThat(BlockResponse.forConfiguration(blocking), is(BlockResponse.NXDOMAIN));
+
+        blocking.response = Configuration.Blocking.RESPONSE_NODATA;
+        blocking.ttl = -1;
+        Message message = respond(BlockResponse.forConfiguration(blocking), query("ads.example.com.", Type.A));
+        assertThat(message.getRcode(), is(Rcode.NOERROR));
+        assertSoa(message, 0);
+    }
+
+    @Test
+    public void unusualQueriesGetTheWholeResponse() throws Exception {
+        Message query = query("ad+s.Example.com.", Type.A);
+        query.addRecord(Record.newRecord(Name.fromString("other.example.com."), Type.A, DClass.IN), Section.QUESTION);
+        byte[] wire = query.toWire();
+
+        Message message = new Message(BlockResponse.nxdomainWithSoa(600).toWire(wire, 0, new Message(wire)));
+        assertThat(message.getHeader().getID(), is(query.getHeader().getID()));
+        assertThat(message.getHeader().getFlag(Flags.QR), is(true));
+        assertThat(message.getRcode(), is(Rcode.NXDOMAIN));
+        assertThat(message.getHeader().getCount(Section.QUESTION), is(1));
+        assertThat(message.getQuestion().getName().toString(), is("ad+s.Example.com."));
+        assertSoa(message, 600);
+    }
+
+    private static Message query(String name, int type) throws Exception {
+        return Message.newQuery(Record.newRecord(Name.fromString(name), type, DClass.IN));
+    }
+
+    private static Message respond(BlockResponse response, Message query) throws Exception {
+        byte[] packet = Ipv4UdpPacketTest.buildPacket("10.0.0.2", 40000, "8.8.8.8", 53, query.toWire());
+        Ipv4UdpPacket request = new Ipv4UdpPacket();
+        request.parse(ByteBuffer.wrap(packet));
+        DnsQueryName queryName = new DnsQueryName();
+        queryName.parse(packet, request.getPayloadOffset(), request.getPayloadLength());
+
+        byte[] head = new byte[BlockResponse.HEADER_LENGTH];
+        response.writeHeader(packet, request.getPayloadOffset(), queryName.getType(), head);
+        ByteBuffer out = ByteBuffer.allocate(512);
+        byte[] records = response.getRecords(queryName.getType());
+        request.writeResponse(head, queryName.getQuestionLength(), records, 0, records.length, out);
+        return new Message(Arrays.copyOfRange(out.array(), Ipv4UdpPacket.HEADER_LENGTH, out.position()));
+    }
+
+    private static void assertSoa(Message message, long ttl) {
+        Record[] authority = message.getSectionArray(Section.AUTHORITY);
+        assertThat(authority.length, is(1));
+        SOARecord soa = (SOARecord) authority[0];
+        assertThat(soa.getName(), is(message.getQuestion().getName()));
+        assertThat(soa.getTTL(), is(ttl));
+        assertThat(soa.getMinimum(), is(ttl));
+    }
+}
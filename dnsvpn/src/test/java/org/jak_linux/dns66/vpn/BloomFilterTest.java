@@ -0,0 +1,81 @@
+package org.jak_linux.dns66.vpn;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class BloomFilterTest {
+
+    @Test
+    public void addedFingerprintsAreAlwaysFound() {
+        BloomFilter filter = new BloomFilter(10000, 0.01);
+        for (int i = 0; i < 10000; i++)
+            filter.add(DomainHashSet.fingerprint("host" + i));
+
+        for (int i = 0; i < 10000; i++)
+            assertThat(filter.mightContain(DomainHashSet.fingerprint("host" + i)), is(true));
+        assertThat(filter.getPositives(), is(10000L));
+    }
+
+    @Test
+    public void theFalsePositiveRateIsRoughlyAsConfigured() {
+        BloomFilter filter = new BloomFilter(10000, 0.01);
+        for (int i = 0; i < 10000; i++)
+            filter.add(DomainHashSet.fingerprint("host" + i));
+
+        for (int i = 0; i < 100000; i++)
+            filter.mightContain(DomainHashSet.fingerprint("otherhost" + i));
+
+        assertTrue("too many false positives: " + filter.getPositives(), filter.getPositives() < 2000);
+        assertThat(filter.getNegatives() + filter.getPositives(), is(100000L));
+    }
+
+    @Test
+    public void anEmptyFilterRejectsEverything() {
+        BloomFilter filter = new BloomFilter(0, 0.01);
+
+        assertThat(filter.mightContain(DomainHashSet.fingerprint("somehost")), is(false));
+        assertThat(filter.getNegatives(), is(1L));
+    }
+
+    @Test
+    public void writtenFiltersGiveTheSameAnswers() throws IOException {
+        BloomFilter filter = new BloomFilter(1000, 0.01);
+        for (int i = 0; i < 1000; i++)
+            filter.add(DomainHashSet.fingerprint("host" + i));
+        ByteBuffer buffer = ByteBuffer.allocate(filter.serializedSize() + 4).order(ByteOrder.LITTLE_ENDIAN);
+        filter.writeTo(buffer);
+        buffer.putInt(42);
+        buffer.flip();
+
+        BloomFilter read = BloomFilter.read(buffer);
+        assertThat(buffer.getInt(), is(42));
+        assertThat(read.sizeInBytes(), is(filter.sizeInBytes()));
+        for (int i = 0; i < 2000; i++) {
+            long fingerprint = DomainHashSet.fingerprint("host" + i);
+            assertThat(read.mightContain(fingerprint), is(filter.mightContain(fingerprint)));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void truncatedFiltersAreRejected() throws IOException {
+        BloomFilter filter = new BloomFilter(1000, 0.01);
+        ByteBuffer buffer = ByteBuffer.allocate(filter.serializedSize()).order(ByteOrder.LITTLE_ENDIAN);
+        filter.writeTo(buffer);
+        buffer.flip();
+        buffer.limit(buffer.limit() - 1);
+
+        BloomFilter.read(buffer);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidFalsePositiveRatesAreRejected() {
+        new BloomFilter(10, 1.0);
+    }
+}
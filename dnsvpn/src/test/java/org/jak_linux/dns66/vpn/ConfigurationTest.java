@@ -0,0 +1,77 @@
+package org.jak_linux.dns66.vpn;
+
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class ConfigurationTest {
+
+    @Test
+    public void titlesAndDnsServersDoNotChangeTheBlocking() {
+        Configuration config = newConfiguration();
+        Configuration other = newConfiguration();
+        other.hosts.items.get(0).title = "Renamed";
+        other.dnsServers.enabled = true;
+
+        assertThat(config.blocksSameAs(other), is(true));
+    }
+
+    @Test
+    public void hostListsAndResponsesChangeTheBlocking() {
+        Configuration config = newConfiguration();
+
+        Configuration other = newConfiguration();
+        other.hosts.items.get(0).state = Configuration.Item.STATE_IGNORE;
+        assertThat(config.blocksSameAs(other), is(false));
+
+        other = newConfiguration();
+        other.hosts.items.add(item("https://example.com/more-hosts"));
+        assertThat(config.blocksSameAs(other), is(false));
+
+        other = newConfiguration();
+        other.hosts.enabled = false;
+        assertThat(config.blocksSameAs(other), is(false));
+
+        other = newConfiguration();
+        other.blocking.response = Configuration.Blocking.RESPONSE_SINKHOLE;
+        assertThat(config.blocksSameAs(other), is(false));
+
+        other = newConfiguration();
+        other.hosts.filterFalsePositiveRate = 0.001;
+        assertThat(config.blocksSameAs(other), is(false));
+    }
+
+    @Test
+    public void workersAreOffUnlessChosenFromTheProcessors() {
+        Configuration config = newConfiguration();
+        assertThat(config.getDecisionWorkers(8), is(0));
+
+        config.decisionWorkers = Configuration.DECISION_WORKERS_AUTO;
+        assertThat(config.getDecisionWorkers(1), is(0));
+        assertThat(config.getDecisionWorkers(2), is(1));
+        assertThat(config.getDecisionWorkers(8), is(2));
+
+        config.decisionWorkers = 0;
+        assertThat(config.getDecisionWorkers(8), is(0));
+        config.decisionWorkers = 3;
+        assertThat(config.getDecisionWorkers(2), is(3));
+    }
+
+    private static Configuration newConfiguration() {
+        Configuration config = new Configuration();
+        config.hosts = new Configuration.Hosts();
+        config.hosts.enabled = true;
+        config.hosts.items.add(item("https://example.com/hosts"));
+        config.dnsServers = new Configuration.DnsServers();
+        return config;
+    }
+
+    private static Configuration.Item item(String location) {
+        Configuration.Item item = new Configuration.Item();
+        item.title = "Hosts";
+        item.location = location;
+        item.state = Configuration.Item.STATE_DENY;
+        return item;
+    }
+}
@@ -0,0 +1,113 @@
+package org.jak_linux.dns66.vpn;
+
+import org.junit.Test;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.Flags;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.OPTRecord;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.Section;
+import org.xbill.DNS.Type;
+
+import java.util.Arrays;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class DnsQueryNameTest {
+
+    @Test
+    public void theNameIsExtractedLikeDnsjavaDoes() throws Exception {
+        for (String name : Arrays.asList("example.com.", "www.example.com.", "a.", "_sip._tcp.example-host.org.")) {
+            byte[] wire = query(name).toWire();
+            DnsQueryName queryName = new DnsQueryName();
+
+            assertThat(queryName.parse(wire, 0, wire.length), is(true));
+            assertThat(queryName.toString(), is(new Message(wire).getQuestion().getName().toString(true)));
+        }
+    }
+
+    @Test
+    public void theNameIsLowerCased() throws Exception {
+        byte[] wire = query("WWW.Example.COM.").toWire();
+        DnsQueryName queryName = new DnsQueryName();
+
+        assertThat(queryName.parse(wire, 0, wire.length), is(true));
+        assertThat(queryName.toString(), is("www.example.com"));
+    }
+
+    @Test
+    public void messagesCanStartAtAnOffset() throws Exception {
+        byte[] wire = query("example.com.").toWire();
+        byte[] packet = new byte[wire.length + 28];
+        System.arraycopy(wire, 0, packet, 28, wire.length);
+        DnsQueryName queryName = new DnsQueryName();
+
+        assertThat(queryName.parse(packet, 28, wire.length), is(true));
+        assertThat(queryName.toString(), is("example.com"));
+    }
+
+    @Test
+    public void theQuestionIsMeasured() throws Exception {
+        Message message = Message.newQuery(Record.newRecord(Name.fromString("example.com."), Type.AAAA, DClass.IN));
+        byte[] question = message.toWire();
+        message.addRecord(new OPTRecord(4096, 0, 0), Section.ADDITIONAL);
+        byte[] wire = message.toWire();
+        DnsQueryName queryName = new DnsQueryName();
+
+        assertThat(queryName.parse(wire, 0, wire.length), is(true));
+        assertThat(queryName.getQuestionLength(), is(question.length));
+        assertThat(queryName.getType(), is(Type.AAAA));
+    }
+
+    @Test
+    public void theBufferIsReused() throws Exception {
+        DnsQueryName queryName = new DnsQueryName();
+        byte[] first = query("www.example.com.").toWire();
+        byte[] second = query("a.org.").toWire();
+
+        queryName.parse(first, 0, first.length);
+        queryName.parse(second, 0, second.length);
+
+        assertThat(queryName.length(), is(5));
+        assertThat(queryName.toString(), is("a.org"));
+    }
+
+    @Test
+    public void unusualMessagesAreLeftToTheFallback() throws Exception {
+        Message response = query("example.com.");
+        response.getHeader().setFlag(Flags.QR);
+
+        Message twoQuestions = query("example.com.");
+        twoQuestions.addRecord(Record.newRecord(Name.fromString("example.org."), Type.A, DClass.IN), Section.QUESTION);
+
+        assertThat(parses(response.toWire()), is(false));
+        assertThat(parses(twoQuestions.toWire()), is(false));
+        assertThat(parses(query("exa\\.mple.com.").toWire()), is(false));
+        assertThat(parses(query("ex\\195mple.com.").toWire()), is(false));
+        assertThat(parses(query(".").toWire()), is(false));
+    }
+
+    @Test
+    public void malformedMessagesAreLeftToTheFallback() throws Exception {
+        byte[] wire = query("example.com.").toWire();
+
+        assertThat(parses(Arrays.copyOf(wire, 11)), is(false));
+        assertThat(parses(Arrays.copyOf(wire, wire.length - 1)), is(false));
+        assertThat(parses(Arrays.copyOf(wire, 16)), is(false));
+
+        // A compression pointer in place of the first label
+        byte[] compressed = Arrays.copyOf(wire, wire.length);
+        compressed[12] = (byte) 0xc0;
+        assertThat(parses(compressed), is(false));
+    }
+
+    private boolean parses(byte[] wire) {
+        return new DnsQueryName().parse(wire, 0, wire.length);
+    }
+
+    private Message query(String name) throws Exception {
+        return Message.newQuery(Record.newRecord(Name.fromString(name), Type.A, DClass.IN));
+    }
+}
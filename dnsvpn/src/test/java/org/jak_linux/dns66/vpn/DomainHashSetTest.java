@@ -0,0 +1,58 @@
+package org.jak_linux.dns66.vpn;
+
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class DomainHashSetTest {
+
+    @Test
+    public void addedNamesAreContained() {
+        DomainHashSet set = new DomainHashSet();
+        set.add("somehost");
+
+        assertThat(set.contains("somehost"), is(true));
+        assertThat(set.contains("someotherhost"), is(false));
+    }
+
+    @Test
+    public void namesAreCaseInsensitive() {
+        DomainHashSet set = new DomainHashSet();
+
+        assertThat(set.add("SomeHost"), is(true));
+        assertThat(set.add("somehost"), is(false));
+        assertThat(set.contains(new StringBuilder("SOMEHOST")), is(true));
+        assertThat(set.size(), is(1));
+    }
+
+    @Test
+    public void growingKeepsNamesReachable() {
+        DomainHashSet set = new DomainHashSet();
+        for (int i = 0; i < 10000; i++)
+            set.add("host" + i + ".example.com");
+
+        assertThat(set.size(), is(10000));
+        for (int i = 0; i < 10000; i++)
+            assertThat(set.contains("host" + i + ".example.com"), is(true));
+        assertThat(set.contains("host10000.example.com"), is(false));
+    }
+
+    @Test
+    public void verifyingSetsTellNamesApart() {
+        DomainHashSet set = new DomainHashSet(true);
+        set.add("SomeHost");
+
+        assertThat(set.contains("somehost"), is(true));
+        assertThat(set.contains("someotherhost"), is(false));
+        assertThat(set.add("SOMEHOST"), is(false));
+        assertThat(set.getCollisions(), is(0));
+
+        // A name added by its fingerprint alone differs from any name with that fingerprint.
+        set.add(DomainHashSet.fingerprint("someotherhost"));
+        assertThat(set.add("someotherhost"), is(false));
+        assertThat(set.contains("someotherhost"), is(false));
+        assertThat(set.getCollisions(), is(1));
+        assertThat(set.size(), is(2));
+    }
+}
@@ -0,0 +1,93 @@
+package org.jak_linux.dns66.vpn;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class DomainTrieTest {
+
+    @Test
+    public void anEmptyTrieHasNoRules() {
+        assertThat(new DomainTrie().lookup("example.com"), is(HostRule.NONE));
+    }
+
+    @Test
+    public void domainRulesApplyToTheDomainAndItsSubdomains() {
+        DomainTrie trie = new DomainTrie();
+        trie.addDomain("doubleclick.net", true, 0);
+
+        assertThat(isBlocked(trie, "doubleclick.net"), is(true));
+        assertThat(isBlocked(trie, "ad.doubleclick.net"), is(true));
+        assertThat(isBlocked(trie, "a.b.doubleclick.net"), is(true));
+        assertThat(trie.lookup("net"), is(HostRule.NONE));
+        assertThat(trie.lookup("notdoubleclick.net"), is(HostRule.NONE));
+    }
+
+    @Test
+    public void hostRulesOnlyApplyToTheHostItself() {
+        DomainTrie trie = new DomainTrie();
+        trie.addHost("doubleclick.net", true, 0);
+
+        assertThat(isBlocked(trie, "doubleclick.net"), is(true));
+        assertThat(trie.lookup("ad.doubleclick.net"), is(HostRule.NONE));
+    }
+
+    @Test
+    public void lookupsAreCaseInsensitiveAndIgnoreTheTrailingDot() {
+        DomainTrie trie = new DomainTrie();
+        trie.addDomain("doubleclick.net", true, 0);
+
+        assertThat(isBlocked(trie, "Ad.DoubleClick.NET."), is(true));
+    }
+
+    @Test
+    public void laterSourcesOverrideEarlierOnes() {
+        DomainTrie trie = new DomainTrie();
+        trie.addHost("ad.example.com", false, 0);
+        trie.addDomain("example.com", true, 1);
+        trie.addDomain("cdn.example.com", false, 2);
+        trie.addHost("ad.cdn.example.com", true, 3);
+
+        assertThat(isBlocked(trie, "ad.example.com"), is(true));
+        assertThat(isBlocked(trie, "img.cdn.example.com"), is(false));
+        assertThat(isBlocked(trie, "ad.cdn.example.com"), is(true));
+        assertThat(HostRule.sourceOf(trie.lookup("img.cdn.example.com")), is(2));
+    }
+
+    @Test
+    public void manyRulesCanBeAdded() {
+        DomainTrie trie = new DomainTrie();
+        for (int i = 0; i < 10000; i++)
+            trie.addDomain("host" + i + ".example.com", true, 0);
+
+        for (int i = 0; i < 10000; i++)
+            assertThat(isBlocked(trie, "sub.host" + i + ".example.com"), is(true));
+        assertThat(trie.lookup("host10000.example.com"), is(HostRule.NONE));
+    }
+
+    @Test
+    public void aWrittenTrieCanBeReadBack() throws IOException {
+        DomainTrie trie = new DomainTrie();
+        trie.addDomain("doubleclick.net", true, 0);
+        trie.addHost("good.doubleclick.net", false, 1);
+
+        ByteBuffer buffer = ByteBuffer.allocate(trie.serializedSize()).order(ByteOrder.LITTLE_ENDIAN);
+        trie.writeTo(buffer);
+        buffer.flip();
+        DomainTrie readTrie = DomainTrie.read(buffer);
+
+        assertThat(isBlocked(readTrie, "ad.doubleclick.net"), is(true));
+        assertThat(isBlocked(readTrie, "good.doubleclick.net"), is(false));
+        assertThat(buffer.hasRemaining(), is(false));
+    }
+
+    private boolean isBlocked(DomainTrie trie, String name) {
+        int rule = trie.lookup(name);
+        return HostRule.isBlocking(rule);
+    }
+}
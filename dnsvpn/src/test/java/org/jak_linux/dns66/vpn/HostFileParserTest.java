@@ -3,10 +3,20 @@ package org.jak_linux.dns66.vpn;
 import org.junit.Test;
 
 import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 import static org.hamcrest.CoreMatchers.hasItem;
 import static org.hamcrest.CoreMatchers.hasItems;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
 import static org.hamcrest.MatcherAssert.assertThat;
 
 public class HostFileParserTest {
@@ -39,6 +49,20 @@ public class HostFileParserTest {
         assertThat(parseHosts(hostString), hasItems("somehost"));
     }
 
+    @Test
+    public void commentsCanFollowANameDirectly() {
+        String hostString = "somehost#comment\n0.0.0.0 someotherhost#comment";
+
+        assertThat(parseHosts(hostString), is((Set<String>) new HashSet<>(Arrays.asList("somehost", "someotherhost"))));
+    }
+
+    @Test
+    public void namesOutsideOfAsciiAreConvertedToAscii() {
+        byte[] hostFile = "0.0.0.0 B\u00fccher.example\nb\u00fccher.example\n0.0.0.0 b\u00fccher/example\n".getBytes(StandardCharsets.UTF_8);
+
+        assertThat(new HostFileParser().parse(new ByteArrayInputStream(hostFile)), is(Collections.singleton("xn--bcher-kva.example")));
+    }
+
     @Test
     public void hostsCanBeSeparatedByMultipleWhitespaceCharacters() {
         String hostString = "0.0.0.0\t \t\t somehost";
@@ -53,6 +77,171 @@ public class HostFileParserTest {
         assertThat(parseHosts(hostString), hasItems("somehost"));
     }
 
+    @Test
+    public void wildcardEntriesAreReportedAsDomains() {
+        String hostString = "*.somedomain\n.someotherdomain\n0.0.0.0 *.thirddomain\nsomehost";
+
+        assertThat(parseDomains(hostString), hasItems("somedomain", "someotherdomain", "thirddomain"));
+        assertThat(parseHosts(hostString), not(hasItem("somedomain")));
+    }
+
+    @Test
+    public void namesAreLowerCased() {
+        String hostString = "0.0.0.0 SomeHost\n*.SomeDomain";
+
+        assertThat(parseHosts(hostString), hasItem("somehost"));
+        assertThat(parseDomains(hostString), hasItem("somedomain"));
+    }
+
+    @Test
+    public void invalidLinesAreIgnored() {
+        String hostString = "10.0.0.1 somehost\n0.0.0.0 someotherhost extra\n# comment\n   \n0.0.0.0 validhost";
+
+        assertThat(parseHosts(hostString), is(Collections.singleton("validhost")));
+    }
+
+    @Test
+    public void linesCanSpanReads() {
+        String hostString = "0.0.0.0 somehost\r\n127.0.0.1 someotherhost # comment\nthirdhost";
+        InputStream inputStream = new ByteArrayInputStream(hostString.getBytes()) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                return super.read(b, off, Math.min(len, 3));
+            }
+        };
+
+        assertThat(new HostFileParser().parse(inputStream), is((Set<String>) new HashSet<>(Arrays.asList("somehost", "someotherhost", "thirdhost"))));
+    }
+
+    @Test
+    public void buffersCanBeParsed() {
+        ByteBuffer buffer = ByteBuffer.wrap("0.0.0.0 somehost\n0.0.0.0 h\u00f6st\n.somedomain\n*ads*.Example.*\n*.ad?.example.com\n".getBytes(StandardCharsets.UTF_8));
+        final List<String> names = new ArrayList<>();
+
+        new HostFileParser().parse(buffer, new HostFileParser.Listener() {
+            @Override
+            public void host(CharSequence host) {
+                names.add("host " + host);
+            }
+
+            @Override
+            public void domain(CharSequence domain, int modifiers) {
+                names.add("domain " + domain);
+            }
+
+            @Override
+            public void pattern(CharSequence pattern, int modifiers) {
+                names.add("pattern " + pattern);
+            }
+        });
+
+        assertThat(names, is(Arrays.asList("host somehost", "host xn--hst-sna", "domain somedomain", "pattern *ads*.example.*", "pattern *.ad?.example.com")));
+        assertThat(buffer.position(), is(0));
+    }
+
+    @Test
+    public void adblockRulesAreParsed() {
+        String list = "[Adblock Plus 2.0]\n" +
+                "! Title: Some list # with a hash\n" +
+                "||ads.example.com^\n" +
+                "||Tracker.Example.org\n" +
+                "@@||cdn.ads.example.com^\n" +
+                "||metrics.example.net^$important\n" +
+                "@@||pixel.example.net^|$important\n" +
+                "||ads*.example.info^\n" +
+                "||*.ads.example.info^\n";
+
+        assertThat(parseRules(list), is(Arrays.asList(
+                "domain ads.example.com 0",
+                "domain tracker.example.org 0",
+                "domain cdn.ads.example.com " + HostRule.EXCEPTION,
+                "domain metrics.example.net " + HostRule.IMPORTANT,
+                "domain pixel.example.net " + (HostRule.EXCEPTION | HostRule.IMPORTANT),
+                "pattern ads*.example.info 0",
+                "pattern *.ads*.example.info 0",
+                "pattern *.ads.example.info 0")));
+    }
+
+    @Test
+    public void unsupportedAdblockRulesAreIgnored() {
+        String list = "! Comment\n" +
+                "||ads.example.com^$third-party\n" +
+                "||ads.example.com/banner.gif\n" +
+                "||ads.example.com^*.js\n" +
+                "|https://ads.example.com\n" +
+                "@@|https://ads.example.com\n" +
+                "/banner[0-9]+/\n" +
+                "||^\n" +
+                "||.example.com^\n" +
+                "example.com##.banner\n" +
+                "example.com#@#.banner\n" +
+                "##.banner\n" +
+                "ads.example.com/banner.gif\n" +
+                "&adtype=banner\n";
+
+        assertThat(parseRules(list), is(Collections.<String>emptyList()));
+    }
+
+    @Test
+    public void hostFilesAreNotParsedAsAdblockLists() {
+        assertThat(parseRules("somehost # A comment\n0.0.0.0 someotherhost\n||ads.example.com^"), is(Arrays.asList(
+                "host somehost", "host someotherhost", "domain ads.example.com 0")));
+    }
+
+    @Test
+    public void strayAdblockLinesDoNotChangeTheRestOfTheFile() {
+        String hostString = "0.0.0.0 somehost\n" +
+                "! not a comment in host files\n" +
+                "[section]\n" +
+                "||ads.example.com^\n" +
+                "someotherhost # A comment\n" +
+                "# A commented line\n" +
+                "0.0.0.0 thirdhost#comment\n";
+
+        assertThat(parseRules(hostString), is(Arrays.asList(
+                "host somehost", "domain ads.example.com 0", "host someotherhost", "host thirdhost")));
+    }
+
+    private Set<String> parseDomains(String hostString) {
+        final Set<String> domains = new HashSet<>();
+        new HostFileParser().parse(new ByteArrayInputStream(hostString.getBytes()), new HostFileParser.Listener() {
+            @Override
+            public void host(CharSequence host) {
+            }
+
+            @Override
+            public void domain(CharSequence domain, int modifiers) {
+                domains.add(domain.toString());
+            }
+
+            @Override
+            public void pattern(CharSequence pattern, int modifiers) {
+            }
+        });
+        return domains;
+    }
+
+    private List<String> parseRules(String hostString) {
+        final List<String> rules = new ArrayList<>();
+        new HostFileParser().parse(new ByteArrayInputStream(hostString.getBytes()), new HostFileParser.Listener() {
+            @Override
+            public void host(CharSequence host) {
+                rules.add("host " + host);
+            }
+
+            @Override
+            public void domain(CharSequence domain, int modifiers) {
+                rules.add("domain " + domain + " " + modifiers);
+            }
+
+            @Override
+            public void pattern(CharSequence pattern, int modifiers) {
+                rules.add("pattern " + pattern + " " + modifiers);
+            }
+        });
+        return rules;
+    }
+
     private Set<String> parseHosts(String hostString) {
         return new HostFileParser().parse(new ByteArrayInputStream(hostString.getBytes()));
     }
@@ -0,0 +1,72 @@
+package org.jak_linux.dns66.vpn;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compares reading a host list stored raw with reading it stored gzip compressed: the number
+ * of bytes read from storage, and the parse throughput in bytes of the uncompressed list per
+ * second. Run it with the test classpath; it is not run as part of the tests.
+ * <p>
+ * Arguments: [hosts]
+ */
+public class HostFileStorageBenchmark {
+    private static final int ROUNDS = 5;
+    private static final String[] WORDS = {"ad", "ads", "track", "tracker", "stats", "metrics",
+            "banner", "click", "pixel", "media", "cdn", "static", "analytics", "counter", "img"};
+    private static final String[] SUFFIXES = {"com", "net", "org", "de", "ru", "io", "info"};
+
+    public static void main(String[] args) throws Exception {
+        int hosts = args.length > 0 ? Integer.parseInt(args[0]) : 500000;
+
+        File raw = File.createTempFile("hosts", "");
+        File compressed = File.createTempFile("hosts", ".gz");
+        try {
+            writeHostFile(new FileOutputStream(raw), hosts);
+            writeHostFile(new GZIPOutputStream(new FileOutputStream(compressed)), hosts);
+
+            System.out.println("storage\tbytes read\tbest (ms)\tMB/s");
+            report("raw", raw, raw.length());
+            report("gzip", compressed, raw.length());
+        } finally {
+            raw.delete();
+            compressed.delete();
+        }
+    }
+
+    private static void report(String name, File file, long uncompressedLength) throws IOException {
+        long best = Long.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = System.nanoTime();
+            new HostListCompiler.FileSource(0, true, file).load(new HostFileParser());
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        double megabytesPerSecond = uncompressedLength / (best / 1e9) / (1024 * 1024);
+        System.out.println(name + "\t" + file.length() + "\t" + best / 1000000 + "\t" + String.format("%.1f", megabytesPerSecond));
+    }
+
+    private static void writeHostFile(OutputStream outputStream, int hosts) throws IOException {
+        // The same seed for both files, so that they hold the same list
+        Random random = new Random(42);
+        try (Writer writer = new OutputStreamWriter(outputStream, "UTF-8")) {
+            writer.write("# Generated host list\n");
+            for (int i = 0; i < hosts; i++) {
+                writer.write("0.0.0.0 ");
+                writer.write(WORDS[random.nextInt(WORDS.length)]);
+                writer.write(Integer.toString(random.nextInt(1000)));
+                writer.write('.');
+                String label = Long.toString(random.nextLong() & Long.MAX_VALUE, 36);
+                writer.write(label, 0, Math.min(label.length(), 4 + random.nextInt(6)));
+                writer.write('.');
+                writer.write(SUFFIXES[random.nextInt(SUFFIXES.length)]);
+                writer.write('\n');
+            }
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package org.jak_linux.dns66.vpn;
+
+import java.io.File;
+import java.util.Random;
+
+/**
+ * Measures looking names up in a mapped {@link HostIndex}, with and without the Bloom filter in
+ * front of the host table, for indexes holding only hosts, hosts and domain rules, and hosts,
+ * domain rules and patterns; nanoseconds per lookup. Most queried names are not blocked, as on
+ * a device. Run it with the test classpath; it is not run as part of the tests.
+ * <p>
+ * Arguments: [hosts] [lookups per round]
+ */
+public class HostIndexBenchmark {
+    private static final int ROUNDS = 5;
+    /* Share of looked up names that are in the table */
+    private static final double BLOCKED_SHARE = 0.05;
+    private static final String[] PATTERNS = {"ad*.doubleclick.*", "*.adserver.*", "track?.*", "*-ads.*",
+            "pixel*.*", "*.metrics.*", "banner*.*", "*.stats?.*"};
+    /* Keeps the results alive */
+    private static volatile int sink;
+
+    public static void main(String[] args) throws Exception {
+        int hosts = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int lookups = args.length > 1 ? Integer.parseInt(args[1]) : 1000000;
+
+        Random random = new Random(42);
+        String[] names = new String[65536];
+        for (int i = 0; i < names.length; i++) {
+            if (random.nextDouble() < BLOCKED_SHARE)
+                names[i] = "host" + random.nextInt(hosts) + ".example.com";
+            else
+                names[i] = "www.site" + random.nextInt(1000000) + ".example.org";
+        }
+
+        DomainRuleMap rules = new DomainRuleMap();
+        for (int i = 0; i < hosts; i++)
+            rules.put(DomainHashSet.fingerprint("host" + i + ".example.com"), HostRule.encode(true, 0));
+        DomainTrie domains = new DomainTrie();
+        for (int i = 0; i < hosts / 10; i++)
+            domains.addDomain("tracker" + i + ".example.net", true, 1);
+        PatternMatcher patterns = new PatternMatcher();
+        for (String pattern : PATTERNS)
+            patterns.add(pattern, HostRule.encode(true, 2));
+
+        System.out.println("index\tns/lookup without filter\tns/lookup with filter");
+        report("hosts", new DomainTrie(), new PatternMatcher(), rules, names, lookups);
+        report("hosts, domains", domains, new PatternMatcher(), rules, names, lookups);
+        report("hosts, domains, patterns", domains, patterns, rules, names, lookups);
+    }
+
+    private static void report(String name, DomainTrie domains, PatternMatcher patterns, DomainRuleMap rules,
+                               String[] names, int lookups) throws Exception {
+        File file = File.createTempFile("index", "");
+        try {
+            HostIndex.write(file, 1, rules, domains, patterns, 0);
+            long unfiltered = measure(HostIndex.open(file), names, lookups);
+            HostIndex.write(file, 1, rules, domains, patterns);
+            long filtered = measure(HostIndex.open(file), names, lookups);
+            System.out.println(name + "\t" + unfiltered + "\t" + filtered);
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static long measure(HostIndex index, String[] names, int lookups) {
+        long best = Long.MAX_VALUE;
+        int check = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < lookups; i++)
+                check += index.lookup(names[i & (names.length - 1)]);
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        sink = check;
+        return best / lookups;
+    }
+}
@@ -0,0 +1,213 @@
+package org.jak_linux.dns66.vpn;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class HostIndexTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void writtenHostsCanBeFoundInTheMappedIndex() throws IOException {
+        HostIndex index = writeAndOpen(Arrays.asList("somehost", "someotherhost"));
+
+        assertThat(index.contains("somehost"), is(true));
+        assertThat(index.contains("someotherhost"), is(true));
+        assertThat(index.contains("unknownhost"), is(false));
+    }
+
+    @Test
+    public void lookupsAreCaseInsensitive() throws IOException {
+        HostIndex index = writeAndOpen(Collections.singletonList("somehost"));
+
+        assertThat(index.contains("SomeHost"), is(true));
+    }
+
+    @Test
+    public void manyHostsCanBeStored() throws IOException {
+        List<String> hosts = new ArrayList<>();
+        for (int i = 0; i < 10000; i++)
+            hosts.add("host" + i + ".example.com");
+
+        HostIndex index = writeAndOpen(hosts);
+
+        assertThat(index.size(), is(10000));
+        for (String host : hosts)
+            assertThat(index.contains(host), is(true));
+        assertThat(index.contains("host10000.example.com"), is(false));
+    }
+
+    @Test
+    public void aFilterSkipsTheTableForAbsentHosts() throws IOException {
+        HostIndex index = writeAndOpen(Arrays.asList("somehost", "someotherhost"));
+        BloomFilter filter = index.getFilter();
+
+        assertThat(index.contains("somehost"), is(true));
+        assertThat(index.contains("unknownhost"), is(false));
+        assertThat(filter.getPositives(), is(1L + filter.getFalsePositives()));
+    }
+
+    @Test
+    public void indexesCanBeWrittenWithoutAFilter() throws IOException {
+        DomainRuleMap rules = new DomainRuleMap();
+        rules.put(DomainHashSet.fingerprint("somehost"), HostRule.encode(true, 0));
+        File file = folder.newFile();
+        HostIndex.write(file, 1, rules, new DomainTrie(), new PatternMatcher(), 0);
+        HostIndex index = HostIndex.open(file);
+
+        assertThat(index.getFilter(), is(nullValue()));
+        assertThat(index.contains("somehost"), is(true));
+        assertThat(index.contains("unknownhost"), is(false));
+    }
+
+    @Test
+    public void duplicatesAnswerLikeTheOriginal() throws IOException {
+        DomainRuleMap rules = new DomainRuleMap();
+        rules.put(DomainHashSet.fingerprint("somehost"), HostRule.encode(true, 0));
+        PatternMatcher patterns = new PatternMatcher();
+        patterns.add("*ads*", HostRule.encode(true, 1));
+        File file = folder.newFile();
+        HostIndex.write(file, 1, rules, new DomainTrie(), patterns);
+        HostIndex index = HostIndex.open(file);
+        BloomFilter filter = index.getFilter();
+
+        HostIndex duplicate = index.duplicate();
+        assertThat(duplicate.contains("somehost"), is(true));
+        assertThat(duplicate.contains("myads.example.com"), is(true));
+        assertThat(duplicate.contains("unknownhost"), is(false));
+        assertThat(duplicate.patternCount(), is(1));
+        // The bits are shared, and the counts of both are added up.
+        assertThat(filter.getPositives() + filter.getNegatives(), is(3L));
+        index.contains("somehost");
+        assertThat(duplicate.getFilter().getPositives() + duplicate.getFilter().getNegatives(), is(4L));
+    }
+
+    @Test
+    public void theFilterCoversDomainRules() throws IOException {
+        DomainTrie trie = new DomainTrie();
+        trie.addDomain("example.com", true, 0);
+        trie.addHost("www.example.org", true, 0);
+        HostIndex index = writeAndOpen(Collections.singletonList("somehost"), trie);
+        BloomFilter filter = index.getFilter();
+
+        assertThat(index.contains("ads.tracker.example.com"), is(true));
+        assertThat(index.contains("www.example.org"), is(true));
+        assertThat(index.contains("www.example.net"), is(false));
+        assertThat(index.contains("sub.www.example.org"), is(false));
+        // One answer per lookup, however many parent domains were tested
+        assertThat(filter.getPositives() + filter.getNegatives(), is(4L));
+        assertThat(filter.getPositives() - filter.getFalsePositives(), is(2L));
+    }
+
+    @Test
+    public void theStampIsPreserved() throws IOException {
+        File file = folder.newFile();
+        HostIndex.write(file, 42, new DomainRuleMap(), new DomainTrie(), new PatternMatcher());
+
+        assertThat(HostIndex.open(file).getStamp(), is(42L));
+    }
+
+    @Test
+    public void theEmptyIndexContainsNothing() {
+        assertThat(HostIndex.empty().contains("somehost"), is(false));
+    }
+
+    @Test(expected = IOException.class)
+    public void invalidFilesAreRejected() throws IOException {
+        HostIndex.open(folder.newFile());
+    }
+
+    @Test
+    public void domainRulesAreStoredInTheIndex() throws IOException {
+        DomainTrie trie = new DomainTrie();
+        trie.addDomain("example.com", true, 0);
+
+        HostIndex index = writeAndOpen(Collections.<String>emptyList(), trie);
+
+        assertThat(index.contains("example.com"), is(true));
+        assertThat(index.contains("ad.example.com"), is(true));
+        assertThat(index.contains("example.org"), is(false));
+    }
+
+    @Test
+    public void rulesFromLaterSourcesWin() throws IOException {
+        DomainTrie trie = new DomainTrie();
+        trie.addDomain("example.com", false, 1);
+
+        HostIndex index = writeAndOpen(Arrays.asList("ad.example.com", "ad.example.org"), trie);
+
+        assertThat(index.contains("ad.example.com"), is(false));
+        assertThat(index.contains("ad.example.org"), is(true));
+
+        DomainRuleMap rules = new DomainRuleMap();
+        rules.put(DomainHashSet.fingerprint("ad.example.com"), HostRule.encode(true, 2));
+        File file = folder.newFile();
+        HostIndex.write(file, 1, rules, trie, new PatternMatcher());
+
+        assertThat(HostIndex.open(file).contains("ad.example.com"), is(true));
+    }
+
+    @Test
+    public void patternsAreMatched() throws IOException {
+        DomainRuleMap rules = new DomainRuleMap();
+        rules.put(DomainHashSet.fingerprint("ads.example.com"), HostRule.encode(false, 1));
+        PatternMatcher patterns = new PatternMatcher();
+        patterns.add("*ads*.example.*", HostRule.encode(true, 0));
+
+        File file = folder.newFile();
+        HostIndex.write(file, 1, rules, new DomainTrie(), patterns);
+        HostIndex index = HostIndex.open(file);
+
+        assertThat(index.patternCount(), is(1));
+        assertThat(index.contains("myads.example.org"), is(true));
+        assertThat(index.contains("ads.example.com"), is(false));
+    }
+
+    @Test
+    public void theDecidingSourceIsRecorded() throws IOException {
+        DomainRuleMap rules = new DomainRuleMap();
+        rules.put(DomainHashSet.fingerprint("somehost"), HostRule.encode(true, 3));
+        DomainTrie trie = new DomainTrie();
+        trie.addDomain("somedomain", true, 1);
+        trie.addDomain("sub.somedomain", false, 5);
+        PatternMatcher patterns = new PatternMatcher();
+        patterns.add("*ads*", HostRule.encode(true, 7));
+
+        File file = folder.newFile();
+        HostIndex.write(file, 1, rules, trie, patterns);
+        HostIndex index = HostIndex.open(file);
+
+        assertThat(HostRule.sourceOf(index.lookup("somehost")), is(3));
+        assertThat(HostRule.sourceOf(index.lookup("www.somedomain")), is(1));
+        assertThat(HostRule.sourceOf(index.lookup("www.sub.somedomain")), is(5));
+        assertThat(HostRule.sourceOf(index.lookup("ads.sub.somedomain")), is(7));
+        assertThat(HostRule.sourceOf(index.lookup("otherhost")), is(-1));
+    }
+
+    private HostIndex writeAndOpen(List<String> hosts) throws IOException {
+        return writeAndOpen(hosts, new DomainTrie());
+    }
+
+    private HostIndex writeAndOpen(List<String> hosts, DomainTrie trie) throws IOException {
+        DomainRuleMap rules = new DomainRuleMap();
+        for (String host : hosts)
+            rules.put(DomainHashSet.fingerprint(host), HostRule.encode(true, 0));
+
+        File file = folder.newFile();
+        HostIndex.write(file, 1, rules, trie, new PatternMatcher());
+        return HostIndex.open(file);
+    }
+}
@@ -0,0 +1,70 @@
+package org.jak_linux.dns66.vpn;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures how long compiling host lists takes, depending on the number of lists and the
+ * number of threads. Run it with the test classpath; it is not run as part of the tests.
+ * <p>
+ * Arguments: [hosts per list] [maximum number of lists]
+ */
+public class HostListCompilerBenchmark {
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) throws Exception {
+        int hostsPerList = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int maxLists = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        int processors = Runtime.getRuntime().availableProcessors();
+
+        File dir = createTempDir();
+        List<File> files = new ArrayList<>();
+        for (int i = 0; i < maxLists; i++)
+            files.add(writeHostFile(dir, i, hostsPerList));
+
+        System.out.println("lists\thosts\t1 thread (ms)\t" + processors + " threads (ms)");
+        for (int lists = 1; lists <= maxLists; lists *= 2) {
+            List<HostListCompiler.Source> sources = new ArrayList<>();
+            for (int i = 0; i < lists; i++)
+                sources.add(new HostListCompiler.FileSource(i, true, files.get(i)));
+
+            System.out.println(lists + "\t" + lists * hostsPerList + "\t" + time(sources, 1) + "\t" + time(sources, processors));
+        }
+
+        for (File file : files)
+            file.delete();
+        dir.delete();
+    }
+
+    private static long time(List<HostListCompiler.Source> sources, int threads) throws InterruptedException {
+        long best = Long.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = System.nanoTime();
+            new HostListCompiler(threads).compile(sources);
+            best = Math.min(best, (System.nanoTime() - start) / 1000000);
+        }
+        return best;
+    }
+
+    private static File createTempDir() throws IOException {
+        File dir = File.createTempFile("hosts", "");
+        if (!dir.delete() || !dir.mkdir())
+            throw new IOException("Cannot create " + dir);
+        return dir;
+    }
+
+    private static File writeHostFile(File dir, int list, int hosts) throws IOException {
+        File file = new File(dir, "list" + list);
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8")) {
+            writer.write("# Generated host list " + list + "\n");
+            for (int i = 0; i < hosts; i++)
+                writer.write("0.0.0.0 host" + i + ".list" + list + ".example.com\n");
+        }
+        return file;
+    }
+}
@@ -0,0 +1,153 @@
+package org.jak_linux.dns66.vpn;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class HostListCompilerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void hostsOfDenyListsAreBlocked() throws Exception {
+        HostListCompiler compiler = compile(new HostListCompiler.FileSource(0, true, hostFile("somehost\n*.somedomain")));
+
+        assertThat(isBlocked(compiler, "somehost"), is(true));
+        assertThat(isBlocked(compiler, "sub.somedomain"), is(true));
+        assertThat(isBlocked(compiler, "someotherhost"), is(false));
+    }
+
+    @Test
+    public void compressedFilesAreRead() throws Exception {
+        File file = folder.newFile();
+        try (GZIPOutputStream outputStream = new GZIPOutputStream(new FileOutputStream(file))) {
+            outputStream.write("somehost\n*.somedomain".getBytes("UTF-8"));
+        }
+        HostListCompiler compiler = compile(new HostListCompiler.FileSource(0, true, file));
+
+        assertThat(isBlocked(compiler, "somehost"), is(true));
+        assertThat(isBlocked(compiler, "sub.somedomain"), is(true));
+        assertThat(isBlocked(compiler, "someotherhost"), is(false));
+    }
+
+    @Test
+    public void internationalizedNamesBlockTheirAsciiForm() throws Exception {
+        HostListCompiler compiler = compile(new HostListCompiler.FileSource(0, true,
+                hostFile("0.0.0.0 h\u00f6st.example\n*.B\u00fccher.de\n*h\u00f6st*\n")));
+
+        assertThat(isBlocked(compiler, "xn--hst-sna.example"), is(true));
+        assertThat(isBlocked(compiler, "www.xn--bcher-kva.de"), is(true));
+        assertThat(isBlocked(compiler, "h\u00f6st.example"), is(false));
+        assertThat(compiler.getPatterns().size(), is(0));
+    }
+
+    @Test
+    public void laterListsOverrideEarlierLists() throws Exception {
+        HostListCompiler compiler = compile(
+                new HostListCompiler.FileSource(0, true, hostFile("somehost\nsomeotherhost\n.somedomain")),
+                new HostListCompiler.FileSource(1, false, hostFile("somehost\nad.somedomain")),
+                new HostListCompiler.LineSource(2, true, "ad.somedomain"),
+                new HostListCompiler.LineSource(3, false, "*.somedomain"));
+
+        assertThat(isBlocked(compiler, "somehost"), is(false));
+        assertThat(isBlocked(compiler, "someotherhost"), is(true));
+        assertThat(isBlocked(compiler, "ad.somedomain"), is(false));
+        assertThat(isBlocked(compiler, "img.somedomain"), is(false));
+    }
+
+    @Test
+    public void adblockExceptionsOverrideTheRulesOfTheirList() throws Exception {
+        HostListCompiler compiler = compile(
+                new HostListCompiler.FileSource(0, true, hostFile("||example.com^\n" +
+                        "@@||cdn.example.com^\n" +
+                        "||ads.cdn.example.com^$important\n" +
+                        "@@||ok.ads.cdn.example.com^$important\n" +
+                        "||track*.example.org^\n" +
+                        "@@||tracker.example.org^")),
+                new HostListCompiler.LineSource(1, true, "*.img.cdn.example.com"));
+
+        assertThat(isBlocked(compiler, "www.example.com"), is(true));
+        assertThat(isBlocked(compiler, "cdn.example.com"), is(false));
+        assertThat(isBlocked(compiler, "ads.cdn.example.com"), is(true));
+        assertThat(isBlocked(compiler, "ok.ads.cdn.example.com"), is(false));
+        assertThat(isBlocked(compiler, "img.cdn.example.com"), is(true));
+        assertThat(isBlocked(compiler, "tracking.example.org"), is(true));
+        assertThat(isBlocked(compiler, "www.tracking.example.org"), is(true));
+        assertThat(isBlocked(compiler, "tracker.example.org"), is(false));
+    }
+
+    @Test
+    public void theResultDoesNotDependOnTheNumberOfThreads() throws Exception {
+        List<HostListCompiler.Source> sources = new ArrayList<>();
+        for (int i = 0; i < 8; i++)
+            sources.add(new HostListCompiler.FileSource(i, i % 2 == 0, hostFile("host" + i + "\nsharedhost")));
+
+        for (int threads = 1; threads <= 8; threads *= 2) {
+            HostListCompiler compiler = new HostListCompiler(threads);
+            compiler.compile(sources);
+
+            assertThat(isBlocked(compiler, "sharedhost"), is(false));
+            assertThat(isBlocked(compiler, "host6"), is(true));
+            assertThat(isBlocked(compiler, "host7"), is(false));
+        }
+    }
+
+    @Test
+    public void allowedHostsAreOnlyKeptIfTheyCanOverrideOtherRules() throws Exception {
+        HostListCompiler.Source deny = new HostListCompiler.FileSource(0, true, hostFile("somehost\nsomeotherhost"));
+        HostListCompiler.Source allow = new HostListCompiler.FileSource(1, false, hostFile("somehost\nthirdhost"));
+
+        HostListCompiler compiler = compile(deny, allow);
+        assertThat(compiler.getHosts().size(), is(1));
+        assertThat(isBlocked(compiler, "someotherhost"), is(true));
+
+        compiler = compile(deny, allow, new HostListCompiler.LineSource(2, true, "*.nothing"));
+        assertThat(compiler.getHosts().size(), is(3));
+        assertThat(isBlocked(compiler, "somehost"), is(false));
+    }
+
+    @Test
+    public void unreadableListsAreSkippedAndReported() throws Exception {
+        HostListCompiler.Source missing = new HostListCompiler.FileSource(0, true, new File(folder.getRoot(), "missing"));
+        HostListCompiler compiler = compile(missing, new HostListCompiler.LineSource(1, true, "somehost"));
+
+        assertThat(isBlocked(compiler, "somehost"), is(true));
+        assertThat(compiler.getFailures().keySet(), is(Collections.singleton(missing)));
+        assertThat(compiler.getFailures().get(missing), is(instanceOf(FileNotFoundException.class)));
+    }
+
+    private HostListCompiler compile(HostListCompiler.Source... sources) throws InterruptedException {
+        HostListCompiler compiler = new HostListCompiler(2);
+        compiler.compile(Arrays.asList(sources));
+        return compiler;
+    }
+
+    private boolean isBlocked(HostListCompiler compiler, String host) {
+        int rule = Math.max(compiler.getTrie().lookup(host), compiler.getHosts().get(DomainHashSet.fingerprint(host)));
+        rule = Math.max(rule, compiler.getPatterns().match(host));
+        return HostRule.isBlocking(rule);
+    }
+
+    private File hostFile(String content) throws IOException {
+        File file = folder.newFile();
+        try (FileOutputStream outputStream = new FileOutputStream(file)) {
+            outputStream.write(content.getBytes("UTF-8"));
+        }
+        return file;
+    }
+}
@@ -0,0 +1,284 @@
+package org.jak_linux.dns66.vpn;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class HostListDownloaderTest {
+    private static final String HOSTS = "# A host list\n0.0.0.0 somehost\n127.0.0.1 someotherhost\n*.somedomain\n";
+    private static final String LAST_MODIFIED = "Wed, 21 Oct 2015 07:28:00 GMT";
+    private static final String ENTITY_TAG = "\"33a64df5\"";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private HttpServer server;
+    private volatile int responseCode;
+    private volatile String lastIfModifiedSince;
+    private volatile String lastIfNoneMatch;
+    private volatile String contentEncoding;
+    private volatile boolean sendValidators;
+    /* Whether deflate encoded responses lack the zlib wrapper */
+    private volatile boolean rawDeflate;
+
+    @Before
+    public void setUp() throws IOException {
+        responseCode = 200;
+        contentEncoding = null;
+        sendValidators = true;
+        rawDeflate = false;
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/hosts", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                lastIfModifiedSince = exchange.getRequestHeaders().getFirst("If-Modified-Since");
+                lastIfNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+                if (sendValidators) {
+                    exchange.getResponseHeaders().set("Last-Modified", LAST_MODIFIED);
+                    exchange.getResponseHeaders().set("ETag", ENTITY_TAG);
+                }
+                byte[] body = encode(HOSTS.getBytes(StandardCharsets.US_ASCII), contentEncoding, rawDeflate);
+                if (contentEncoding != null)
+                    exchange.getResponseHeaders().set("Content-Encoding", contentEncoding);
+                if (responseCode == 200) {
+                    exchange.sendResponseHeaders(200, body.length);
+                    try (OutputStream outputStream = exchange.getResponseBody()) {
+                        outputStream.write(body);
+                    }
+                } else {
+                    exchange.sendResponseHeaders(responseCode, -1);
+                    exchange.close();
+                }
+            }
+        });
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    @Test
+    public void downloadedListsAreCompiled() throws IOException {
+        File segmentFile = new File(folder.getRoot(), "list.seg");
+
+        assertThat(new HostListDownloader().download(url(), segmentFile, null), is(true));
+
+        HostSegment segment = HostSegment.read(segmentFile);
+        assertThat(segment.getHosts().remaining(), is(2));
+        assertThat(segment.getDomains(), is(Arrays.asList("somedomain")));
+        assertThat(folder.getRoot().list(), is(new String[]{"list.seg"}));
+    }
+
+    @Test
+    public void verifiedListsCompileTheSame() throws IOException {
+        File segmentFile = new File(folder.getRoot(), "list.seg");
+        HostListDownloader downloader = new HostListDownloader(true);
+
+        assertThat(downloader.download(url(), segmentFile, null), is(true));
+
+        assertThat(HostSegment.read(segmentFile).getHosts().remaining(), is(2));
+        assertThat(downloader.getCollisions(), is(0));
+    }
+
+    @Test
+    public void rawFilesAreKeptIfRequested() throws IOException {
+        File segmentFile = new File(folder.getRoot(), "list.seg");
+        File rawFile = new File(folder.getRoot(), "list");
+
+        new HostListDownloader().download(url(), segmentFile, rawFile);
+
+        assertThat(readCompressed(rawFile), is(HOSTS));
+        assertThat(new File(folder.getRoot(), "list.tmp").exists(), is(false));
+    }
+
+    @Test
+    public void encodedResponsesAreDecoded() throws IOException {
+        for (String encoding : new String[]{"gzip", "deflate"}) {
+            contentEncoding = encoding;
+            File segmentFile = new File(folder.getRoot(), encoding + ".seg");
+            File rawFile = new File(folder.getRoot(), encoding);
+
+            new HostListDownloader().download(url(), segmentFile, rawFile);
+
+            HostSegment segment = HostSegment.read(segmentFile);
+            assertThat(segment.getHosts().remaining(), is(2));
+            assertThat(segment.getDomains(), is(Arrays.asList("somedomain")));
+            assertThat(readCompressed(rawFile), is(HOSTS));
+        }
+    }
+
+    @Test
+    public void rawDeflateResponsesAreDecoded() throws IOException {
+        contentEncoding = "deflate";
+        rawDeflate = true;
+        File segmentFile = new File(folder.getRoot(), "list.seg");
+        File rawFile = new File(folder.getRoot(), "list");
+
+        new HostListDownloader().download(url(), segmentFile, rawFile);
+
+        HostSegment segment = HostSegment.read(segmentFile);
+        assertThat(segment.getHosts().remaining(), is(2));
+        assertThat(segment.getDomains(), is(Arrays.asList("somedomain")));
+        assertThat(readCompressed(rawFile), is(HOSTS));
+    }
+
+    @Test
+    public void gzipResponsesAreStoredAsReceived() throws IOException {
+        contentEncoding = "gzip";
+        File rawFile = new File(folder.getRoot(), "list");
+
+        new HostListDownloader().download(url(), new File(folder.getRoot(), "list.seg"), rawFile);
+
+        assertThat(Files.readAllBytes(rawFile.toPath()), is(encode(HOSTS.getBytes(StandardCharsets.US_ASCII), "gzip", false)));
+    }
+
+    @Test
+    public void unsupportedEncodingsAreRejected() throws IOException {
+        contentEncoding = "br";
+        File segmentFile = new File(folder.getRoot(), "list.seg");
+        try {
+            new HostListDownloader().download(url(), segmentFile, null);
+            throw new AssertionError("Expected an IOException");
+        } catch (IOException e) {
+            // expected
+        }
+
+        assertThat(segmentFile.exists(), is(false));
+    }
+
+    @Test
+    public void unmodifiedListsAreNotDownloadedAgain() throws IOException {
+        File segmentFile = new File(folder.getRoot(), "list.seg");
+        new HostListDownloader().download(url(), segmentFile, null);
+        long length = segmentFile.length();
+
+        responseCode = 304;
+        assertThat(new HostListDownloader().download(url(), segmentFile, null), is(false));
+        // The validators of the server are sent back, not the time the segment was written.
+        assertThat(lastIfModifiedSince, is(LAST_MODIFIED));
+        assertThat(lastIfNoneMatch, is(ENTITY_TAG));
+        assertThat(segmentFile.length(), is(length));
+    }
+
+    @Test
+    public void listsWithoutValidatorsAreDownloadedAgain() throws IOException {
+        File segmentFile = new File(folder.getRoot(), "list.seg");
+        sendValidators = false;
+        new HostListDownloader().download(url(), segmentFile, null);
+
+        assertThat(new HostListDownloader().download(url(), segmentFile, null), is(true));
+        assertThat(lastIfModifiedSince, is(nullValue()));
+        assertThat(lastIfNoneMatch, is(nullValue()));
+    }
+
+    @Test
+    public void segmentsOfOtherVersionsAreDownloadedAgain() throws IOException {
+        File segmentFile = new File(folder.getRoot(), "list.seg");
+        new HostListDownloader().download(url(), segmentFile, null);
+        HostSegmentTest.setVersion(segmentFile, 2);
+
+        assertThat(new HostListDownloader().download(url(), segmentFile, null), is(true));
+        assertThat(lastIfModifiedSince, is(nullValue()));
+        assertThat(HostSegment.isCurrent(segmentFile), is(true));
+    }
+
+    @Test
+    public void failedDownloadsKeepThePreviousList() throws IOException {
+        File segmentFile = new File(folder.getRoot(), "list.seg");
+        new HostListDownloader().download(url(), segmentFile, null);
+        byte[] previous = Files.readAllBytes(segmentFile.toPath());
+
+        responseCode = 500;
+        try {
+            new HostListDownloader().download(url(), segmentFile, null);
+            throw new AssertionError("Expected an IOException");
+        } catch (IOException e) {
+            // expected
+        }
+
+        assertThat(Files.readAllBytes(segmentFile.toPath()), is(previous));
+    }
+
+    @Test
+    public void interruptedStreamsKeepThePreviousList() throws IOException {
+        File segmentFile = new File(folder.getRoot(), "list.seg");
+        File rawFile = new File(folder.getRoot(), "list");
+        new HostListDownloader().download(url(), segmentFile, rawFile);
+        byte[] previous = Files.readAllBytes(segmentFile.toPath());
+
+        try {
+            new HostListDownloader().download(new InputStream() {
+                private int count;
+
+                @Override
+                public int read() throws IOException {
+                    if (count++ < 10)
+                        return 'a';
+                    throw new IOException("Connection reset");
+                }
+            }, segmentFile, rawFile);
+            throw new AssertionError("Expected an IOException");
+        } catch (IOException e) {
+            // expected
+        }
+
+        assertThat(Files.readAllBytes(segmentFile.toPath()), is(previous));
+        assertThat(readCompressed(rawFile), is(HOSTS));
+        assertThat(new File(folder.getRoot(), "list.tmp").exists(), is(false));
+    }
+
+    private static byte[] encode(byte[] body, String encoding, boolean rawDeflate) throws IOException {
+        if (encoding == null || encoding.equals("br"))
+            return body;
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        try (OutputStream outputStream = encoding.equals("gzip") ? new GZIPOutputStream(byteArrayOutputStream)
+                : new DeflaterOutputStream(byteArrayOutputStream, new Deflater(Deflater.DEFAULT_COMPRESSION, rawDeflate))) {
+            outputStream.write(body);
+        }
+        return byteArrayOutputStream.toByteArray();
+    }
+
+    private static String readCompressed(File file) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        try (InputStream inputStream = new GZIPInputStream(new FileInputStream(file))) {
+            byte[] buffer = new byte[1024];
+            int read;
+            while ((read = inputStream.read(buffer)) != -1)
+                outputStream.write(buffer, 0, read);
+        }
+        return new String(outputStream.toByteArray(), StandardCharsets.US_ASCII);
+    }
+
+    private URL url() throws IOException {
+        return new URL("http", "127.0.0.1", server.getAddress().getPort(), "/hosts");
+    }
+}
@@ -0,0 +1,132 @@
+package org.jak_linux.dns66.vpn;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.LongBuffer;
+import java.util.Arrays;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class HostSegmentTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void hostsAreSortedAsUnsignedValues() {
+        HostSegment segment = build("0.0.0.0 somehost\nsomeotherhost\nthirdhost\nfourthhost\nsomehost");
+
+        LongBuffer hosts = segment.getHosts();
+        assertThat(hosts.remaining(), is(4));
+        for (int i = 1; i < hosts.limit(); i++)
+            assertThat(hosts.get(i - 1) + Long.MIN_VALUE < hosts.get(i) + Long.MIN_VALUE, is(true));
+    }
+
+    @Test
+    public void writtenSegmentsCanBeRead() throws IOException {
+        HostSegment segment = build("somehost\nsomeotherhost\n*.somedomain\n.someotherdomain");
+        File file = folder.newFile();
+
+        segment.write(file);
+        HostSegment read = HostSegment.read(file);
+
+        assertThat(read.getHosts(), is(segment.getHosts()));
+        assertThat(read.getDomains(), is(Arrays.asList("somedomain", "someotherdomain")));
+        assertThat(new File(file.getPath() + ".tmp").exists(), is(false));
+    }
+
+    @Test
+    public void largeSegmentsCanMoveTheirHostsOffTheHeap() throws IOException {
+        StringBuilder hostFile = new StringBuilder("*.somedomain\n");
+        for (int i = 0; i < 10000; i++)
+            hostFile.append("host").append(i).append('\n');
+        HostSegment segment = build(hostFile.toString());
+
+        HostSegment mapped = segment.mapHosts();
+
+        assertThat(mapped.getHosts().isDirect(), is(true));
+        assertThat(mapped.getHosts(), is(segment.getHosts()));
+        assertThat(mapped.getDomains(), is(segment.getDomains()));
+        assertThat(mapped.mapHosts(), is(mapped));
+        HostSegment small = build("somehost");
+        assertThat(small.mapHosts(), is(small));
+    }
+
+    @Test
+    public void validatorsAreStored() throws IOException {
+        File file = folder.newFile();
+        build("somehost").write(file, new HostSegment.Validators(1445412480000L, "\"33a64df5\""));
+
+        HostSegment.Validators validators = HostSegment.readValidators(file);
+        assertThat(validators.lastModified, is(1445412480000L));
+        assertThat(validators.entityTag, is("\"33a64df5\""));
+        assertThat(HostSegment.read(file).getValidators().entityTag, is("\"33a64df5\""));
+        assertThat(HostSegment.read(file).getDomains().size(), is(0));
+    }
+
+    @Test
+    public void modifiersAreStored() throws IOException {
+        HostSegment.Builder builder = new HostSegment.Builder();
+        new HostFileParser().parse(new ByteArrayInputStream("||somedomain^\n@@||sub.somedomain^\n||ads*.somedomain^$important".getBytes("UTF-8")), builder);
+        File file = folder.newFile();
+
+        builder.build().write(file);
+        HostSegment read = HostSegment.read(file);
+
+        assertThat(read.getDomains(), is(Arrays.asList("somedomain", "sub.somedomain")));
+        assertThat(read.getDomainModifiers(0), is(0));
+        assertThat(read.getDomainModifiers(1), is(HostRule.EXCEPTION));
+        assertThat(read.getPatterns(), is(Arrays.asList("ads*.somedomain", "*.ads*.somedomain")));
+        assertThat(read.getPatternModifiers(1), is(HostRule.IMPORTANT));
+    }
+
+    @Test(expected = IOException.class)
+    public void truncatedSegmentsAreRejected() throws IOException {
+        File file = folder.newFile();
+        build("somehost\nsomeotherhost").write(file);
+
+        try (FileOutputStream outputStream = new FileOutputStream(file, true)) {
+            outputStream.getChannel().truncate(file.length() - 4);
+        }
+
+        HostSegment.read(file);
+    }
+
+    @Test
+    public void segmentsOfOtherVersionsAreRejected() throws IOException {
+        File file = folder.newFile();
+        build("somehost").write(file);
+        assertThat(HostSegment.isCurrent(file), is(true));
+
+        setVersion(file, 2);
+
+        assertThat(HostSegment.isCurrent(file), is(false));
+        try {
+            HostSegment.read(file);
+            throw new AssertionError("Expected an IOException");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    static void setVersion(File file, int version) throws IOException {
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            randomAccessFile.seek(4);
+            randomAccessFile.writeInt(Integer.reverseBytes(version));
+        }
+    }
+
+    private HostSegment build(String hostString) {
+        HostSegment.Builder builder = new HostSegment.Builder();
+        new HostFileParser().parseLine(hostString, builder);
+        return builder.build();
+    }
+}
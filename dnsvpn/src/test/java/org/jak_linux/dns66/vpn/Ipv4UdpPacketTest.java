@@ -0,0 +1,215 @@
+package org.jak_linux.dns66.vpn;
+
+import org.junit.Test;
+import org.pcap4j.packet.IpV4Packet;
+import org.pcap4j.packet.IpV4Rfc791Tos;
+import org.pcap4j.packet.UdpPacket;
+import org.pcap4j.packet.UnknownPacket;
+import org.pcap4j.packet.namednumber.IpNumber;
+import org.pcap4j.packet.namednumber.IpVersion;
+import org.pcap4j.packet.namednumber.UdpPort;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class Ipv4UdpPacketTest {
+    private static final byte[] QUERY = {0x12, 0x34, 0x01, 0x00, 0, 1, 0, 0, 0, 0, 0, 0, 3, 'f', 'o', 'o', 0, 0, 1, 0, 1};
+
+    static byte[] buildPacket(String source, int sourcePort, String destination, int destinationPort, byte[] payload) throws Exception {
+        Inet4Address sourceAddress = (Inet4Address) InetAddress.getByName(source);
+        Inet4Address destinationAddress = (Inet4Address) InetAddress.getByName(destination);
+        return new IpV4Packet.Builder()
+                .version(IpVersion.IPV4)
+                .tos(IpV4Rfc791Tos.newInstance((byte) 0))
+                .identification((short) 4711)
+                .ttl((byte) 64)
+                .protocol(IpNumber.UDP)
+                .srcAddr(sourceAddress)
+                .dstAddr(destinationAddress)
+                .correctChecksumAtBuild(true)
+                .correctLengthAtBuild(true)
+                .payloadBuilder(new UdpPacket.Builder()
+                        .srcPort(UdpPort.getInstance((short) sourcePort))
+                        .dstPort(UdpPort.getInstance((short) destinationPort))
+                        .srcAddr(sourceAddress)
+                        .dstAddr(destinationAddress)
+                        .correctChecksumAtBuild(true)
+                        .correctLengthAtBuild(true)
+                        .payloadBuilder(new UnknownPacket.Builder().rawData(payload)))
+                .build()
+                .getRawData();
+    }
+
+    @Test
+    public void queriesAreParsed() throws Exception {
+        byte[] packet = buildPacket("10.0.0.2", 40000, "8.8.8.8", 53, QUERY);
+        Ipv4UdpPacket parsed = new Ipv4UdpPacket();
+
+        assertThat(parsed.parse(ByteBuffer.wrap(packet)), is(true));
+        assertThat(parsed.getSourceAddress(), is(0x0a000002));
+        assertThat(parsed.getDestinationAddress(), is(0x08080808));
+        assertThat(parsed.getDestinationInetAddress(), is(InetAddress.getByName("8.8.8.8")));
+        assertThat(parsed.getSourcePort(), is(40000));
+        assertThat(parsed.getDestinationPort(), is(53));
+        assertThat(Arrays.copyOfRange(packet, parsed.getPayloadOffset(), parsed.getPayloadOffset() + parsed.getPayloadLength()), is(QUERY));
+    }
+
+    @Test
+    public void responsesAreValidPackets() throws Exception {
+        byte[] response = new byte[]{0x12, 0x34, (byte) 0x81, (byte) 0x83, 0, 1, 0, 0, 0, 0, 0, 0, 3, 'f', 'o', 'o', 0, 0, 1, 0, 1, 7};
+        Ipv4UdpPacket parsed = new Ipv4UdpPacket();
+        parsed.parse(ByteBuffer.wrap(buildPacket("10.0.0.2", 40000, "8.8.8.8", 53, QUERY)));
+
+        ByteBuffer out = ByteBuffer.allocate(100);
+        out.position(10);
+        parsed.writeResponse(response, 0, response.length, out);
+        assertThat(out.position(), is(10 + Ipv4UdpPacket.HEADER_LENGTH + response.length));
+
+        byte[] expected = buildPacket("8.8.8.8", 53, "10.0.0.2", 40000, response);
+        assertThat(Arrays.copyOfRange(out.array(), 10, out.position()), is(expected));
+    }
+
+    @Test
+    public void responsesCanBeWrittenAroundTheirPayload() throws Exception {
+        Ipv4UdpPacket parsed = new Ipv4UdpPacket();
+        parsed.parse(ByteBuffer.wrap(buildPacket("10.0.0.2", 40000, "8.8.8.8", 53, QUERY)));
+        ByteBuffer out = ByteBuffer.allocate(100);
+        System.arraycopy(QUERY, 0, out.array(), Ipv4UdpPacket.HEADER_LENGTH, QUERY.length);
+
+        parsed.writeResponse(out.array(), Ipv4UdpPacket.HEADER_LENGTH, QUERY.length, out);
+
+        assertThat(Arrays.copyOfRange(out.array(), 0, out.position()), is(buildPacket("8.8.8.8", 53, "10.0.0.2", 40000, QUERY)));
+    }
+
+    @Test
+    public void responsesCanBeParsedAgain() throws Exception {
+        Ipv4UdpPacket parsed = new Ipv4UdpPacket();
+        parsed.parse(ByteBuffer.wrap(buildPacket("10.0.0.2", 40000, "8.8.8.8", 53, QUERY)));
+        ByteBuffer out = ByteBuffer.allocate(Ipv4UdpPacket.HEADER_LENGTH + QUERY.length);
+        parsed.writeResponse(QUERY, 0, QUERY.length, out);
+        out.flip();
+
+        Ipv4UdpPacket response = new Ipv4UdpPacket();
+        assertThat(response.parse(out), is(true));
+        assertThat(response.getSourceAddress(), is(0x08080808));
+        assertThat(response.getDestinationPort(), is(40000));
+        assertThat(response.getPayloadLength(), is(QUERY.length));
+    }
+
+    @Test
+    public void checksumsAreUpdatedForTheHeaderFieldsThatChange() throws Exception {
+        byte[] packet = buildPacket("10.0.0.2", 40000, "8.8.8.8", 53, QUERY);
+        // Another TTL, and the don't fragment flag
+        packet[8] = (byte) 200;
+        packet[6] = 0x40;
+        packet[10] = packet[11] = 0;
+        int checksum = Ipv4UdpPacket.finishChecksum(Ipv4UdpPacket.sum(ByteBuffer.wrap(packet), 0, 20, 0));
+        packet[10] = (byte) (checksum >> 8);
+        packet[11] = (byte) checksum;
+        byte[] response = {0x12, 0x34, (byte) 0x81, (byte) 0x83, 0, 1, 0, 0, 0, 0, 0, 0, 3, 'f', 'o', 'o', 0, 0, 1, 0, 1, 7};
+        Ipv4UdpPacket parsed = new Ipv4UdpPacket();
+        parsed.parse(ByteBuffer.wrap(packet));
+
+        ByteBuffer out = ByteBuffer.allocate(100);
+        parsed.writeResponse(response, 0, response.length, out);
+
+        assertThat(Arrays.copyOfRange(out.array(), 0, out.position()), is(buildPacket("8.8.8.8", 53, "10.0.0.2", 40000, response)));
+    }
+
+    @Test
+    public void responsesCanReuseTheRequestPayload() throws Exception {
+        Random random = new Random(1);
+        for (int i = 0; i < 200; i++) {
+            byte[] query = new byte[12 + random.nextInt(150)];
+            random.nextBytes(query);
+            int headLength = random.nextInt(13);
+            int keep = headLength + random.nextInt(query.length - headLength + 1);
+            byte[] head = new byte[headLength];
+            random.nextBytes(head);
+            byte[] tail = new byte[random.nextInt(40)];
+            random.nextBytes(tail);
+
+            byte[] response = new byte[keep + tail.length];
+            System.arraycopy(query, 0, response, 0, keep);
+            System.arraycopy(head, 0, response, 0, head.length);
+            System.arraycopy(tail, 0, response, keep, tail.length);
+            Ipv4UdpPacket parsed = new Ipv4UdpPacket();
+            parsed.parse(ByteBuffer.wrap(buildPacket("10.0.0.2", 40000 + i, "8.8.8.8", 53, query)));
+            ByteBuffer out = ByteBuffer.allocate(300);
+            out.position(3);
+            parsed.writeResponse(head, keep, tail, 0, tail.length, out);
+
+            assertThat(Arrays.copyOfRange(out.array(), 3, out.position()), is(buildPacket("8.8.8.8", 53, "10.0.0.2", 40000 + i, response)));
+        }
+    }
+
+    @Test
+    public void requestsWithoutUdpChecksumAreSummedInFull() throws Exception {
+        byte[] packet = buildPacket("10.0.0.2", 40000, "8.8.8.8", 53, QUERY);
+        packet[26] = packet[27] = 0;
+        byte[] head = {0x12, 0x34, (byte) 0x81, (byte) 0x83};
+        byte[] response = QUERY.clone();
+        System.arraycopy(head, 0, response, 0, head.length);
+        Ipv4UdpPacket parsed = new Ipv4UdpPacket();
+        parsed.parse(ByteBuffer.wrap(packet));
+
+        ByteBuffer out = ByteBuffer.allocate(100);
+        parsed.writeResponse(head, QUERY.length, new byte[0], 0, 0, out);
+
+        assertThat(Arrays.copyOfRange(out.array(), 0, out.position()), is(buildPacket("8.8.8.8", 53, "10.0.0.2", 40000, response)));
+    }
+
+    @Test
+    public void optionsAreSkipped() throws Exception {
+        byte[] packet = buildPacket("10.0.0.2", 40000, "8.8.8.8", 53, QUERY);
+        // Insert four bytes of options (end of option list) after the 20 byte header.
+        byte[] withOptions = new byte[packet.length + 4];
+        System.arraycopy(packet, 0, withOptions, 0, 20);
+        System.arraycopy(packet, 20, withOptions, 24, packet.length - 20);
+        withOptions[0] = 0x46;
+        withOptions[3] += 4;
+
+        Ipv4UdpPacket parsed = new Ipv4UdpPacket();
+        assertThat(parsed.parse(ByteBuffer.wrap(withOptions)), is(true));
+        assertThat(parsed.getPayloadOffset(), is(32));
+        assertThat(parsed.getDestinationPort(), is(53));
+    }
+
+    @Test
+    public void invalidPacketsAreRejected() throws Exception {
+        byte[] packet = buildPacket("10.0.0.2", 40000, "8.8.8.8", 53, QUERY);
+        Ipv4UdpPacket parsed = new Ipv4UdpPacket();
+
+        assertThat(parsed.parse(ByteBuffer.wrap(packet, 0, packet.length - 1)), is(false));
+        assertThat(parsed.parse(ByteBuffer.wrap(packet, 0, 20)), is(false));
+
+        byte[] tcp = packet.clone();
+        tcp[9] = 6;
+        assertThat(parsed.parse(ByteBuffer.wrap(tcp)), is(false));
+
+        byte[] fragment = packet.clone();
+        fragment[6] = 0x20;
+        assertThat(parsed.parse(ByteBuffer.wrap(fragment)), is(false));
+
+        byte[] ipv6 = packet.clone();
+        ipv6[0] = 0x65;
+        assertThat(parsed.parse(ByteBuffer.wrap(ipv6)), is(false));
+
+        byte[] longUdp = packet.clone();
+        longUdp[25]++;
+        assertThat(parsed.parse(ByteBuffer.wrap(longUdp)), is(false));
+    }
+
+    @Test
+    public void checksumsOfOddLengthsArePadded() {
+        ByteBuffer buffer = ByteBuffer.wrap(new byte[]{0x45, 0x00, 0x01});
+        assertThat(Ipv4UdpPacket.finishChecksum(Ipv4UdpPacket.sum(buffer, 0, 3, 0)), is(~(0x4500 + 0x0100) & 0xffff));
+        assertThat(Ipv4UdpPacket.finishChecksum(Ipv4UdpPacket.sum(buffer.asReadOnlyBuffer(), 0, 3, 0)), is(~(0x4500 + 0x0100) & 0xffff));
+    }
+}
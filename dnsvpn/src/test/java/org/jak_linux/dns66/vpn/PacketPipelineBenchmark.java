@@ -0,0 +1,139 @@
+package org.jak_linux.dns66.vpn;
+
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.Type;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Measures how many queries per second are decided about, see {@link QueryDecider}: on the
+ * owning thread, as the VPN thread does without workers, and with a {@link PacketPipeline} of
+ * 1 to N workers. Every fourth query is blocked, and answered from a template. The workers only pay
+ * off with more cores than workers. Run it with the test classpath; it is not run as part of the
+ * tests.
+ * <p>
+ * Arguments: [blocked hosts] [queries per round] [maximum number of workers]
+ */
+public class PacketPipelineBenchmark {
+    private static final int ROUNDS = 5;
+    private static final int JOBS = 128;
+    private static final int FLOWS = 64;
+
+    public static void main(String[] args) throws Exception {
+        int hosts = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        int queries = args.length > 1 ? Integer.parseInt(args[1]) : 200000;
+        int maxWorkers = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+
+        DomainRuleMap rules = new DomainRuleMap();
+        for (int i = 0; i < hosts; i++)
+            rules.put(DomainHashSet.fingerprint("ads" + i + ".example.com"), HostRule.encode(true, 0));
+        PatternMatcher patterns = new PatternMatcher();
+        patterns.add("*tracker*.example.*", HostRule.encode(true, 0));
+        File file = File.createTempFile("hosts", ".idx");
+        HostIndex.write(file, 1, rules, new DomainTrie(), patterns);
+        final HostIndex index = HostIndex.open(file);
+        file.delete();
+
+        byte[][] packets = new byte[1024][];
+        for (int i = 0; i < packets.length; i++) {
+            String name = i % 4 == 0 ? "ads" + i + ".example.com" : "www" + i + ".example.org";
+            byte[] query = Message.newQuery(Record.newRecord(Name.fromString(name + "."), Type.A, DClass.IN)).toWire();
+            packets[i] = Ipv4UdpPacketTest.buildPacket("10.0.0.2", 40000 + i % FLOWS, "8.8.8.8", 53, query);
+        }
+        QueryDecider.BlockedHosts blockedHosts = new QueryDecider.BlockedHosts() {
+            @Override
+            public HostIndex get() {
+                return index;
+            }
+
+            @Override
+            public BlockResponse getResponse() {
+                return BlockResponse.NXDOMAIN;
+            }
+        };
+
+        System.out.println("workers\tqueries/s");
+        System.out.println("none\t" + rate(inline(blockedHosts, packets, queries), queries));
+        for (int workers = 1; workers <= maxWorkers; workers *= 2)
+            System.out.println(workers + "\t" + rate(pipelined(blockedHosts, packets, queries, workers), queries));
+    }
+
+    private static long inline(QueryDecider.BlockedHosts blockedHosts, byte[][] packets, int queries) {
+        QueryDecider decider = new QueryDecider(blockedHosts, false);
+        QueryDecider.Job job = new QueryDecider.Job(ByteBuffer.allocate(4096));
+        long best = Long.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < queries; i++) {
+                read(job, packets[i % packets.length]);
+                decider.process(job);
+            }
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return best;
+    }
+
+    private static long pipelined(final QueryDecider.BlockedHosts blockedHosts, byte[][] packets, int queries, int workers) throws InterruptedException {
+        final Thread owner = Thread.currentThread();
+        PacketPipeline<QueryDecider.Job> pipeline = new PacketPipeline<>(workers, JOBS, new PacketPipeline.StageFactory<QueryDecider.Job>() {
+            @Override
+            public PacketPipeline.Stage<QueryDecider.Job> create() {
+                return new QueryDecider(blockedHosts, true);
+            }
+        }, new PacketPipeline.Wakeup() {
+            @Override
+            public void wakeup() {
+                LockSupport.unpark(owner);
+            }
+        });
+        ArrayDeque<QueryDecider.Job> freeJobs = new ArrayDeque<>();
+        for (int i = 0; i < JOBS; i++)
+            freeJobs.push(new QueryDecider.Job(ByteBuffer.allocate(4096)));
+        pipeline.start();
+
+        long best = Long.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = System.nanoTime();
+            int submitted = 0;
+            int done = 0;
+            while (done < queries) {
+                // As the VPN thread does: read while there are jobs, then take the results.
+                while (submitted < queries && !freeJobs.isEmpty()) {
+                    QueryDecider.Job job = freeJobs.pop();
+                    read(job, packets[submitted % packets.length]);
+                    job.request.parse(job.packet);
+                    pipeline.submit(job.flow(), job);
+                    submitted++;
+                }
+                QueryDecider.Job job = pipeline.poll();
+                if (job == null) {
+                    LockSupport.park();
+                    continue;
+                }
+                do {
+                    freeJobs.push(job);
+                    done++;
+                } while ((job = pipeline.poll()) != null);
+            }
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        pipeline.stop();
+        return best;
+    }
+
+    private static void read(QueryDecider.Job job, byte[] packet) {
+        job.packet.clear();
+        job.packet.put(packet);
+        job.packet.flip();
+    }
+
+    private static long rate(long nanos, int queries) {
+        return (long) (queries / (nanos / 1e9));
+    }
+}
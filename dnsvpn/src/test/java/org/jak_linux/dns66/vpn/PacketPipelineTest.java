@@ -0,0 +1,98 @@
+package org.jak_linux.dns66.vpn;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class PacketPipelineTest {
+    private final Semaphore wakeups = new Semaphore(0);
+    private PacketPipeline<int[]> pipeline;
+
+    @After
+    public void tearDown() throws InterruptedException {
+        if (pipeline != null)
+            pipeline.stop();
+    }
+
+    @Test
+    public void jobsAreProcessedAndReturned() throws InterruptedException {
+        pipeline = newPipeline(2, 8);
+        pipeline.start();
+        int[] job = {0, 20};
+        assertThat(pipeline.submit(0, job), is(true));
+        assertThat(pipeline.pending(), is(1));
+
+        assertThat(wakeups.tryAcquire(5, TimeUnit.SECONDS), is(true));
+        assertThat(pipeline.poll() == job, is(true));
+        assertThat(job[1], is(21));
+        assertThat(pipeline.pending(), is(0));
+        assertThat(pipeline.poll(), is(nullValue()));
+    }
+
+    @Test
+    public void flowsKeepTheirOrder() throws InterruptedException {
+        final int flows = 5;
+        final int jobs = 20000;
+        pipeline = newPipeline(3, 64);
+        pipeline.start();
+
+        int[] next = new int[flows];
+        int submitted = 0;
+        int received = 0;
+        while (received < jobs) {
+            while (submitted < jobs && pipeline.pending() < 64
+                    && pipeline.submit(submitted % flows, new int[]{submitted % flows, submitted}))
+                submitted++;
+
+            int[] job;
+            while ((job = pipeline.poll()) != null) {
+                // Within a flow, the jobs come back in the order they went in.
+                assertThat(job[1] - 1, is(next[job[0]] * flows + job[0]));
+                next[job[0]]++;
+                received++;
+            }
+            // Wakeups may have been used up by earlier polls, so do not wait for long.
+            if (pipeline.pending() > 0)
+                wakeups.tryAcquire(10, TimeUnit.MILLISECONDS);
+        }
+        assertThat(pipeline.pending(), is(0));
+    }
+
+    @Test
+    public void fullWorkersRejectJobs() {
+        // Not started, so nothing is taken from the queue.
+        pipeline = newPipeline(1, 2);
+        assertThat(pipeline.submit(0, new int[2]), is(true));
+        assertThat(pipeline.submit(0, new int[2]), is(true));
+        assertThat(pipeline.submit(0, new int[2]), is(false));
+        pipeline = null;
+    }
+
+    /**
+     * Creates a pipeline whose jobs are {flow, value} pairs; the stage increments the value.
+     */
+    private PacketPipeline<int[]> newPipeline(int workers, int queueSize) {
+        return new PacketPipeline<>(workers, queueSize, new PacketPipeline.StageFactory<int[]>() {
+            @Override
+            public PacketPipeline.Stage<int[]> create() {
+                return new PacketPipeline.Stage<int[]>() {
+                    @Override
+                    public void process(int[] job) {
+                        job[1]++;
+                    }
+                };
+            }
+        }, new PacketPipeline.Wakeup() {
+            @Override
+            public void wakeup() {
+                wakeups.release();
+            }
+        });
+    }
+}
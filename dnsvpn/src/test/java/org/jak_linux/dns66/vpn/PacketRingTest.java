@@ -0,0 +1,80 @@
+package org.jak_linux.dns66.vpn;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class PacketRingTest {
+
+    @Test
+    public void packetsAreQueuedInOrder() {
+        PacketRing ring = new PacketRing(4, 16);
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < 3; i++)
+                add(ring, round * 10 + i);
+            for (int i = 0; i < 3; i++) {
+                assertThat(ring.peek().get(0), is((byte) (round * 10 + i)));
+                ring.remove();
+            }
+            assertThat(ring.isEmpty(), is(true));
+        }
+    }
+
+    @Test
+    public void fullRingsHandOutNoBuffers() {
+        PacketRing ring = new PacketRing(2, 16);
+        add(ring, 1);
+        add(ring, 2);
+
+        assertThat(ring.isFull(), is(true));
+        assertThat(ring.claim(), is(nullValue()));
+
+        ring.remove();
+        assertThat(ring.claim() != null, is(true));
+    }
+
+    @Test
+    public void uncommittedBuffersAreReused() {
+        PacketRing ring = new PacketRing(2, 16);
+        ByteBuffer buffer = ring.claim();
+        buffer.put((byte) 1);
+
+        ByteBuffer again = ring.claim();
+        assertThat(again, is(sameInstance(buffer)));
+        assertThat(again.position(), is(0));
+        assertThat(ring.isEmpty(), is(true));
+    }
+
+    @Test
+    public void buffersAreAllocatedOnce() {
+        PacketRing ring = new PacketRing(2, 16);
+        ByteBuffer first = ring.claim();
+        ring.commit();
+        ByteBuffer second = ring.claim();
+        ring.commit();
+        ring.remove();
+        ring.remove();
+
+        assertThat(ring.claim(), is(sameInstance(first)));
+        ring.commit();
+        assertThat(ring.claim(), is(sameInstance(second)));
+        assertThat(ring.bufferSize(), is(16));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void emptyRingsCannotBeRemovedFrom() {
+        new PacketRing(2, 16).remove();
+    }
+
+    private static void add(PacketRing ring, int value) {
+        ByteBuffer buffer = ring.claim();
+        buffer.put((byte) value);
+        buffer.flip();
+        ring.commit();
+    }
+}
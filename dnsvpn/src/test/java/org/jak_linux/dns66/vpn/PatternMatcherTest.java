@@ -0,0 +1,121 @@
+package org.jak_linux.dns66.vpn;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class PatternMatcherTest {
+    private static final int BLOCK = HostRule.encode(true, 0);
+    private static final int ALLOW = HostRule.encode(false, 1);
+
+    @Test
+    public void starsMatchAnySequence() {
+        PatternMatcher matcher = new PatternMatcher();
+        matcher.add("*ads*.example.*", BLOCK);
+
+        assertThat(matcher.match("ads.example.com"), is(BLOCK));
+        assertThat(matcher.match("myads1.example.org"), is(BLOCK));
+        assertThat(matcher.match("x.ads.y.example.co.uk"), is(BLOCK));
+        assertThat(matcher.match("ads.example"), is(HostRule.NONE));
+        assertThat(matcher.match("example.com"), is(HostRule.NONE));
+        assertThat(matcher.match("ad.example.com"), is(HostRule.NONE));
+    }
+
+    @Test
+    public void questionMarksMatchOneCharacter() {
+        PatternMatcher matcher = new PatternMatcher();
+        matcher.add("ad?.example.com", BLOCK);
+
+        assertThat(matcher.match("ad1.example.com"), is(BLOCK));
+        assertThat(matcher.match("ad.example.com"), is(HostRule.NONE));
+        assertThat(matcher.match("ad12.example.com"), is(HostRule.NONE));
+    }
+
+    @Test
+    public void matchingIsCaseInsensitiveAndIgnoresTrailingDots() {
+        PatternMatcher matcher = new PatternMatcher();
+        matcher.add("*.Tracker.*", BLOCK);
+
+        assertThat(matcher.match("WWW.TRACKER.NET."), is(BLOCK));
+    }
+
+    @Test
+    public void theRuleOfTheLatestSourceWins() {
+        PatternMatcher matcher = new PatternMatcher();
+        matcher.add("*ads*", BLOCK);
+        matcher.add("*.example.com", ALLOW);
+
+        assertThat(matcher.match("ads.example.com"), is(ALLOW));
+        assertThat(matcher.match("ads.example.org"), is(BLOCK));
+        assertThat(matcher.match("www.example.com"), is(ALLOW));
+    }
+
+    @Test
+    public void unsupportedPatternsAreRejected() {
+        PatternMatcher matcher = new PatternMatcher();
+
+        assertThat(matcher.add("*", BLOCK), is(false));
+        assertThat(matcher.add("*?*", BLOCK), is(false));
+        assertThat(matcher.add("ad$.example.*", BLOCK), is(false));
+        assertThat(matcher.size(), is(0));
+        assertThat(matcher.match("example.com"), is(HostRule.NONE));
+    }
+
+    @Test
+    public void manyPatternsMatchLikeOneByOne() {
+        // A small cache, so that it overflows many times
+        PatternMatcher matcher = new PatternMatcher(16);
+        for (int i = 0; i < 500; i++)
+            matcher.add("*ad" + i + "*.example?.*", HostRule.encode(true, i));
+
+        for (int i = 0; i < 4000; i++) {
+            String name = "x" + i + ".ad" + (i % 700) + "y.example" + (i % 10) + ".com";
+            int expected = i % 700 < 500 ? HostRule.encode(true, i % 700) : HostRule.NONE;
+            // "ad1" also occurs in "ad1x", so the latest matching source wins
+            for (int j = 0; j < 500; j++) {
+                if (name.contains("ad" + j) && HostRule.encode(true, j) > expected)
+                    expected = HostRule.encode(true, j);
+            }
+            assertThat(name, matcher.match(name), is(expected));
+        }
+    }
+
+    @Test
+    public void namesWithoutTheRequiredCharactersDoNotMatch() {
+        PatternMatcher matcher = new PatternMatcher();
+        matcher.add("ad?.Example.*", BLOCK);
+        matcher.add("*track*", ALLOW);
+
+        assertThat(matcher.match("ADx.example.org"), is(BLOCK));
+        assertThat(matcher.match("my.tracker.net."), is(ALLOW));
+        assertThat(matcher.match("adx.exampl.org"), is(HostRule.NONE));
+        assertThat(matcher.match("ex"), is(HostRule.NONE));
+
+        // Without three literal characters in a row, every name is matched by the automaton.
+        matcher.add("a?b*", BLOCK);
+        assertThat(matcher.match("axb.net"), is(BLOCK));
+        assertThat(matcher.match("ADx.example.org"), is(BLOCK));
+    }
+
+    @Test
+    public void writtenPatternsCanBeRead() throws IOException {
+        PatternMatcher matcher = new PatternMatcher();
+        matcher.add("*ads*.example.*", BLOCK);
+        matcher.add("ad?.example.com", ALLOW);
+
+        ByteBuffer buffer = ByteBuffer.allocate(matcher.serializedSize()).order(ByteOrder.LITTLE_ENDIAN);
+        matcher.writeTo(buffer);
+        buffer.flip();
+        PatternMatcher read = PatternMatcher.read(buffer);
+
+        assertThat(buffer.hasRemaining(), is(false));
+        assertThat(read.size(), is(2));
+        assertThat(read.match("myads.example.com"), is(BLOCK));
+        assertThat(read.match("ad1.example.com"), is(ALLOW));
+    }
+}
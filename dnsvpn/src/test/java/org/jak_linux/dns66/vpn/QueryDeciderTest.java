@@ -0,0 +1,199 @@
+package org.jak_linux.dns66.vpn;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.xbill.DNS.ARecord;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.Rcode;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.Section;
+import org.xbill.DNS.Type;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class QueryDeciderTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void allowedQueriesAreSentUpstream() throws Exception {
+        QueryDecider.Job job = decide(newDecider(false), "example.com");
+
+        assertThat(job.verdict, is(QueryDecider.ALLOW));
+        assertThat(job.name.toString(), is("example.com"));
+        assertThat(job.response, is(nullValue()));
+        assertThat(job.request.getDestinationPort(), is(53));
+    }
+
+    @Test
+    public void blockedQueriesGetAResponse() throws Exception {
+        QueryDecider.Job job = decide(newDecider(false), "ads.example.com");
+
+        assertThat(job.verdict, is(QueryDecider.BLOCK));
+        assertThat(job.response, is(nullValue()));
+        Message response = new Message(writeBlockResponse(job));
+        assertThat(response.getRcode(), is(Rcode.NXDOMAIN));
+        assertThat(response.getQuestion().getName().toString(true), is("ads.example.com"));
+    }
+
+    @Test
+    public void blockedQueriesGetTheConfiguredResponse() throws Exception {
+        QueryDecider.Job job = decide(newDecider(false, BlockResponse.sinkhole(300)), "ads.example.com");
+
+        assertThat(job.verdict, is(QueryDecider.BLOCK));
+        Message response = new Message(writeBlockResponse(job));
+        assertThat(response.getRcode(), is(Rcode.NOERROR));
+        ARecord answer = (ARecord) response.getSectionArray(Section.ANSWER)[0];
+        assertThat(answer.getName().toString(true), is("ads.example.com"));
+        assertThat(answer.getAddress().getHostAddress(), is("0.0.0.0"));
+    }
+
+    @Test
+    public void unusualBlockedQueriesGetTheConfiguredResponse() throws Exception {
+        final HostIndex index = writeIndex("ad+s.example.com");
+        QueryDecider decider = new QueryDecider(new QueryDecider.BlockedHosts() {
+            @Override
+            public HostIndex get() {
+                return index;
+            }
+
+            @Override
+            public BlockResponse getResponse() {
+                return BlockResponse.sinkhole(300);
+            }
+        }, false);
+        // Names with such characters are left to dnsjava.
+        QueryDecider.Job job = decide(decider, "ad+s.example.com");
+
+        assertThat(job.verdict, is(QueryDecider.BLOCK));
+        Message response = new Message(job.response);
+        assertThat(response.getRcode(), is(Rcode.NOERROR));
+        assertThat(response.getQuestion().getName().toString(true), is("ad+s.example.com"));
+        ARecord answer = (ARecord) response.getSectionArray(Section.ANSWER)[0];
+        assertThat(answer.getTTL(), is(300L));
+        assertThat(answer.getAddress().getHostAddress(), is("0.0.0.0"));
+    }
+
+    @Test
+    public void otherPacketsAreDiscarded() throws Exception {
+        QueryDecider decider = newDecider(false);
+        QueryDecider.Job job = new QueryDecider.Job(ByteBuffer.wrap(new byte[]{0x60, 0, 0, 0}));
+        decider.process(job);
+        assertThat(job.verdict, is(QueryDecider.DISCARD));
+        assertThat(job.reason, is(not(nullValue())));
+
+        byte[] packet = Ipv4UdpPacketTest.buildPacket("10.0.0.2", 40000, "8.8.8.8", 53, new byte[]{1, 2, 3});
+        job = new QueryDecider.Job(ByteBuffer.wrap(packet));
+        decider.process(job);
+        assertThat(job.verdict, is(QueryDecider.DISCARD));
+    }
+
+    @Test
+    public void sharedDecidersFollowTheCurrentHosts() throws Exception {
+        final HostIndex[] current = {HostIndex.empty()};
+        QueryDecider decider = new QueryDecider(new QueryDecider.BlockedHosts() {
+            @Override
+            public HostIndex get() {
+                return current[0];
+            }
+
+            @Override
+            public BlockResponse getResponse() {
+                return BlockResponse.NXDOMAIN;
+            }
+        }, true);
+
+        assertThat(decide(decider, "ads.example.com").verdict, is(QueryDecider.ALLOW));
+        current[0] = writeIndex("ads.example.com");
+        assertThat(decide(decider, "ads.example.com").verdict, is(QueryDecider.BLOCK));
+    }
+
+    @Test
+    public void flowsDependOnAddressesAndPorts() throws Exception {
+        QueryDecider decider = newDecider(false);
+        QueryDecider.Job a = decide(decider, "example.com");
+        QueryDecider.Job b = new QueryDecider.Job(ByteBuffer.wrap(Ipv4UdpPacketTest.buildPacket("10.0.0.2", 40000, "8.8.8.8", 53, query("example.org"))));
+        decider.process(b);
+        QueryDecider.Job c = new QueryDecider.Job(ByteBuffer.wrap(Ipv4UdpPacketTest.buildPacket("10.0.0.2", 40001, "8.8.8.8", 53, query("example.com"))));
+        decider.process(c);
+
+        assertThat(a.flow(), is(b.flow()));
+        assertThat(a.flow(), is(not(c.flow())));
+    }
+
+    @Test
+    public void parsedRequestsAreNotParsedAgain() throws Exception {
+        QueryDecider decider = newDecider(true);
+        byte[] packet = Ipv4UdpPacketTest.buildPacket("10.0.0.2", 40000, "8.8.8.8", 53, query("ads.example.com"));
+        QueryDecider.Job job = new QueryDecider.Job(ByteBuffer.wrap(packet));
+        assertThat(job.parseRequest(), is(true));
+
+        // A header that no longer parses shows that the worker uses the parsed one.
+        packet[0] = 0x60;
+        decider.process(job);
+        assertThat(job.verdict, is(QueryDecider.BLOCK));
+
+        // The next packet read into the job is parsed again.
+        decider.process(job);
+        assertThat(job.verdict, is(QueryDecider.DISCARD));
+    }
+
+    private QueryDecider newDecider(boolean shared) throws IOException {
+        return newDecider(shared, BlockResponse.NXDOMAIN);
+    }
+
+    private QueryDecider newDecider(boolean shared, final BlockResponse response) throws IOException {
+        final HostIndex index = writeIndex("ads.example.com");
+        return new QueryDecider(new QueryDecider.BlockedHosts() {
+            @Override
+            public HostIndex get() {
+                return index;
+            }
+
+            @Override
+            public BlockResponse getResponse() {
+                return response;
+            }
+        }, shared);
+    }
+
+    private HostIndex writeIndex(String host) throws IOException {
+        DomainRuleMap rules = new DomainRuleMap();
+        rules.put(DomainHashSet.fingerprint(host), HostRule.encode(true, 0));
+        File file = folder.newFile();
+        HostIndex.write(file, 1, rules, new DomainTrie(), new PatternMatcher());
+        return HostIndex.open(file);
+    }
+
+    private static QueryDecider.Job decide(QueryDecider decider, String name) throws Exception {
+        byte[] packet = Ipv4UdpPacketTest.buildPacket("10.0.0.2", 40000, "8.8.8.8", 53, query(name));
+        QueryDecider.Job job = new QueryDecider.Job(ByteBuffer.wrap(packet));
+        decider.process(job);
+        return job;
+    }
+
+    /**
+     * @return The DNS payload of the response to a blocked query, written from its template
+     */
+    static byte[] writeBlockResponse(QueryDecider.Job job) {
+        ByteBuffer out = ByteBuffer.allocate(512);
+        job.request.writeResponse(job.responseHead, job.responseKeep, job.responseRecords, 0, job.responseRecords.length, out);
+        return Arrays.copyOfRange(out.array(), Ipv4UdpPacket.HEADER_LENGTH, out.position());
+    }
+
+    private static byte[] query(String name) throws Exception {
+        return Message.newQuery(Record.newRecord(Name.fromString(name + "."), Type.A, DClass.IN)).toWire();
+    }
+}
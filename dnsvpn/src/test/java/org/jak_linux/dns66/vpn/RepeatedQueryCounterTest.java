@@ -0,0 +1,44 @@
+package org.jak_linux.dns66.vpn;
+
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class RepeatedQueryCounterTest {
+
+    @Test
+    public void queriesWithinTheWindowAreRepeats() {
+        RepeatedQueryCounter counter = new RepeatedQueryCounter(16, 1000);
+        assertThat(counter.count("ads.example.com", 0), is(false));
+        assertThat(counter.count("ads.example.com", 999), is(true));
+        assertThat(counter.count("tracker.example.com", 999), is(false));
+        // The window starts at the latest query.
+        assertThat(counter.count("ads.example.com", 1998), is(true));
+        assertThat(counter.count("ads.example.com", 2998), is(false));
+
+        assertThat(counter.getQueries(), is(5L));
+        assertThat(counter.getRepeatedQueries(), is(2L));
+    }
+
+    @Test
+    public void clearForgetsNamesAndCounts() {
+        RepeatedQueryCounter counter = new RepeatedQueryCounter(16, 1000);
+        counter.count("ads.example.com", 0);
+        counter.count("ads.example.com", 1);
+        counter.clear();
+
+        assertThat(counter.getQueries(), is(0L));
+        assertThat(counter.getRepeatedQueries(), is(0L));
+        assertThat(counter.count("ads.example.com", 2), is(false));
+    }
+
+    @Test
+    public void repeatsAreNeverOvercounted() {
+        RepeatedQueryCounter counter = new RepeatedQueryCounter(4, 1000);
+        for (int i = 0; i < 100; i++)
+            counter.count("host" + i + ".example.com", i);
+
+        assertThat(counter.getRepeatedQueries(), is(0L));
+    }
+}
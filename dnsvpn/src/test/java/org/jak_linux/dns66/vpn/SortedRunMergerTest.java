@@ -0,0 +1,56 @@
+package org.jak_linux.dns66.vpn;
+
+import org.junit.Test;
+
+import java.nio.LongBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class SortedRunMergerTest {
+
+    @Test
+    public void runsAreMergedInUnsignedOrder() {
+        SortedRunMerger merger = new SortedRunMerger(new LongBuffer[]{
+                LongBuffer.wrap(new long[]{1, 5, -2}),
+                LongBuffer.wrap(new long[]{2, 3, Long.MAX_VALUE, Long.MIN_VALUE}),
+                LongBuffer.wrap(new long[0]),
+                LongBuffer.wrap(new long[]{4, -1}),
+        }, new int[]{1, 2, 3, 4});
+
+        assertThat(fingerprints(merger), is(Arrays.asList(1L, 2L, 3L, 4L, 5L, Long.MAX_VALUE, Long.MIN_VALUE, -2L, -1L)));
+    }
+
+    @Test
+    public void theRuleOfTheLatestRunWins() {
+        int deny = HostRule.encode(true, 0);
+        int allow = HostRule.encode(false, 1);
+        int denyAgain = HostRule.encode(true, 2);
+        SortedRunMerger merger = new SortedRunMerger(new LongBuffer[]{
+                LongBuffer.wrap(new long[]{1, 2, 3}),
+                LongBuffer.wrap(new long[]{2, 3}),
+                LongBuffer.wrap(new long[]{3}),
+        }, new int[]{deny, allow, denyAgain});
+
+        List<Integer> rules = new ArrayList<>();
+        while (merger.next())
+            rules.add(merger.rule());
+
+        assertThat(rules, is(Arrays.asList(deny, allow, denyAgain)));
+    }
+
+    @Test
+    public void noRunsGiveNothing() {
+        assertThat(new SortedRunMerger(new LongBuffer[0], new int[0]).next(), is(false));
+    }
+
+    private List<Long> fingerprints(SortedRunMerger merger) {
+        List<Long> fingerprints = new ArrayList<>();
+        while (merger.next())
+            fingerprints.add(merger.fingerprint());
+        return fingerprints;
+    }
+}
@@ -0,0 +1,60 @@
+package org.jak_linux.dns66.vpn;
+
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class SpscQueueTest {
+
+    @Test
+    public void itemsComeOutInOrder() {
+        SpscQueue<Integer> queue = new SpscQueue<>(4);
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < 3; i++)
+                assertThat(queue.offer(round * 10 + i), is(true));
+            for (int i = 0; i < 3; i++)
+                assertThat(queue.poll(), is(round * 10 + i));
+            assertThat(queue.poll(), is(nullValue()));
+            assertThat(queue.isEmpty(), is(true));
+        }
+    }
+
+    @Test
+    public void fullQueuesRejectItems() {
+        SpscQueue<Integer> queue = new SpscQueue<>(3);
+        assertThat(queue.capacity(), is(4));
+        for (int i = 0; i < 4; i++)
+            assertThat(queue.offer(i), is(true));
+        assertThat(queue.offer(4), is(false));
+
+        assertThat(queue.poll(), is(0));
+        assertThat(queue.offer(4), is(true));
+    }
+
+    @Test
+    public void itemsCrossThreadsInOrder() throws InterruptedException {
+        final SpscQueue<Integer> queue = new SpscQueue<>(16);
+        final int count = 200000;
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < count; i++) {
+                    while (!queue.offer(i))
+                        Thread.yield();
+                }
+            }
+        });
+        producer.start();
+
+        for (int i = 0; i < count; i++) {
+            Integer item;
+            while ((item = queue.poll()) == null)
+                Thread.yield();
+            assertThat(item, is(i));
+        }
+        producer.join();
+        assertThat(queue.isEmpty(), is(true));
+    }
+}
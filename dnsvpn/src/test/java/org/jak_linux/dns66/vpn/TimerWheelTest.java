@@ -0,0 +1,115 @@
+package org.jak_linux.dns66.vpn;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class TimerWheelTest {
+    private final List<Long> expired = new ArrayList<>();
+    private final TimerWheel.Expiry collect = new TimerWheel.Expiry() {
+        @Override
+        public void expired(long value) {
+            expired.add(value);
+        }
+    };
+
+    @Test
+    public void valuesExpireAtTheEndOfTheirSlot() {
+        TimerWheel wheel = new TimerWheel(100, 1000, 0);
+        wheel.schedule(2L, 250, 0);
+        wheel.schedule(1L, 100, 0);
+        assertThat(wheel.size(), is(2));
+        assertThat(wheel.nextExpiry(), is(100L));
+
+        wheel.advance(99, collect);
+        assertThat(expired.isEmpty(), is(true));
+        wheel.advance(100, collect);
+        assertThat(expired, is(Arrays.asList(1L)));
+        wheel.advance(299, collect);
+        assertThat(expired, is(Arrays.asList(1L)));
+        wheel.advance(300, collect);
+        assertThat(expired, is(Arrays.asList(1L, 2L)));
+        assertThat(wheel.size(), is(0));
+        assertThat(wheel.nextExpiry(), is(-1L));
+    }
+
+    @Test
+    public void deadlinesAreKeptWithinOneTurn() {
+        TimerWheel wheel = new TimerWheel(100, 1000, 0);
+        wheel.schedule(3L, -500, 0);
+        wheel.schedule(4L, 5000, 0);
+        wheel.schedule(5L, 1000, 0);
+
+        wheel.advance(100, collect);
+        assertThat(expired, is(Arrays.asList(3L)));
+        wheel.advance(1000, collect);
+        assertThat(expired, is(Arrays.asList(3L, 5L)));
+        wheel.advance(1100, collect);
+        assertThat(expired, is(Arrays.asList(3L, 5L, 4L)));
+    }
+
+    @Test
+    public void expiredValuesCanBeScheduledAgain() {
+        final TimerWheel wheel = new TimerWheel(100, 1000, 0);
+        wheel.schedule(1L, 100, 0);
+        wheel.advance(100, new TimerWheel.Expiry() {
+            @Override
+            public void expired(long value) {
+                expired.add(value);
+                wheel.schedule(value + 10, 500, 100);
+            }
+        });
+        wheel.advance(500, collect);
+        assertThat(expired, is(Arrays.asList(1L, 11L)));
+    }
+
+    @Test
+    public void emptyWheelsCatchUp() {
+        TimerWheel wheel = new TimerWheel(100, 1000, 0);
+        wheel.schedule(1L, 100000, 99500);
+        assertThat(wheel.nextExpiry(), is(99600L));
+        wheel.advance(99900, collect);
+        assertThat(expired.isEmpty(), is(true));
+        wheel.advance(100000, collect);
+        assertThat(expired, is(Arrays.asList(1L)));
+    }
+
+    @Test
+    public void everythingExpiresAfterALongSleep() {
+        TimerWheel wheel = new TimerWheel(100, 1000, 0);
+        wheel.schedule(1L, 200, 0);
+        wheel.schedule(2L, 900, 0);
+        wheel.advance(1000000, collect);
+        assertThat(expired, is(Arrays.asList(1L, 2L)));
+        assertThat(wheel.nextExpiry(), is(-1L));
+    }
+
+    @Test
+    public void clearedWheelsHaveNothingToExpire() {
+        TimerWheel wheel = new TimerWheel(100, 1000, 0);
+        wheel.schedule(1L, 200, 0);
+        wheel.clear();
+        assertThat(wheel.size(), is(0));
+        assertThat(wheel.nextExpiry(), is(-1L));
+
+        wheel.schedule(2L, 500, 300);
+        wheel.advance(1000, collect);
+        assertThat(expired, is(Arrays.asList(2L)));
+    }
+
+    @Test
+    public void slotsGrowForMoreValues() {
+        TimerWheel wheel = new TimerWheel(100, 1000, 0);
+        for (long i = 0; i < 100; i++)
+            wheel.schedule(i, 500, 0);
+        assertThat(wheel.size(), is(100));
+        wheel.advance(500, collect);
+        assertThat(expired.size(), is(100));
+        assertThat(expired.get(99), is(99L));
+    }
+}
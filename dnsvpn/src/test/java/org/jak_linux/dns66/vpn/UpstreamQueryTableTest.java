@@ -0,0 +1,210 @@
+package org.jak_linux.dns66.vpn;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class UpstreamQueryTableTest {
+    private static final UpstreamQueryTable.Listener NO_RETRANSMITS = new UpstreamQueryTable.Listener() {
+        @Override
+        public void retransmit(int slot) {
+            throw new AssertionError("Retransmitted " + slot);
+        }
+    };
+
+    private static Ipv4UdpPacket request(int clientPort, byte... payload) throws Exception {
+        Ipv4UdpPacket packet = new Ipv4UdpPacket();
+        assertThat(packet.parse(ByteBuffer.wrap(Ipv4UdpPacketTest.buildPacket("10.0.0.2", clientPort, "10.0.0.1", 53, payload))), is(true));
+        return packet;
+    }
+
+    private static Ipv4UdpPacket request() throws Exception {
+        return request(40000, (byte) 0, (byte) 0);
+    }
+
+    @Test
+    public void queriesAreFoundByTheirNewId() throws Exception {
+        UpstreamQueryTable table = new UpstreamQueryTable(16, 64, 1000, 0, new Random(1), 0);
+        int slot = table.add(0, request(40000, (byte) 0x12, (byte) 0x34, (byte) 7), 0);
+        int id = table.getId(slot);
+
+        assertThat(table.get(1, id), is(-1));
+        assertThat(table.get(0, id), is(slot));
+        assertThat(table.getUpstreamId(slot), is(0));
+        assertThat(table.getOriginalId(slot), is(0x1234));
+        assertThat(table.getServerAddress(slot), is(0x0a000001));
+        assertThat(table.getServerPort(slot), is(53));
+
+        table.remove(slot);
+        assertThat(table.get(0, id), is(-1));
+        assertThat(table.size(), is(0));
+    }
+
+    @Test
+    public void theRequestIsRestoredForTheResponse() throws Exception {
+        UpstreamQueryTable table = new UpstreamQueryTable(16, 64, 1000, 0, new Random(7), 0);
+        Ipv4UdpPacket request = request(40001, (byte) 0x12, (byte) 0x34);
+        int slot = table.add(2, request, 0);
+
+        Ipv4UdpPacket restored = new Ipv4UdpPacket();
+        table.getRequest(slot, restored);
+        ByteBuffer expected = ByteBuffer.allocate(64);
+        ByteBuffer actual = ByteBuffer.allocate(64);
+        byte[] payload = {0x12, 0x34, 1, 2, 3};
+        request.writeResponse(payload, 0, payload.length, expected);
+        restored.writeResponse(payload, 0, payload.length, actual);
+        expected.flip();
+        actual.flip();
+        assertThat(actual, is(expected));
+    }
+
+    @Test
+    public void idsAreUniquePerSocket() throws Exception {
+        UpstreamQueryTable table = new UpstreamQueryTable(0x10000, 0, 1000, 0, new Random(2), 0);
+        Ipv4UdpPacket request = request();
+        Set<Integer> ids = new HashSet<>();
+        for (int i = 0; i < 0x8000; i++) {
+            int id = table.getId(table.add(7, request, 0));
+            assertThat(id >= 0 && id <= 0xffff, is(true));
+            assertThat(ids.add(id), is(true));
+        }
+        assertThat(table.size(), is(0x8000));
+    }
+
+    @Test
+    public void removedQueriesLeaveTheOthersFindable() throws Exception {
+        UpstreamQueryTable table = new UpstreamQueryTable(256, 0, 1000, 0, new Random(8), 0);
+        Ipv4UdpPacket request = request();
+        int[] slots = new int[256];
+        for (int i = 0; i < slots.length; i++)
+            slots[i] = table.add(i % 3, request, 0);
+        for (int i = 0; i < slots.length; i += 2)
+            table.remove(slots[i]);
+
+        for (int i = 0; i < slots.length; i++) {
+            int slot = slots[i];
+            int found = table.get(i % 3, table.getId(slot));
+            assertThat(found, is(i % 2 == 0 ? -1 : slot));
+        }
+        assertThat(table.size(), is(128));
+    }
+
+    @Test
+    public void oldQueriesAreDropped() throws Exception {
+        UpstreamQueryTable table = new UpstreamQueryTable(16, 64, 1000, 0, new Random(3), 0);
+        int old = table.getId(table.add(0, request(), 0));
+        assertThat(table.nextExpiry() > 0, is(true));
+        table.expire(900, NO_RETRANSMITS);
+        int recent = table.getId(table.add(0, request(), 900));
+
+        table.expire(1500, NO_RETRANSMITS);
+        assertThat(table.get(0, old), is(-1));
+        assertThat(table.get(0, recent) >= 0, is(true));
+        assertThat(table.getDroppedQueries(), is(1L));
+
+        table.expire(2000, NO_RETRANSMITS);
+        assertThat(table.size(), is(0));
+        assertThat(table.getDroppedQueries(), is(2L));
+    }
+
+    @Test
+    public void answeredQueriesDoNotExpire() throws Exception {
+        UpstreamQueryTable table = new UpstreamQueryTable(16, 64, 1000, 0, new Random(5), 0);
+        table.remove(table.add(0, request(), 0));
+
+        table.expire(2000, NO_RETRANSMITS);
+        assertThat(table.getDroppedQueries(), is(0L));
+    }
+
+    @Test
+    public void reusedSlotsIgnoreOldDeadlines() throws Exception {
+        UpstreamQueryTable table = new UpstreamQueryTable(1, 64, 1000, 0, new Random(9), 0);
+        table.remove(table.add(0, request(), 0));
+        int slot = table.add(0, request(), 800);
+
+        table.expire(1000, NO_RETRANSMITS);
+        assertThat(table.size(), is(1));
+        table.expire(1800, NO_RETRANSMITS);
+        assertThat(table.get(0, table.getId(slot)), is(-1));
+        assertThat(table.getDroppedQueries(), is(1L));
+    }
+
+    @Test
+    public void queriesAreRetransmittedOnceBeforeTheyAreDropped() throws Exception {
+        final UpstreamQueryTable table = new UpstreamQueryTable(16, 64, 1000, 300, new Random(6), 0);
+        int slot = table.add(3, request(40000, (byte) 0x12, (byte) 0x34, (byte) 7), 0);
+        final int id = table.getId(slot);
+        final List<Integer> retransmitted = new ArrayList<>();
+        UpstreamQueryTable.Listener listener = new UpstreamQueryTable.Listener() {
+            @Override
+            public void retransmit(int slot) {
+                retransmitted.add(slot);
+                // The kept query carries the new transaction id.
+                int offset = table.getQueryOffset(slot);
+                byte[] query = Arrays.copyOfRange(table.getQueryData(), offset, offset + table.getQueryLength(slot));
+                assertThat(query, is(new byte[]{(byte) (id >> 8), (byte) id, 7}));
+            }
+        };
+
+        table.expire(200, listener);
+        assertThat(retransmitted.isEmpty(), is(true));
+        table.expire(500, listener);
+        assertThat(retransmitted, is(Arrays.asList(slot)));
+        assertThat(table.getUpstreamId(slot), is(3));
+        assertThat(table.getId(slot), is(id));
+
+        table.expire(900, listener);
+        assertThat(table.size(), is(1));
+        table.expire(1000, listener);
+        assertThat(table.size(), is(0));
+        assertThat(retransmitted.size(), is(1));
+        assertThat(table.getRetransmittedQueries(), is(1L));
+        assertThat(table.getDroppedQueries(), is(1L));
+    }
+
+    @Test
+    public void longQueriesAreNotRetransmitted() throws Exception {
+        UpstreamQueryTable table = new UpstreamQueryTable(16, 4, 1000, 300, new Random(10), 0);
+        int slot = table.add(0, request(40000, new byte[5]), 0);
+        assertThat(table.getQueryLength(slot), is(0));
+
+        table.expire(500, NO_RETRANSMITS);
+        assertThat(table.size(), is(1));
+        table.expire(1000, NO_RETRANSMITS);
+        assertThat(table.size(), is(0));
+    }
+
+    @Test
+    public void tooManyQueriesAreDropped() throws Exception {
+        UpstreamQueryTable table = new UpstreamQueryTable(2, 64, 1000, 0, new Random(4), 0);
+        int first = table.getId(table.add(0, request(), 0));
+        table.add(1, request(), 1);
+        table.add(2, request(), 2);
+
+        assertThat(table.size(), is(2));
+        assertThat(table.get(0, first), is(-1));
+        assertThat(table.getDroppedQueries(), is(1L));
+    }
+
+    @Test
+    public void clearedTablesAreEmpty() throws Exception {
+        UpstreamQueryTable table = new UpstreamQueryTable(4, 64, 1000, 0, new Random(11), 0);
+        int id = table.getId(table.add(0, request(), 0));
+        table.clear();
+
+        assertThat(table.size(), is(0));
+        assertThat(table.get(0, id), is(-1));
+        assertThat(table.nextExpiry(), is(-1L));
+        table.expire(2000, NO_RETRANSMITS);
+        assertThat(table.getDroppedQueries(), is(0L));
+    }
+}
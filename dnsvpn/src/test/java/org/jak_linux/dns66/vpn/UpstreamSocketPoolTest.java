@@ -0,0 +1,108 @@
+package org.jak_linux.dns66.vpn;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class UpstreamSocketPoolTest {
+    private final List<DatagramSocket> created = new ArrayList<>();
+    private final List<DatagramSocket> closed = new ArrayList<>();
+    private UpstreamSocketPool pool;
+
+    @Before
+    public void setUp() {
+        pool = new UpstreamSocketPool(2, 3, 1000, new UpstreamSocketPool.SocketFactory() {
+            @Override
+            public DatagramSocket create() throws IOException {
+                DatagramSocket socket = new DatagramSocket();
+                created.add(socket);
+                return socket;
+            }
+
+            @Override
+            public void close(DatagramSocket socket) {
+                closed.add(socket);
+                socket.close();
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        pool.close();
+    }
+
+    @Test
+    public void socketsAreCreatedOnceAndTakeTurns() throws IOException {
+        UpstreamSocketPool.Upstream first = pool.acquire(0);
+        UpstreamSocketPool.Upstream second = pool.acquire(0);
+
+        assertThat(second, is(not(sameInstance(first))));
+        assertThat(pool.acquire(0), is(sameInstance(first)));
+        assertThat(pool.acquire(0), is(sameInstance(second)));
+        assertThat(created.size(), is(2));
+        assertThat(pool.sockets().size(), is(2));
+        assertThat(pool.get(first.socket), is(sameInstance(first)));
+    }
+
+    @Test
+    public void usedUpSocketsAreReplacedAndClosedLater() throws IOException {
+        UpstreamSocketPool.Upstream first = pool.acquire(0);
+        for (int i = 1; i < 6; i++)
+            pool.acquire(0);
+        // The first socket sent three queries, so the next one in its turn is new.
+        UpstreamSocketPool.Upstream replacement = pool.acquire(100);
+
+        assertThat(replacement, is(not(sameInstance(first))));
+        assertThat(replacement.id, is(2));
+        assertThat(pool.sockets().size(), is(3));
+
+        // Retired sockets keep receiving until they have lingered long enough.
+        assertThat(pool.nextClose(), is(1000L));
+        assertThat(pool.get(first.id), is(sameInstance(first)));
+        pool.closeRetired(999);
+        assertThat(first.socket.isClosed(), is(false));
+        pool.closeRetired(1000);
+        assertThat(first.socket.isClosed(), is(true));
+        assertThat(closed.contains(first.socket), is(true));
+        assertThat(pool.get(first.socket), is(nullValue()));
+        assertThat(pool.get(first.id), is(nullValue()));
+        assertThat(pool.nextClose(), is(-1L));
+        // The second socket was used up at the same time, only the replacement is left.
+        assertThat(pool.sockets().size(), is(1));
+    }
+
+    @Test
+    public void retiredSocketsAreNotUsedAgain() throws IOException {
+        UpstreamSocketPool.Upstream first = pool.acquire(0);
+        pool.acquire(0);
+        pool.retire(first, 0);
+
+        UpstreamSocketPool.Upstream replacement = pool.acquire(0);
+        assertThat(replacement, is(not(sameInstance(first))));
+        assertThat(created.size(), is(3));
+    }
+
+    @Test
+    public void closingClosesAllSockets() throws IOException {
+        pool.acquire(0);
+        pool.acquire(0);
+        pool.close();
+
+        assertThat(closed, is(created));
+        for (DatagramSocket socket : created)
+            assertThat(socket.isClosed(), is(true));
+        assertThat(pool.sockets().isEmpty(), is(true));
+    }
+}